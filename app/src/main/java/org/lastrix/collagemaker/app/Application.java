@@ -1,7 +1,8 @@
 package org.lastrix.collagemaker.app;
 
 import com.nostra13.universalimageloader.core.ImageLoader;
-import com.nostra13.universalimageloader.core.ImageLoaderConfiguration;
+
+import org.lastrix.collagemaker.app.image.ImagePipeline;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -14,9 +15,7 @@ public class Application extends android.app.Application {
     @Override
     public void onCreate() {
         super.onCreate();
-        ImageLoaderConfiguration config = new ImageLoaderConfiguration.Builder(getApplicationContext())
-                .build();
-        ImageLoader.getInstance().init(config);
+        ImageLoader.getInstance().init(ImagePipeline.configure(getApplicationContext()));
     }
 
     @Override
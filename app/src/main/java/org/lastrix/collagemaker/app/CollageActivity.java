@@ -1,5 +1,6 @@
 package org.lastrix.collagemaker.app;
 
+import android.app.ProgressDialog;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.os.Bundle;
@@ -8,6 +9,7 @@ import android.support.v7.app.ActionBarActivity;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.nostra13.universalimageloader.core.ImageLoader;
@@ -16,7 +18,11 @@ import org.lastrix.collagemaker.app.content.LoadPhotosTask;
 import org.lastrix.collagemaker.app.content.Photo;
 import org.lastrix.collagemaker.app.gfx.GFXListener;
 import org.lastrix.collagemaker.app.gfx.GFXSurfaceView;
+import org.lastrix.collagemaker.app.task.SaveImageTask;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
 
 /**
@@ -25,16 +31,25 @@ import java.util.List;
  * {@link org.lastrix.collagemaker.app.gfx.GFXRenderer} for more details.
  * Created by lastrix on 8/21/14.
  */
-public class CollageActivity extends ActionBarActivity implements GFXListener, LoadPhotosTask.Listener {
+public class CollageActivity extends ActionBarActivity implements GFXListener, LoadPhotosTask.Listener,
+        SaveImageTask.Listener {
     private static final String LOG_MESSAGE_FAILED_FETCH = "Failed to fetch images";
+    private static final String LOG_MESSAGE_FAILED_EXPORT = "Failed to export collage";
     private static final String LOG_TAG = CollageActivity.class.getSimpleName();
     private static final boolean LOG_ALL = true;
 
     private static final String URI_SCREEN_SHOT = "content://lastrix.org/bmp/screen.bmp";
+    private static final String FILE_TEMPLATE_EXPORT = "%s.png";
+    // long side of exported image, enough for print
+    private static final int EXPORT_SIZE = 4096;
     private GFXSurfaceView mGfxSurfaceView;
     private LoadPhotosTask mTask;
     private boolean mCanceled;
     private volatile boolean mCapturing = false;
+    private boolean mExporting = false;
+    private Bitmap mExported;
+    private SaveImageTask mSaveTask;
+    private ProgressDialog mProgressDialog;
 
 
     @Override
@@ -69,6 +84,18 @@ public class CollageActivity extends ActionBarActivity implements GFXListener, L
             mCanceled = true;
             mTask.cancel(true);
         }
+        if (mSaveTask != null) {
+            mSaveTask.cancel(true);
+            mSaveTask = null;
+            recycleExported();
+        }
+        if (mProgressDialog != null && mProgressDialog.isShowing()) {
+            mProgressDialog.dismiss();
+        }
+        mExporting = false;
+        // capture waits for loading, it may never come after pause
+        mGfxSurfaceView.cancelCapture();
+        mCapturing = false;
     }
 
     @Override
@@ -101,6 +128,13 @@ public class CollageActivity extends ActionBarActivity implements GFXListener, L
                 mGfxSurfaceView.requestCapture();
                 return true;
 
+            case R.id.export:
+                if (mExporting) return true;
+                mExporting = true;
+                showProgress();
+                mGfxSurfaceView.requestExport(EXPORT_SIZE);
+                return true;
+
             case R.id.zoom_in:
                 mGfxSurfaceView.zoom(-0.5f);
                 return true;
@@ -109,13 +143,36 @@ public class CollageActivity extends ActionBarActivity implements GFXListener, L
                 mGfxSurfaceView.zoom(0.5f);
                 return true;
 
+            case R.id.stats:
+                item.setChecked(!item.isChecked());
+                mGfxSurfaceView.setStatsView(item.isChecked() ? (TextView) findViewById(R.id.stats_overlay) : null);
+                return true;
+
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
+    /**
+     * Export frame statistics: adb shell dumpsys activity org.lastrix.collagemaker.app/.CollageActivity
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mGfxSurfaceView != null) {
+            writer.print(prefix);
+            writer.println("Frame statistics:");
+            mGfxSurfaceView.dump(prefix + "  ", writer);
+        }
+    }
+
     @Override
     public void captured(final Bitmap bmp) {
+        if (bmp == null) {
+            mCapturing = false;
+            Toast.makeText(this, R.string.error_capture_failed, Toast.LENGTH_LONG).show();
+            return;
+        }
         ImageLoader.getInstance().getMemoryCache().put(URI_SCREEN_SHOT, bmp);
         Intent intent = new Intent(this, PreviewActivity.class);
         intent.putExtra(PreviewActivity.PARAMETER_URL, URI_SCREEN_SHOT);
@@ -123,6 +180,62 @@ public class CollageActivity extends ActionBarActivity implements GFXListener, L
         mCapturing = false;
     }
 
+    @Override
+    public void exported(Bitmap bmp) {
+        if (!mExporting) {
+            // activity was paused meanwhile
+            if (bmp != null) bmp.recycle();
+            return;
+        }
+        if (bmp == null) {
+            onSavingFailed(new IllegalStateException(LOG_MESSAGE_FAILED_EXPORT));
+            return;
+        }
+        mExported = bmp;
+        mSaveTask = new SaveImageTask(this, SaveImageTask.getStorage(this), showProgress(), FILE_TEMPLATE_EXPORT);
+        mSaveTask.execute(bmp);
+    }
+
+    private ProgressDialog showProgress() {
+        if (mProgressDialog == null) {
+            mProgressDialog = new ProgressDialog(this);
+            mProgressDialog.setIndeterminate(true);
+            mProgressDialog.setTitle(R.string.title_saving);
+            mProgressDialog.setCancelable(false);
+        }
+        if (!mProgressDialog.isShowing()) {
+            mProgressDialog.show();
+        }
+        return mProgressDialog;
+    }
+
+    private void recycleExported() {
+        if (mExported != null) {
+            mExported.recycle();
+            mExported = null;
+        }
+    }
+
+    @Override
+    public void onSavingCompleted(List<File> files) {
+        mSaveTask = null;
+        mExporting = false;
+        recycleExported();
+        Toast.makeText(this, getString(R.string.info_saved, files.get(0).getAbsolutePath()), Toast.LENGTH_LONG).show();
+    }
+
+    @Override
+    public void onSavingFailed(Throwable e) {
+        mSaveTask = null;
+        mExporting = false;
+        recycleExported();
+        if (mProgressDialog != null && mProgressDialog.isShowing()) {
+            mProgressDialog.dismiss();
+        }
+        Log.e(LOG_TAG, LOG_MESSAGE_FAILED_EXPORT, e);
+        Toast.makeText(this, R.string.error_saving_failed, Toast.LENGTH_LONG).show();
+    }
+
     @Override
     public void onFetchCompleted(List<Photo> photos) {
         mTask = null;
@@ -132,6 +245,9 @@ public class CollageActivity extends ActionBarActivity implements GFXListener, L
     @Override
     public void onFetchFailed(Throwable e) {
         mTask = null;
+        // scene stays loading, pending capture would never be served
+        mGfxSurfaceView.cancelCapture();
+        mCapturing = false;
         Log.e(LOG_TAG, LOG_MESSAGE_FAILED_FETCH, e);
         Toast.makeText(this, R.string.error_fetch_failed, Toast.LENGTH_LONG).show();
     }
@@ -2,9 +2,9 @@ package org.lastrix.collagemaker.app;
 
 import android.app.ProgressDialog;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Environment;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.ActionBarActivity;
 import android.util.Log;
@@ -15,6 +15,7 @@ import android.widget.Toast;
 
 import com.nostra13.universalimageloader.core.ImageLoader;
 
+import org.lastrix.collagemaker.app.content.ShareProvider;
 import org.lastrix.collagemaker.app.task.SaveImageTask;
 
 import java.io.File;
@@ -38,10 +39,10 @@ public class PreviewActivity extends ActionBarActivity implements SaveImageTask.
     private static final boolean LOG_ALL = BuildConfig.LOG_ALL;
     private static final String LOG_TAG = PreviewActivity.class.getSimpleName();
     private static final String LOG_MESSAGE_FAILED_SAVE = "Failed to save bitmap.";
-    private static final String LOG_MESSAGE_FAILED_CREATE = "Failed to create storage.";
-    private static final String FOLDER = "Pictures/CollageMaker";
-    private static final String FILE_TEMPLATE_NAME = "%s.png";
-    private static final String MIME_TYPE = "image/png";
+    // every receiver understands JPEG, it is several times faster to encode than PNG
+    private static final Bitmap.CompressFormat SHARE_FORMAT = Bitmap.CompressFormat.JPEG;
+    private static final String FILE_TEMPLATE_NAME = "%s." + SaveImageTask.getExtension(SHARE_FORMAT);
+    private static final String MIME_TYPE = SaveImageTask.getMimeType(SHARE_FORMAT);
     private String mUri;
     private ProgressDialog mProgressDialog = null;
     private SaveImageTask mTask = null;
@@ -94,11 +95,18 @@ public class PreviewActivity extends ActionBarActivity implements SaveImageTask.
             case R.id.action_send:
                 //the progress dialog does not created at onCreate() because
                 // there is only possibility that this dialog would be needed.
+                final Bitmap bmp = ImageLoader.getInstance().getMemoryCache().get(mUri);
+                if (ShareProvider.isSupported() && bmp != null) {
+                    // receiver reads while image is encoded, nothing is stored
+                    send(ShareProvider.share(bmp, SHARE_FORMAT, SaveImageTask.QUALITY_DEFAULT));
+                    return true;
+                }
                 if (mProgressDialog == null) {
                     mProgressDialog = createProgressDialog();
                 }
-                mTask = new SaveImageTask(this, getStorage(), mProgressDialog, FILE_TEMPLATE_NAME);
-                mTask.execute(ImageLoader.getInstance().getMemoryCache().get(mUri));
+                mTask = new SaveImageTask(this, SaveImageTask.getStorage(this), mProgressDialog, FILE_TEMPLATE_NAME,
+                        SHARE_FORMAT, SaveImageTask.QUALITY_DEFAULT);
+                mTask.execute(bmp);
                 return true;
         }
         return super.onOptionsItemSelected(item);
@@ -117,33 +125,17 @@ public class PreviewActivity extends ActionBarActivity implements SaveImageTask.
         }
     }
 
-    /**
-     * Returns file pointing to storage directory. If it does not exist, it would be created.
-     *
-     * @return storage
-     */
-    private File getStorage() {
-        File storage;
-        if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
-            storage = new File(Environment.getExternalStorageDirectory(), FOLDER);
-        } else {
-            storage = getCacheDir();
-        }
-        if (!storage.exists()) {
-            if (!storage.mkdirs()) {
-                throw new IllegalStateException(LOG_MESSAGE_FAILED_CREATE);
-            }
-        }
-        return storage;
-    }
-
     @Override
     public void onSavingCompleted(List<File> files) {
+        send(Uri.fromFile(files.get(0)));
+    }
+
+    private void send(Uri uri) {
         //send mail
         final Intent intent = new Intent(Intent.ACTION_SEND);
         intent.setType(MIME_TYPE);
-        intent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(files.get(0)));
-        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        intent.putExtra(Intent.EXTRA_STREAM, uri);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_GRANT_READ_URI_PERMISSION);
         startActivity(Intent.createChooser(intent, getString(R.string.title_send_image)));
     }
 
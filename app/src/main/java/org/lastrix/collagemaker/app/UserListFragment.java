@@ -2,11 +2,13 @@ package org.lastrix.collagemaker.app;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.util.Log;
@@ -24,8 +26,11 @@ import com.nostra13.universalimageloader.core.ImageLoader;
 
 import org.lastrix.collagemaker.app.api.UserSearchTask;
 import org.lastrix.collagemaker.app.content.ContentHelper;
+import org.lastrix.collagemaker.app.content.ContentProvider;
 import org.lastrix.collagemaker.app.content.User;
+import org.lastrix.collagemaker.app.image.ImagePipeline;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -39,6 +44,7 @@ import java.util.List;
 public class UserListFragment extends Fragment implements AdapterView.OnItemClickListener, UserSearchTask.Listener {
     public final static boolean LOG_ALL = BuildConfig.LOG_ALL;
     public final static String LOG_TAG = UserListFragment.class.getSimpleName();
+    private static final String LOG_MESSAGE_FAILED_UPDATE = "Failed to update favorites";
     public static final String ARG_SEARCH = "search";
     public static final String CONFIG_SELECTED = "selected";
 
@@ -272,7 +278,7 @@ public class UserListFragment extends Fragment implements AdapterView.OnItemClic
                 holder.url = user.getPhotoUrl();
                 ImageLoader loader = ImageLoader.getInstance();
                 loader.cancelDisplayTask(holder.photo);
-                loader.displayImage(holder.url, holder.photo);
+                loader.displayImage(holder.url, holder.photo, ImagePipeline.avatarOptions());
 
                 if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
                     AdapterCompat.state(convertView, convertView.isSelected());
@@ -332,15 +338,19 @@ public class UserListFragment extends Fragment implements AdapterView.OnItemClic
 
             @Override
             protected Void doInBackground(User... params) {
-                ContentValues values = new ContentValues(1);
+                // single ipc call and single transaction for all users
+                ArrayList<ContentProviderOperation> operations = new ArrayList<>(params.length);
                 for (User user : params) {
-                    values.clear();
-                    values.put(User.COLUMN_FAVORITE, user.isFavorite());
-                    mContentResolver.update(ContentHelper.getUserUri(user),
-                            values,
-                            String.format("%s = ?", User.COLUMN_ID),
-                            new String[]{Long.toString(user.getId())}
-                    );
+                    operations.add(ContentProviderOperation.newUpdate(ContentHelper.getUserUri(user))
+                            .withValue(User.COLUMN_FAVORITE, user.isFavorite())
+                            .withSelection(String.format("%s = ?", User.COLUMN_ID),
+                                    new String[]{Long.toString(user.getId())})
+                            .build());
+                }
+                try {
+                    mContentResolver.applyBatch(ContentProvider.AUTHORITY, operations);
+                } catch (RemoteException | OperationApplicationException e) {
+                    Log.e(LOG_TAG, LOG_MESSAGE_FAILED_UPDATE, e);
                 }
                 return null;
             }
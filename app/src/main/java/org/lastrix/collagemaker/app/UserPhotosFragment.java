@@ -2,11 +2,13 @@ package org.lastrix.collagemaker.app;
 
 import android.annotation.TargetApi;
 import android.app.ProgressDialog;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.util.Log;
@@ -23,9 +25,13 @@ import com.nostra13.universalimageloader.core.ImageLoader;
 
 import org.lastrix.collagemaker.app.api.PopularPhotosTask;
 import org.lastrix.collagemaker.app.content.ContentHelper;
+import org.lastrix.collagemaker.app.content.ContentProvider;
 import org.lastrix.collagemaker.app.content.Photo;
 import org.lastrix.collagemaker.app.content.User;
+import org.lastrix.collagemaker.app.image.GridPrefetcher;
+import org.lastrix.collagemaker.app.image.ImagePipeline;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -39,11 +45,13 @@ public class UserPhotosFragment extends Fragment implements AdapterView.OnItemCl
 
     public static final String LOG_TAG = UserPhotosFragment.class.getSimpleName();
     public static final boolean LOG_ALL = BuildConfig.LOG_ALL;
+    private static final String LOG_MESSAGE_FAILED_UPDATE = "Failed to update photos";
     private User mUser;
 
     private GridView mGridView;
     private boolean mCanceled = true;
     private PhotoListViewAdapter mAdapter;
+    private GridPrefetcher mPrefetcher;
     private PopularPhotosTask mPopularPhotosTask;
     private ProgressDialog mProgressDialog;
     private SetupRunnable mSetupRunnable;
@@ -93,6 +101,8 @@ public class UserPhotosFragment extends Fragment implements AdapterView.OnItemCl
         mGridView.setOnItemClickListener(this);
         mAdapter = new PhotoListViewAdapter(getActivity().getLayoutInflater());
         mGridView.setAdapter(mAdapter);
+        mPrefetcher = new GridPrefetcher(mAdapter, R.id.thumbnail, ImagePipeline.gridOptions());
+        mGridView.setOnScrollListener(mPrefetcher.asScrollListener());
 
         mProgressDialog = new ProgressDialog(getActivity());
         mProgressDialog.setIndeterminate(true);
@@ -109,6 +119,9 @@ public class UserPhotosFragment extends Fragment implements AdapterView.OnItemCl
             mPopularPhotosTask.cancel(true);
             mPopularPhotosTask = null;
         }
+        mPrefetcher.cancel();
+        mPrefetcher = null;
+        mGridView.setOnScrollListener(null);
         mGridView.setOnItemClickListener(null);
         mGridView = null;
         mAdapter = null;
@@ -167,6 +180,7 @@ public class UserPhotosFragment extends Fragment implements AdapterView.OnItemCl
     public void onLoadingCompleted(List<Photo> photos) {
         mAdapter.mPhotos = photos;
         mAdapter.notifyDataSetChanged();
+        mPrefetcher.onDataSetChanged();
         mPopularPhotosTask = null;
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
@@ -191,7 +205,7 @@ public class UserPhotosFragment extends Fragment implements AdapterView.OnItemCl
         mAdapter.notifyDataSetChanged();
     }
 
-    private static class PhotoListViewAdapter extends BaseAdapter {
+    private static class PhotoListViewAdapter extends BaseAdapter implements GridPrefetcher.Source {
         private LayoutInflater mInflater;
         private List<Photo> mPhotos;
 
@@ -215,6 +229,11 @@ public class UserPhotosFragment extends Fragment implements AdapterView.OnItemCl
             return position;
         }
 
+        @Override
+        public String getUrl(int position) {
+            return mPhotos.get(position).getThumbnailUrl();
+        }
+
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             ViewHolder holder;
@@ -240,7 +259,7 @@ public class UserPhotosFragment extends Fragment implements AdapterView.OnItemCl
 
                 ImageLoader loader = ImageLoader.getInstance();
                 loader.cancelDisplayTask(holder.thumbnail);
-                loader.displayImage(photo.getThumbnailUrl(), holder.thumbnail);
+                loader.displayImage(photo.getThumbnailUrl(), holder.thumbnail, ImagePipeline.gridOptions());
 
                 if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
                     AdapterCompat.state(convertView, photo.isChecked());
@@ -267,17 +286,20 @@ public class UserPhotosFragment extends Fragment implements AdapterView.OnItemCl
 
         @Override
         protected Boolean doInBackground(Photo... params) {
-            ContentValues values = new ContentValues(1);
+            // single ipc call and single transaction for all photos
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>(params.length);
             for (Photo photo : params) {
-                values.clear();
-                values.put(Photo.COLUMN_CHECKED, photo.isChecked() ? 1 : 0);
-                mContentResolver.update(ContentHelper.getPhotoUri(photo),
-                        values,
-                        String.format("%s = ?", Photo.COLUMN_ID),
-                        new String[]{Long.toString(photo.getId())}
-                );
+                operations.add(ContentProviderOperation.newUpdate(ContentHelper.getPhotoUri(photo))
+                        .withValue(Photo.COLUMN_CHECKED, photo.isChecked() ? 1 : 0)
+                        .build());
+            }
+            try {
+                mContentResolver.applyBatch(ContentProvider.AUTHORITY, operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(LOG_TAG, LOG_MESSAGE_FAILED_UPDATE, e);
+                return false;
             }
-            return null;
+            return true;
         }
     }
 
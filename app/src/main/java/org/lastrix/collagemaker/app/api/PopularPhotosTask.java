@@ -186,11 +186,11 @@ public class PopularPhotosTask extends AsyncTask<User, Void, List<Photo>> implem
      */
     private boolean get(@NonNull List<Photo> userPhotos, @NonNull User user) {
         final Cursor cursor = mContentResolver.query(
-                ContentHelper.getPhotoUri(null),
+                ContentHelper.getUserPhotosUri(user),
                 null,
-                String.format("%s = ? AND %s > datetime('now', '-%d hours')", Photo.COLUMN_USER_ID, Photo.COLUMN_TIMESTAMP, Photo.CACHE_EXPIRE),
-                new String[]{Long.toString(user.getId())},
-                Photo.COLUMN_ID);
+                null,
+                null,
+                null);
 
         //if nothing found - just return false
         if (cursor == null || cursor.getCount() == 0) {
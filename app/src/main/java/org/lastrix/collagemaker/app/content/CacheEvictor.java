@@ -0,0 +1,236 @@
+package org.lastrix.collagemaker.app.content;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import org.lastrix.collagemaker.app.BuildConfig;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps cache within row and byte budget by removing least recently used users with their photos.<br/>
+ * Users are the eviction unit, since photos are always fetched per user, see {@link org.lastrix.collagemaker.app.api.PopularPhotosTask}.
+ * Favorite users, checked photos and their owners are never evicted.<br/>
+ * Access times are recorded lazily: {@link #touchUser(long)} and {@link #touchUsers(android.database.Cursor)}
+ * only queue ids, so foreground queries never write.<br/>
+ * Eviction runs on single background thread, each pass removes at most {@link #CHUNK_USERS} users
+ * in short transaction and reschedules itself, so provider queries are interleaved with eviction.
+ */
+class CacheEvictor {
+
+    public static final int DEFAULT_MAX_ROWS = 20000;
+    public static final long DEFAULT_MAX_BYTES = 16L * 1024L * 1024L;
+
+    private static final String LOG_TAG = CacheEvictor.class.getSimpleName();
+    private static final String LOG_MESSAGE_FAILED_SQL = "Failed to execute sql";
+    private static final String LOG_MESSAGE_EVICTED = "Evicted %d users and %d photos, rows %d, bytes %d";
+    private static final boolean LOG_ALL = BuildConfig.LOG_ALL;
+    private static final int CHUNK_USERS = 8;
+    private static final int MAX_VARIABLES = 999;
+    private static final String[] COLUMNS_ID = {User.COLUMN_ID};
+    private static final String WHERE_EVICTABLE = String.format("%s = 0", User.COLUMN_FAVORITE);
+    private static final String WHERE_ID_IN = String.format("%s IN ", User.COLUMN_ID);
+
+    private final DatabaseHelper mDatabaseHelper;
+    private final PhotoStore mPhotoStore;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Runnable mPass = new Runnable() {
+        @Override
+        public void run() {
+            pass();
+        }
+    };
+
+    private final Set<Long> mTouchedUsers = new HashSet<>();
+    private volatile int mMaxRows = DEFAULT_MAX_ROWS;
+    private volatile long mMaxBytes = DEFAULT_MAX_BYTES;
+    private boolean mScheduled;
+    private boolean mClosed;
+
+    /**
+     * Create evictor
+     *
+     * @param databaseHelper -- provider database
+     * @param photoStore     -- photo backend
+     */
+    CacheEvictor(@NonNull DatabaseHelper databaseHelper, @NonNull PhotoStore photoStore) {
+        this.mDatabaseHelper = databaseHelper;
+        this.mPhotoStore = photoStore;
+    }
+
+    /**
+     * Set cache budget, eviction starts when any limit is exceeded
+     *
+     * @param maxRows  -- users and photos rows
+     * @param maxBytes -- database and photo store size
+     */
+    void setBudget(int maxRows, long maxBytes) {
+        mMaxRows = maxRows;
+        mMaxBytes = maxBytes;
+        schedule();
+    }
+
+    /**
+     * Record access to user and his photos
+     *
+     * @param userId -- user id
+     */
+    synchronized void touchUser(long userId) {
+        mTouchedUsers.add(userId);
+        schedule();
+    }
+
+    /**
+     * Record access to users returned by query, cursor is rewound
+     *
+     * @param cursor -- user rows, nothing is recorded without {@link User#COLUMN_ID} column
+     */
+    void touchUsers(@NonNull Cursor cursor) {
+        final int id = cursor.getColumnIndex(User.COLUMN_ID);
+        if (id == -1 || cursor.getCount() == 0) {
+            return;
+        }
+        // cursor is filled outside of lock
+        final long[] users = new long[cursor.getCount()];
+        for (int i = 0; i < users.length && cursor.moveToNext(); i++) {
+            users[i] = cursor.getLong(id);
+        }
+        cursor.moveToPosition(-1);
+        synchronized (this) {
+            for (long user : users) {
+                mTouchedUsers.add(user);
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * Request eviction pass, call it after inserts
+     */
+    synchronized void schedule() {
+        if (mScheduled || mClosed) {
+            return;
+        }
+        mScheduled = true;
+        mExecutor.execute(mPass);
+    }
+
+    /**
+     * Stop background thread, running pass is finished, later requests are ignored.
+     * Called from {@link ContentProvider#shutdown()}.
+     */
+    synchronized void close() {
+        mClosed = true;
+        mExecutor.shutdown();
+    }
+
+    private void pass() {
+        final long[] users;
+        synchronized (this) {
+            mScheduled = false;
+            users = new long[mTouchedUsers.size()];
+            int i = 0;
+            for (Long id : mTouchedUsers) {
+                users[i++] = id;
+            }
+            mTouchedUsers.clear();
+        }
+
+        try {
+            SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+            applyTouches(db, users);
+            if (evictChunk(db)) {
+                // over budget yet, continue after queued provider work
+                schedule();
+            }
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, LOG_MESSAGE_FAILED_SQL, e);
+        }
+    }
+
+    private void applyTouches(SQLiteDatabase db, long[] users) {
+        if (users.length == 0) {
+            return;
+        }
+        ContentValues values = new ContentValues(1);
+        values.put(User.COLUMN_ACCESSED, System.currentTimeMillis());
+        db.beginTransaction();
+        try {
+            // bounded by sqlite variable limit
+            for (int from = 0; from < users.length; from += MAX_VARIABLES) {
+                final long[] chunk = Arrays.copyOfRange(users, from, Math.min(users.length, from + MAX_VARIABLES));
+                db.update(User.TABLE_NAME, values,
+                        WHERE_ID_IN + DatabaseHelper.placeholders(chunk.length),
+                        DatabaseHelper.toArgs(chunk));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Evict single chunk of least recently used users if cache is over budget
+     *
+     * @return true if chunk was evicted and cache may still be over budget
+     */
+    private boolean evictChunk(SQLiteDatabase db) {
+        final long rows = DatabaseUtils.queryNumEntries(db, User.TABLE_NAME) + mPhotoStore.count();
+        final long bytes = DatabaseHelper.usedBytes(db) + mPhotoStore.sizeBytes();
+        if (rows <= mMaxRows && bytes <= mMaxBytes) {
+            return false;
+        }
+
+        final long[] users = leastRecentlyUsed(db);
+        if (users.length == 0) {
+            //only favorites and owners of checked photos left
+            return false;
+        }
+
+        int photos;
+        db.beginTransaction();
+        try {
+            photos = mPhotoStore.evictUsers(users);
+            db.delete(User.TABLE_NAME, WHERE_ID_IN + DatabaseHelper.placeholders(users.length),
+                    DatabaseHelper.toArgs(users));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (LOG_ALL) {
+            Log.v(LOG_TAG, String.format(LOG_MESSAGE_EVICTED, users.length, photos, rows, bytes));
+        }
+        return true;
+    }
+
+    /**
+     * Find least recently used users which may be evicted, owners of checked photos are skipped
+     */
+    private long[] leastRecentlyUsed(SQLiteDatabase db) {
+        final Set<Long> owners = mPhotoStore.checkedOwners();
+        // no limit: skipped owners must not hide evictable users, scan stops after chunk
+        Cursor cursor = db.query(User.TABLE_NAME, COLUMNS_ID, WHERE_EVICTABLE, null, null, null,
+                User.COLUMN_ACCESSED);
+        try {
+            long[] users = new long[CHUNK_USERS];
+            int count = 0;
+            while (count < CHUNK_USERS && cursor.moveToNext()) {
+                final long id = cursor.getLong(0);
+                if (!owners.contains(id)) {
+                    users[count++] = id;
+                }
+            }
+            return Arrays.copyOf(users, count);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -9,8 +9,12 @@ import android.net.Uri;
  */
 public class ContentHelper {
 
+    final static String PATH_USER = "user";
+    final static String PATH_CHECKED = "checked";
     private final static Uri URI_USER = Uri.parse("content://" + ContentProvider.AUTHORITY + "/" + User.TABLE_NAME);
     private final static Uri URI_PHOTO = Uri.parse("content://" + ContentProvider.AUTHORITY + "/" + Photo.TABLE_NAME);
+    private final static Uri URI_PHOTO_USER = Uri.withAppendedPath(URI_PHOTO, PATH_USER);
+    private final static Uri URI_PHOTO_CHECKED = Uri.withAppendedPath(URI_PHOTO, PATH_CHECKED);
 
     /**
      * Return uri to access users
@@ -34,4 +38,22 @@ public class ContentHelper {
         return ContentUris.withAppendedId(URI_PHOTO, photo.getId());
     }
 
+    /**
+     * Return uri to access not expired photos of user
+     *
+     * @param user -- photos owner
+     * @return uri
+     */
+    public static Uri getUserPhotosUri(User user) {
+        return ContentUris.withAppendedId(URI_PHOTO_USER, user.getId());
+    }
+
+    /**
+     * Return uri to access not expired photos selected for collage
+     *
+     * @return uri
+     */
+    public static Uri getCheckedPhotosUri() {
+        return URI_PHOTO_CHECKED;
+    }
 }
@@ -1,16 +1,30 @@
 package org.lastrix.collagemaker.app.content;
 
+import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.util.Log;
+import android.util.SparseArray;
 import org.lastrix.collagemaker.app.BuildConfig;
+import org.lastrix.collagemaker.app.task.EncoderBenchmark;
+import org.lastrix.collagemaker.app.task.SaveImageTask;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
@@ -21,35 +35,104 @@ import java.util.Arrays;
  * This content provider does not provide per item insert or delete.<br/>
  * You may call {@link #call(String, String, android.os.Bundle)}
  * with method {@link #CALL_FLUSH} to remove obsolete entries.</br>
- * ContentProvider will automatically flush obsolete data at {@link #onCreate()} .
+ * ContentProvider will automatically flush obsolete data at {@link #onCreate()} .<br/>
+ * Photos are kept by pluggable {@link org.lastrix.collagemaker.app.content.PhotoStore},
+ * backend is selected at {@link #onCreate()} from preferences, see {@link #CALL_BENCHMARK}.<br/>
+ * Every call is measured, see {@link #CALL_METRICS}.<br/>
+ * Use {@link #applyBatch(java.util.ArrayList)} for multi-step writes, whole batch is applied in single transaction.<br/>
+ * Cache size is bounded by {@link org.lastrix.collagemaker.app.content.CacheEvictor}, see {@link #CALL_CACHE_BUDGET}.
  */
 public class ContentProvider extends android.content.ContentProvider {
 
     private static final String LOG_MESSAGE_FAILED_SQL = "Failed to execute sql";
     private static final String LOG_MESSAGE_CALLING_INSERT = "Calling inserting single record is not advisable.";
+    private static final String LOG_MESSAGE_FAILED_PACK = "Failed to pack photos";
+    private static final String LOG_MESSAGE_INCORRECT_PAGE = "Incorrect page [%s]";
     private static final String LOG_TAG = ContentProvider.class.getSimpleName();
     private static final boolean LOG_ALL = BuildConfig.LOG_ALL;
 
 
     public static final String CALL_FLUSH = "flush";
     public static final String CALL_FLUSH_RESULT = "RESULT";
+    /**
+     * Measure photo backends, returns timings in bundle.
+     * Pass {@link #CALL_BENCHMARK_APPLY} extra to store recommended backend,
+     * it would be used since next provider start.
+     */
+    public static final String CALL_BENCHMARK = "benchmark";
+    public static final String CALL_BENCHMARK_APPLY = "apply";
+    /**
+     * Measure encode time and size of screenshot-sized collage per output format,
+     * see {@link org.lastrix.collagemaker.app.task.EncoderBenchmark}.
+     * Pass {@link #CALL_ENCODER_BENCHMARK_QUALITY} extra to change quality of lossy formats.
+     */
+    public static final String CALL_ENCODER_BENCHMARK = "encoder_benchmark";
+    public static final String CALL_ENCODER_BENCHMARK_QUALITY = "quality";
+    /**
+     * Returns {@link org.lastrix.collagemaker.app.content.ProviderMetrics} statistics
+     * collected since provider start or last {@link #CALL_METRICS_RESET}.
+     */
+    public static final String CALL_METRICS = "metrics";
+    public static final String CALL_METRICS_RESET = "metrics_reset";
+    /**
+     * Returns page of checked photos packed by {@link org.lastrix.collagemaker.app.content.Photo#pack(android.database.Cursor, int)}
+     * as byte array under {@link #CALL_CHECKED_PHOTOS_RESULT} key.
+     * Page is cut at {@link #MAX_PACKED_BYTES}, so it fits into binder transaction whatever selection size is.
+     * Pages are keyed by id: pass id of last photo of previous page as call argument, nothing or 0 for first page,
+     * so photos checked or unchecked between calls do not shift pages.
+     * Id to pass for next page is returned under {@link #CALL_CHECKED_PHOTOS_NEXT} key as long, -1 after last page.
+     */
+    public static final String CALL_CHECKED_PHOTOS = "checked_photos";
+    public static final String CALL_CHECKED_PHOTOS_RESULT = "photos";
+    public static final String CALL_CHECKED_PHOTOS_NEXT = "next";
+    // binder buffer is 1 MB shared by all transactions of process
+    private static final int MAX_PACKED_BYTES = 128 * 1024;
+    /**
+     * Set cache budget from {@link #CALL_CACHE_BUDGET_MAX_ROWS} and {@link #CALL_CACHE_BUDGET_MAX_BYTES} extras,
+     * missing extras are reset to defaults. Budget is kept in preferences.
+     */
+    public static final String CALL_CACHE_BUDGET = "cache_budget";
+    public static final String CALL_CACHE_BUDGET_MAX_ROWS = "max_rows";
+    public static final String CALL_CACHE_BUDGET_MAX_BYTES = "max_bytes";
+    public static final String STORE_SQLITE = "sqlite";
+    public static final String STORE_MAPPED = "mapped";
+    private static final String PREFERENCES_NAME = "content";
+    private static final String PREFERENCE_PHOTO_STORE = "photo_store";
+    private static final String PREFERENCE_MAX_ROWS = "cache_max_rows";
+    private static final String PREFERENCE_MAX_BYTES = "cache_max_bytes";
+    private static final String MAPPED_STORE_DIRECTORY = "photos";
     public static final String AUTHORITY = "org.lastrix.collagemaker.app.content";
     private static final UriMatcher sUriMatcher;
+    private static final SparseArray<String> sUriPatterns;
     private static final int CODE_USER = 1;
     private static final int CODE_PHOTO = 2;
     private static final int CODE_PHOTO_UPDATE = 3;
     private static final int CODE_USER_UPDATE = 4;
+    private static final int CODE_PHOTO_USER = 5;
+    private static final int CODE_PHOTO_CHECKED = 6;
 
     static {
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
-        sUriMatcher.addURI(AUTHORITY, User.TABLE_NAME, CODE_USER);
-        sUriMatcher.addURI(AUTHORITY, Photo.TABLE_NAME, CODE_PHOTO);
-        sUriMatcher.addURI(AUTHORITY, Photo.TABLE_NAME + "/#", CODE_PHOTO_UPDATE);
-        sUriMatcher.addURI(AUTHORITY, User.TABLE_NAME + "/#", CODE_USER_UPDATE);
+        sUriPatterns = new SparseArray<>();
+        addUri(User.TABLE_NAME, CODE_USER);
+        addUri(Photo.TABLE_NAME, CODE_PHOTO);
+        addUri(Photo.TABLE_NAME + "/#", CODE_PHOTO_UPDATE);
+        addUri(User.TABLE_NAME + "/#", CODE_USER_UPDATE);
+        addUri(Photo.TABLE_NAME + "/" + ContentHelper.PATH_USER + "/#", CODE_PHOTO_USER);
+        addUri(Photo.TABLE_NAME + "/" + ContentHelper.PATH_CHECKED, CODE_PHOTO_CHECKED);
+    }
+
+    private static void addUri(String path, int code) {
+        sUriMatcher.addURI(AUTHORITY, path, code);
+        // patterns are metrics keys
+        sUriPatterns.put(code, path);
     }
 
 
     private DatabaseHelper mDatabaseHelper;
+    private PhotoStore mPhotoStore;
+    private CacheEvictor mEvictor;
+    private final ProviderMetrics mMetrics = new ProviderMetrics();
 
     public ContentProvider() {
     }
@@ -59,13 +142,16 @@ public class ContentProvider extends android.content.ContentProvider {
         SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
         //this method is not supposed to work with single entries.
         // calling this runs SQL_FLUSH
-        switch (sUriMatcher.match(uri)) {
+        final int code = sUriMatcher.match(uri);
+        final long started = ProviderMetrics.start();
+        switch (code) {
             case CODE_USER:
-                db.execSQL(User.SQL_FLUSH);
+                db.execSQL(User.SQL_FLUSH, new Object[]{User.expireLimit()});
+                mMetrics.record(sUriPatterns.get(code), started, 0);
                 return 1;
 
             case CODE_PHOTO:
-                db.execSQL(Photo.SQL_FLUSH);
+                mMetrics.record(sUriPatterns.get(code), started, mPhotoStore.flush());
                 return 1;
 
             default:
@@ -80,6 +166,8 @@ public class ContentProvider extends android.content.ContentProvider {
                 return "android.cursor.dir/" + AUTHORITY + User.TABLE_NAME;
 
             case CODE_PHOTO:
+            case CODE_PHOTO_USER:
+            case CODE_PHOTO_CHECKED:
                 return "android.cursor.dir/" + AUTHORITY + Photo.TABLE_NAME;
 
             default:
@@ -99,7 +187,7 @@ public class ContentProvider extends android.content.ContentProvider {
                 return ContentHelper.getUserUri(null);
 
             case CODE_PHOTO:
-                db.insert(Photo.TABLE_NAME, null, values);
+                mPhotoStore.insert(new ContentValues[]{values});
                 return ContentHelper.getPhotoUri(null);
 
             default:
@@ -110,24 +198,78 @@ public class ContentProvider extends android.content.ContentProvider {
     @Override
     public boolean onCreate() {
         mDatabaseHelper = new DatabaseHelper(getContext());
+        mPhotoStore = createPhotoStore();
+        mEvictor = new CacheEvictor(mDatabaseHelper, mPhotoStore);
+        final SharedPreferences preferences = getContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mEvictor.setBudget(preferences.getInt(PREFERENCE_MAX_ROWS, CacheEvictor.DEFAULT_MAX_ROWS),
+                preferences.getLong(PREFERENCE_MAX_BYTES, CacheEvictor.DEFAULT_MAX_BYTES));
         flush();
         return true;
     }
 
+    /**
+     * Stop eviction thread and close photo store.<br/>
+     * NOTICE: Android calls it only in unit tests, process is simply killed otherwise.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Override
+    public void shutdown() {
+        mEvictor.close();
+        mPhotoStore.close();
+        mDatabaseHelper.close();
+        super.shutdown();
+    }
+
+    /**
+     * Create photo backend chosen for this device
+     *
+     * @return photo store
+     */
+    private PhotoStore createPhotoStore() {
+        final Context context = getContext();
+        final String store = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .getString(PREFERENCE_PHOTO_STORE, STORE_SQLITE);
+        if (STORE_MAPPED.equals(store)) {
+            return new MappedPhotoStore(new File(context.getFilesDir(), MAPPED_STORE_DIRECTORY));
+        }
+        return new SQLitePhotoStore(mDatabaseHelper, mMetrics);
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
                         String[] selectionArgs, String sortOrder) {
         SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
-        switch (sUriMatcher.match(uri)) {
+        final int code = sUriMatcher.match(uri);
+        final long started = ProviderMetrics.start();
+        final Cursor cursor;
+        switch (code) {
             case CODE_USER:
-                return db.query(User.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                cursor = mMetrics.query(db, User.TABLE_NAME, projection, selection, selectionArgs, sortOrder);
+                //listing of all users is not an access, only search is
+                if (selection != null) {
+                    mEvictor.touchUsers(cursor);
+                }
+                break;
 
             case CODE_PHOTO:
-                return db.query(Photo.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                cursor = mPhotoStore.query(projection, selection, selectionArgs, sortOrder);
+                break;
+
+            case CODE_PHOTO_USER:
+                final long userId = ContentUris.parseId(uri);
+                cursor = mPhotoStore.queryByUser(projection, userId);
+                mEvictor.touchUser(userId);
+                break;
+
+            case CODE_PHOTO_CHECKED:
+                cursor = mPhotoStore.queryChecked(projection, 0);
+                break;
 
             default:
                 throw new UnsupportedOperationException(String.format("Incorrect uri [%s]", uri.toString()));
         }
+        mMetrics.record(sUriPatterns.get(code), started, cursor.getCount());
+        return cursor;
     }
 
     @Override
@@ -137,71 +279,187 @@ public class ContentProvider extends android.content.ContentProvider {
         if ( LOG_ALL ) {
             Log.v(LOG_TAG, "Uri = " + uri.toString() + " contentValues=" + values + " selection=" + selection + " selectionArgs=" + Arrays.toString(selectionArgs));
         }
-        switch (sUriMatcher.match(uri)) {
+        final int code = sUriMatcher.match(uri);
+        final long started = ProviderMetrics.start();
+        final int rows;
+        switch (code) {
             case CODE_USER:
-                return db.update(User.TABLE_NAME, values, selection, selectionArgs);
+            case CODE_USER_UPDATE:
+                rows = mMetrics.update(db, User.TABLE_NAME, values, selection, selectionArgs);
+                break;
 
             case CODE_PHOTO:
-                return db.update(Photo.TABLE_NAME, values, selection, selectionArgs);
-
-            case CODE_USER_UPDATE:
-                return db.update(User.TABLE_NAME, values, selection, selectionArgs);
+                //photo store does not handle custom selection, only all or one
+                if (selection != null) {
+                    throw new UnsupportedOperationException(String.format("Selection is not supported for [%s]", uri.toString()));
+                }
+                rows = mPhotoStore.update(-1, values);
+                break;
 
             case CODE_PHOTO_UPDATE:
-                return db.update(Photo.TABLE_NAME, values, selection, selectionArgs);
+                rows = mPhotoStore.update(ContentUris.parseId(uri), values);
+                break;
 
             default:
                 throw new UnsupportedOperationException(String.format("Incorrect uri [%s]", uri.toString()));
         }
+        mMetrics.record(sUriPatterns.get(code), started, rows);
+        return rows;
     }
 
     @Override
     public int bulkInsert(Uri uri, @NonNull ContentValues[] values) {
         SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
-        switch (sUriMatcher.match(uri)) {
+        final int code = sUriMatcher.match(uri);
+        final long started = ProviderMetrics.start();
+        final int rows;
+        switch (code) {
             case CODE_USER:
-                return bulkInsertInner(values, db, User.TABLE_NAME);
+                rows = bulkInsertInner(values, db, User.TABLE_NAME);
+                break;
 
             case CODE_PHOTO:
-                return bulkInsertInner(values, db, Photo.TABLE_NAME);
+                // photo store inserts whole array in single transaction too
+                rows = mPhotoStore.insert(values);
+                mMetrics.recordTransaction(started, rows);
+                break;
 
             default:
                 return super.bulkInsert(uri, values);
         }
+        mMetrics.record(sUriPatterns.get(code), started, rows);
+        mEvictor.schedule();
+        return rows;
     }
 
     private int bulkInsertInner(ContentValues[] values, SQLiteDatabase db, String tableName) {
-        int numInserted = 0;
+        final long started = ProviderMetrics.start();
+        final int rows = DatabaseHelper.insertAll(db, tableName, values);
+        mMetrics.recordTransaction(started, rows);
+        return rows;
+    }
+
+    /**
+     * Apply all operations in single sqlite transaction, if any operation fails nothing is written.<br/>
+     * NOTICE: {@link org.lastrix.collagemaker.app.content.MappedPhotoStore} writes are not rolled back.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        final long started = ProviderMetrics.start();
+        ContentProviderResult[] results;
         db.beginTransaction();
         try {
-            for (ContentValues v : values) {
-                db.insertOrThrow(tableName, null, v);
-                numInserted++;
-            }
+            results = super.applyBatch(operations);
             db.setTransactionSuccessful();
-        } catch (SQLException e) {
-            Log.e(LOG_TAG, LOG_MESSAGE_FAILED_SQL, e);
-            return 0;
         } finally {
             db.endTransaction();
         }
-        return numInserted;
+        mMetrics.recordTransaction(started, results.length);
+        return results;
     }
 
     @Override
     public Bundle call(String method, String arg, Bundle extras) {
         if (CALL_FLUSH.equals(method)) {
             return flush();
+        } else if (CALL_BENCHMARK.equals(method)) {
+            return benchmark(extras != null && extras.getBoolean(CALL_BENCHMARK_APPLY));
+        } else if (CALL_ENCODER_BENCHMARK.equals(method)) {
+            return new EncoderBenchmark(getContext()).run(extras != null
+                    ? extras.getInt(CALL_ENCODER_BENCHMARK_QUALITY, SaveImageTask.QUALITY_DEFAULT)
+                    : SaveImageTask.QUALITY_DEFAULT);
+        } else if (CALL_CHECKED_PHOTOS.equals(method)) {
+            return checkedPhotos(parseAfterId(arg));
+        } else if (CALL_CACHE_BUDGET.equals(method)) {
+            cacheBudget(extras);
+            return null;
+        } else if (CALL_METRICS.equals(method)) {
+            return mMetrics.toBundle();
+        } else if (CALL_METRICS_RESET.equals(method)) {
+            mMetrics.reset();
+            return null;
         }
         return null;
     }
 
+    /**
+     * Parse page key of {@link #CALL_CHECKED_PHOTOS}
+     *
+     * @param arg -- call argument
+     * @return photo id, 0 if missing
+     * @throws IllegalArgumentException if argument is not a non-negative number
+     */
+    private static long parseAfterId(String arg) {
+        if (arg == null) {
+            return 0;
+        }
+        final long afterId;
+        try {
+            afterId = Long.parseLong(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format(LOG_MESSAGE_INCORRECT_PAGE, arg));
+        }
+        if (afterId < 0) {
+            throw new IllegalArgumentException(String.format(LOG_MESSAGE_INCORRECT_PAGE, arg));
+        }
+        return afterId;
+    }
+
+    private Bundle checkedPhotos(long afterId) {
+        final long started = ProviderMetrics.start();
+        Cursor cursor = mPhotoStore.queryChecked(null, afterId);
+        final int rows;
+        Bundle bundle = new Bundle();
+        try {
+            bundle.putByteArray(CALL_CHECKED_PHOTOS_RESULT, Photo.pack(cursor, MAX_PACKED_BYTES));
+            rows = cursor.getPosition() + 1;
+            bundle.putLong(CALL_CHECKED_PHOTOS_NEXT, rows > 0 && rows < cursor.getCount()
+                    ? cursor.getLong(cursor.getColumnIndexOrThrow(Photo.COLUMN_ID)) : -1);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, LOG_MESSAGE_FAILED_PACK, e);
+            return null;
+        } finally {
+            cursor.close();
+        }
+        mMetrics.record(CALL_CHECKED_PHOTOS, started, rows);
+        return bundle;
+    }
+
+    private void cacheBudget(Bundle extras) {
+        final int maxRows = extras != null
+                ? extras.getInt(CALL_CACHE_BUDGET_MAX_ROWS, CacheEvictor.DEFAULT_MAX_ROWS)
+                : CacheEvictor.DEFAULT_MAX_ROWS;
+        final long maxBytes = extras != null
+                ? extras.getLong(CALL_CACHE_BUDGET_MAX_BYTES, CacheEvictor.DEFAULT_MAX_BYTES)
+                : CacheEvictor.DEFAULT_MAX_BYTES;
+        getContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putInt(PREFERENCE_MAX_ROWS, maxRows)
+                .putLong(PREFERENCE_MAX_BYTES, maxBytes)
+                .commit();
+        mEvictor.setBudget(maxRows, maxBytes);
+    }
+
+    private Bundle benchmark(boolean apply) {
+        Bundle bundle = new PhotoStoreBenchmark(getContext()).run();
+        if (apply) {
+            getContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                    .edit()
+                    .putString(PREFERENCE_PHOTO_STORE, bundle.getString(PhotoStoreBenchmark.RESULT_RECOMMENDED))
+                    .commit();
+        }
+        return bundle;
+    }
+
     private Bundle flush() {
         SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
         boolean failed = false;
         try {
-            db.execSQL(Photo.SQL_FLUSH);
-            db.execSQL(User.SQL_FLUSH);
+            mPhotoStore.flush();
+            db.execSQL(User.SQL_FLUSH, new Object[]{User.expireLimit()});
         } catch (SQLException e) {
             Log.e(LOG_TAG, LOG_MESSAGE_FAILED_SQL, e);
             failed = true;
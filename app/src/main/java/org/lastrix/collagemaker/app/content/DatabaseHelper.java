@@ -1,6 +1,8 @@
 package org.lastrix.collagemaker.app.content;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -16,7 +18,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String LOG_MESSAGE_FAILED_SQL = "Failed to execute sql.";
     private static final String LOG_TAG = DatabaseHelper.class.getSimpleName();
     private static final String DATABASE_NAME = "collage.sqlite";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 3;
+    private static final String SQL_PAGE_COUNT = "PRAGMA page_count;";
+    private static final String SQL_FREELIST_COUNT = "PRAGMA freelist_count;";
 
     /**
      * Create new database helper
@@ -24,7 +28,87 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * @param context -- the context
      */
     public DatabaseHelper(@NonNull Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Create new database helper for custom database file
+     *
+     * @param context -- the context
+     * @param name    -- database file name, or null for in-memory database
+     */
+    public DatabaseHelper(@NonNull Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    /**
+     * Insert all values in single transaction
+     *
+     * @param db        -- writable database
+     * @param tableName -- the table
+     * @param values    -- rows to insert
+     * @return number of inserted rows, 0 if transaction failed
+     */
+    static int insertAll(SQLiteDatabase db, String tableName, ContentValues[] values) {
+        int numInserted = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues v : values) {
+                db.insertOrThrow(tableName, null, v);
+                numInserted++;
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, LOG_MESSAGE_FAILED_SQL, e);
+            return 0;
+        } finally {
+            db.endTransaction();
+        }
+        return numInserted;
+    }
+
+    /**
+     * Build list of bind placeholders for IN operator
+     *
+     * @param count -- number of arguments
+     * @return string like (?, ?, ?)
+     */
+    static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 3 + 2);
+        sb.append('(');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append('?');
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Convert ids to selection arguments
+     *
+     * @param ids -- ids
+     * @return arguments
+     */
+    static String[] toArgs(long[] ids) {
+        String[] args = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            args[i] = Long.toString(ids[i]);
+        }
+        return args;
+    }
+
+    /**
+     * Return bytes occupied by live database pages
+     *
+     * @param db -- database
+     * @return bytes
+     */
+    static long usedBytes(SQLiteDatabase db) {
+        final long pages = DatabaseUtils.longForQuery(db, SQL_PAGE_COUNT, null)
+                - DatabaseUtils.longForQuery(db, SQL_FREELIST_COUNT, null);
+        return pages * db.getPageSize();
     }
 
     @Override
@@ -34,6 +118,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             //install schema
             db.execSQL(Photo.SQL_CREATE);
             db.execSQL(User.SQL_CREATE);
+            createIndices(db);
 
             db.setTransactionSuccessful();
         } catch (SQLException e) {
@@ -45,21 +130,41 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.beginTransaction();
+        //upgrade is already wrapped in transaction by SQLiteOpenHelper,
+        // nested one would poison it on failure and the fallback below would be lost.
         try {
-            //drop schema
-            db.execSQL(Photo.SQL_DROP);
-            db.execSQL(User.SQL_DROP);
+            //migrate step by step, cached data is preserved
+            if (oldVersion < 2) {
+                execAll(db, Photo.SQL_UPGRADE_V2);
+                execAll(db, User.SQL_UPGRADE_V2);
+            }
+            if (oldVersion < 3) {
+                execAll(db, User.SQL_UPGRADE_V3);
+            }
+            createIndices(db);
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, LOG_MESSAGE_FAILED_SQL, e);
 
-            //install new one
+            //it's only cache: drop schema and install new one
+            execAll(db, Photo.SQL_DROP_ALL);
+            execAll(db, User.SQL_DROP_ALL);
             db.execSQL(Photo.SQL_CREATE);
             db.execSQL(User.SQL_CREATE);
+            createIndices(db);
+        }
+    }
 
-            db.setTransactionSuccessful();
-        } catch (SQLException e) {
-            Log.e(LOG_TAG, LOG_MESSAGE_FAILED_SQL, e);
-        } finally {
-            db.endTransaction();
+    private static void createIndices(SQLiteDatabase db) {
+        db.execSQL(Photo.SQL_CREATE_INDEX_USER);
+        db.execSQL(Photo.SQL_CREATE_INDEX_CHECKED);
+        db.execSQL(Photo.SQL_CREATE_INDEX_STAMP);
+        db.execSQL(User.SQL_CREATE_INDEX_STAMP);
+        db.execSQL(User.SQL_CREATE_INDEX_ACCESSED);
+    }
+
+    private static void execAll(SQLiteDatabase db, String[] statements) {
+        for (String sql : statements) {
+            db.execSQL(sql);
         }
     }
 }
@@ -1,11 +1,15 @@
 package org.lastrix.collagemaker.app.content;
 
+import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.database.Cursor;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -13,13 +17,15 @@ import java.util.List;
 /**
  * Task for loading photos from database, only marked as 'checked' photos would be loaded,
  * all others would be ignored.<br/>
- * In order to receive data from this task use {@link org.lastrix.collagemaker.app.content.LoadPhotosTask.Listener} interface.
+ * In order to receive data from this task use {@link org.lastrix.collagemaker.app.content.LoadPhotosTask.Listener} interface.<br/>
+ * Since honeycomb photos are read in packed pages, see {@link org.lastrix.collagemaker.app.content.ContentProvider#CALL_CHECKED_PHOTOS}.
  * Created by lastrix on 8/25/14.
  */
 public class LoadPhotosTask extends AsyncTask<Void, Void, List<Photo>> {
 
     private static final String LOG_MESSAGE_EXCEPTION = "Exception:";
     private static final String LOG_TAG = LoadPhotosTask.class.getSimpleName();
+    private static final String MESSAGE_FAILED_PACKED = "Failed to load packed photos";
 
     private Listener mListener;
     private ContentResolver mContentResolver;
@@ -36,6 +42,9 @@ public class LoadPhotosTask extends AsyncTask<Void, Void, List<Photo>> {
     protected List<Photo> doInBackground(Void... params) {
         //do protected loading
         try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                return loadPacked();
+            }
             return load();
         } catch (Exception e) {
             Log.e(LOG_TAG, LOG_MESSAGE_EXCEPTION, e);
@@ -44,14 +53,33 @@ public class LoadPhotosTask extends AsyncTask<Void, Void, List<Photo>> {
         }
     }
 
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private List<Photo> loadPacked() throws IOException {
+        final List<Photo> photos = new ArrayList<Photo>();
+        long afterId = 0;
+        while (afterId >= 0 && !mCanceled) {
+            final Bundle bundle = mContentResolver.call(
+                    ContentHelper.getPhotoUri(null),
+                    ContentProvider.CALL_CHECKED_PHOTOS,
+                    Long.toString(afterId),
+                    null);
+            if (bundle == null) {
+                throw new IOException(MESSAGE_FAILED_PACKED);
+            }
+            photos.addAll(Photo.unpack(bundle.getByteArray(ContentProvider.CALL_CHECKED_PHOTOS_RESULT)));
+            afterId = bundle.getLong(ContentProvider.CALL_CHECKED_PHOTOS_NEXT, -1);
+        }
+        return photos;
+    }
+
     private List<Photo> load() {
         final List<Photo> photos = new LinkedList<Photo>();
         final Cursor cursor = mContentResolver.query(
-                ContentHelper.getPhotoUri(null),
+                ContentHelper.getCheckedPhotosUri(),
+                null,
                 null,
-                String.format("%s != 0 AND %s > datetime('now', '-%d hours')", Photo.COLUMN_CHECKED, Photo.COLUMN_TIMESTAMP, Photo.CACHE_EXPIRE),
                 null,
-                Photo.COLUMN_ID);
+                null);
 
         //if nothing found - just return false
         if (cursor == null || cursor.getCount() == 0) {
@@ -0,0 +1,1000 @@
+package org.lastrix.collagemaker.app.content;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Photo backend built on two memory-mapped files:<br/>
+ * <b>log</b> -- append-only list of fixed-width records, see {@link #RECORD_SIZE};<br/>
+ * <b>heap</b> -- interned urls, each url is stored only once and referenced by offset.<br/>
+ * Records are never moved on update: checked state and deletion mark are changed in place,
+ * deleted records are dropped by background compaction, see {@link #compact()}.
+ * Compaction writes next generation of both files, generation marker tells which pair is current.<br/>
+ * Every record is protected by checksum, if files are damaged the store keeps valid prefix
+ * and drops the rest, if headers are damaged the store starts from scratch - it's only cache.<br/>
+ * Only {@link #queryByUser(String[], long)} and {@link #queryChecked(String[], long)} are supported
+ * for reading, custom selections are not.
+ */
+class MappedPhotoStore implements PhotoStore {
+
+    private static final String LOG_TAG = MappedPhotoStore.class.getSimpleName();
+    private static final String LOG_MESSAGE_FAILED_OPEN = "Failed to open store, rebuilding.";
+    private static final String LOG_MESSAGE_FAILED_WRITE = "Failed to write store";
+    private static final String LOG_MESSAGE_FAILED_COMPACT = "Failed to compact store";
+    private static final String LOG_MESSAGE_FAILED_GENERATION = "Failed to read store generation";
+    private static final String LOG_MESSAGE_TRUNCATED = "Store damaged, %d of %d records recovered";
+    private static final String LOG_MESSAGE_UNSUPPORTED_SELECTION = "Mapped store does not support selection [%s]";
+    private static final String LOG_MESSAGE_UNSUPPORTED_COLUMN = "Mapped store does not support column [%s]";
+
+    static final String LOG_FILE_NAME = "photo.log";
+    static final String HEAP_FILE_NAME = "photo.heap";
+    static final String GENERATION_FILE_NAME = "photo.generation";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int LOG_MAGIC = 0x434d504c;
+    private static final int HEAP_MAGIC = 0x434d5048;
+    private static final int VERSION = 1;
+
+    // header: magic, version, record count, next id
+    private static final int LOG_HEADER_SIZE = 24;
+    private static final int LOG_HEADER_COUNT = 8;
+    private static final int LOG_HEADER_NEXT_ID = 12;
+    // header: magic, version, used bytes
+    private static final int HEAP_HEADER_SIZE = 12;
+    private static final int HEAP_HEADER_USED = 8;
+
+    static final int RECORD_SIZE = 48;
+    private static final int RECORD_ID = 0;
+    private static final int RECORD_USER_ID = 8;
+    private static final int RECORD_THUMBNAIL = 16;
+    private static final int RECORD_IMAGE = 20;
+    private static final int RECORD_LIKES = 24;
+    private static final int RECORD_FLAGS = 28;
+    private static final int RECORD_STAMP = 32;
+    private static final int RECORD_CHECKSUM = 40;
+
+    private static final int FLAG_CHECKED = 1;
+    private static final int FLAG_DELETED = 2;
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] ALL_COLUMNS = new String[]{
+            Photo.COLUMN_ID,
+            Photo.COLUMN_USER_ID,
+            Photo.COLUMN_THUMBNAIL_URL,
+            Photo.COLUMN_IMAGE_URL,
+            Photo.COLUMN_LIKES,
+            Photo.COLUMN_CHECKED,
+            Photo.COLUMN_TIMESTAMP
+    };
+
+    private final File mDirectory;
+    private final ExecutorService mCompactor = Executors.newSingleThreadExecutor();
+    private final CRC32 mCrc = new CRC32();
+
+    private MappedFile mLog;
+    private MappedFile mHeap;
+    private int mCount;
+    private int mDeleted;
+    private long mNextId;
+    private int mHeapUsed;
+    private boolean mCompacting;
+    private boolean mClosed;
+    private int mGeneration;
+
+    private final Map<Long, IntList> mUserIndex = new HashMap<Long, IntList>();
+    private final Map<String, Integer> mInterned = new HashMap<String, Integer>();
+    private final Map<Integer, String> mStrings = new HashMap<Integer, String>();
+
+    /**
+     * Open store in directory, files would be created if missing.
+     *
+     * @param directory -- store directory
+     */
+    MappedPhotoStore(@NonNull File directory) {
+        mDirectory = directory;
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IllegalStateException("Failed to create " + directory);
+        }
+        open();
+    }
+
+    private synchronized void open() {
+        mGeneration = readGeneration();
+        deleteStaleFiles();
+        try {
+            mLog = new MappedFile(logFile(mGeneration));
+            mHeap = new MappedFile(heapFile(mGeneration));
+            if (!load()) {
+                reset();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, LOG_MESSAGE_FAILED_OPEN, e);
+            closeFiles();
+            //noinspection ResultOfMethodCallIgnored
+            logFile(mGeneration).delete();
+            //noinspection ResultOfMethodCallIgnored
+            heapFile(mGeneration).delete();
+            try {
+                mLog = new MappedFile(logFile(mGeneration));
+                mHeap = new MappedFile(heapFile(mGeneration));
+                reset();
+            } catch (IOException e1) {
+                throw new IllegalStateException(LOG_MESSAGE_FAILED_OPEN, e1);
+            }
+        }
+    }
+
+    /**
+     * Read headers, validate records and build indices.
+     *
+     * @return false if headers are damaged
+     * @throws IOException
+     */
+    private boolean load() throws IOException {
+        if (mLog.length() < LOG_HEADER_SIZE || mHeap.length() < HEAP_HEADER_SIZE) {
+            return false;
+        }
+        mLog.map(mLog.length());
+        mHeap.map(mHeap.length());
+        ByteBuffer log = mLog.buffer;
+        ByteBuffer heap = mHeap.buffer;
+        if (log.getInt(0) != LOG_MAGIC || log.getInt(4) != VERSION
+                || heap.getInt(0) != HEAP_MAGIC || heap.getInt(4) != VERSION) {
+            return false;
+        }
+
+        //heap first: records are valid only if they point to valid heap entries
+        final int heapUsed = Math.min(heap.getInt(HEAP_HEADER_USED), heap.capacity());
+        int offset = HEAP_HEADER_SIZE;
+        while (offset + 4 <= heapUsed) {
+            final int length = heap.getInt(offset);
+            if (length < 0 || offset + 4 + length > heapUsed) {
+                break;
+            }
+            String value = readString(heap, offset, length);
+            mInterned.put(value, offset);
+            mStrings.put(offset, value);
+            offset += 4 + length;
+        }
+        mHeapUsed = offset;
+
+        final int count = log.getInt(LOG_HEADER_COUNT);
+        final int stored = Math.max(0, Math.min(count, (log.capacity() - LOG_HEADER_SIZE) / RECORD_SIZE));
+        long lastId = 0;
+        int valid = 0;
+        for (; valid < stored; valid++) {
+            final int position = recordPosition(valid);
+            final long id = log.getLong(position + RECORD_ID);
+            if (log.getInt(position + RECORD_CHECKSUM) != checksum(log, position)
+                    || id <= lastId
+                    || !mStrings.containsKey(log.getInt(position + RECORD_THUMBNAIL))
+                    || !mStrings.containsKey(log.getInt(position + RECORD_IMAGE))) {
+                break;
+            }
+            lastId = id;
+            if ((log.getInt(position + RECORD_FLAGS) & FLAG_DELETED) != 0) {
+                mDeleted++;
+            } else {
+                indexRecord(valid, log.getLong(position + RECORD_USER_ID));
+            }
+        }
+        mCount = valid;
+        mNextId = Math.max(log.getLong(LOG_HEADER_NEXT_ID), lastId + 1);
+        if (valid != count || mHeapUsed != heap.getInt(HEAP_HEADER_USED)) {
+            Log.w(LOG_TAG, String.format(LOG_MESSAGE_TRUNCATED, valid, count));
+            writeHeaders();
+        }
+        return true;
+    }
+
+    /**
+     * Drop everything and write empty headers
+     *
+     * @throws IOException
+     */
+    private void reset() throws IOException {
+        mUserIndex.clear();
+        mInterned.clear();
+        mStrings.clear();
+        mLog.map(INITIAL_CAPACITY);
+        mHeap.map(INITIAL_CAPACITY);
+        mLog.buffer.putInt(0, LOG_MAGIC);
+        mLog.buffer.putInt(4, VERSION);
+        mHeap.buffer.putInt(0, HEAP_MAGIC);
+        mHeap.buffer.putInt(4, VERSION);
+        mCount = 0;
+        mDeleted = 0;
+        mNextId = 1;
+        mHeapUsed = HEAP_HEADER_SIZE;
+        writeHeaders();
+    }
+
+    private void writeHeaders() {
+        mLog.buffer.putInt(LOG_HEADER_COUNT, mCount);
+        mLog.buffer.putLong(LOG_HEADER_NEXT_ID, mNextId);
+        mHeap.buffer.putInt(HEAP_HEADER_USED, mHeapUsed);
+    }
+
+    @Override
+    public Cursor query(String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        if (selection != null) {
+            throw new UnsupportedOperationException(String.format(LOG_MESSAGE_UNSUPPORTED_SELECTION, selection));
+        }
+        synchronized (this) {
+            final String[] columns = projection == null ? ALL_COLUMNS : projection;
+            MatrixCursor cursor = new MatrixCursor(columns, mCount - mDeleted);
+            for (int i = 0; i < mCount; i++) {
+                if (!isDeleted(i)) {
+                    addRow(cursor, columns, i);
+                }
+            }
+            return cursor;
+        }
+    }
+
+    @Override
+    public synchronized Cursor queryByUser(String[] projection, long userId) {
+        final String[] columns = projection == null ? ALL_COLUMNS : projection;
+        final IntList records = mUserIndex.get(userId);
+        if (records == null) {
+            return new MatrixCursor(columns, 0);
+        }
+        final long since = Photo.expireLimit();
+        MatrixCursor cursor = new MatrixCursor(columns, records.size);
+        for (int i = 0; i < records.size; i++) {
+            final int record = records.values[i];
+            if (!isDeleted(record) && stamp(record) > since) {
+                addRow(cursor, columns, record);
+            }
+        }
+        return cursor;
+    }
+
+    @Override
+    public synchronized Cursor queryChecked(String[] projection, long afterId) {
+        final String[] columns = projection == null ? ALL_COLUMNS : projection;
+        final long since = Photo.expireLimit();
+        MatrixCursor cursor = new MatrixCursor(columns);
+        for (int i = 0; i < mCount; i++) {
+            final int flags = mLog.buffer.getInt(recordPosition(i) + RECORD_FLAGS);
+            // ids grow with record index
+            if ((flags & FLAG_CHECKED) != 0 && (flags & FLAG_DELETED) == 0 && stamp(i) > since
+                    && mLog.buffer.getLong(recordPosition(i) + RECORD_ID) > afterId) {
+                addRow(cursor, columns, i);
+            }
+        }
+        return cursor;
+    }
+
+    @Override
+    public synchronized int insert(ContentValues[] values) {
+        final int count = mCount;
+        final int heapUsed = mHeapUsed;
+        final long nextId = mNextId;
+        final long now = System.currentTimeMillis();
+        try {
+            mLog.ensure(recordPosition(count + values.length));
+            for (ContentValues v : values) {
+                final Long id = v.getAsLong(Photo.COLUMN_ID);
+                if (id != null && id < mNextId) {
+                    throw new IllegalArgumentException("Photo id must be greater than " + mNextId);
+                }
+                final Long userId = v.getAsLong(Photo.COLUMN_USER_ID);
+                final String thumbnailUrl = v.getAsString(Photo.COLUMN_THUMBNAIL_URL);
+                final String imageUrl = v.getAsString(Photo.COLUMN_IMAGE_URL);
+                if (userId == null || thumbnailUrl == null || imageUrl == null) {
+                    throw new IllegalArgumentException("Incomplete photo " + v);
+                }
+                final Integer likes = v.getAsInteger(Photo.COLUMN_LIKES);
+                final Boolean checked = v.getAsBoolean(Photo.COLUMN_CHECKED);
+
+                final int position = recordPosition(mCount);
+                final ByteBuffer log = mLog.buffer;
+                mNextId = id != null ? id : mNextId;
+                log.putLong(position + RECORD_ID, mNextId++);
+                log.putLong(position + RECORD_USER_ID, userId);
+                log.putInt(position + RECORD_THUMBNAIL, intern(thumbnailUrl));
+                log.putInt(position + RECORD_IMAGE, intern(imageUrl));
+                log.putInt(position + RECORD_LIKES, likes != null ? likes : 0);
+                log.putInt(position + RECORD_FLAGS, checked != null && checked ? FLAG_CHECKED : 0);
+                log.putLong(position + RECORD_STAMP, now);
+                log.putInt(position + RECORD_CHECKSUM, checksum(log, position));
+                indexRecord(mCount, userId);
+                mCount++;
+            }
+            //header is the commit point
+            writeHeaders();
+            return values.length;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(LOG_TAG, LOG_MESSAGE_FAILED_WRITE, e);
+            rollback(count, heapUsed, nextId);
+            return 0;
+        }
+    }
+
+    /**
+     * Forget records and strings written after the given state
+     */
+    private void rollback(int count, int heapUsed, long nextId) {
+        for (int i = count; i < mCount; i++) {
+            unindexRecord(i, mLog.buffer.getLong(recordPosition(i) + RECORD_USER_ID));
+        }
+        for (int offset = heapUsed; offset < mHeapUsed; ) {
+            String value = mStrings.remove(offset);
+            mInterned.remove(value);
+            offset += 4 + mHeap.buffer.getInt(offset);
+        }
+        mCount = count;
+        mHeapUsed = heapUsed;
+        mNextId = nextId;
+        writeHeaders();
+    }
+
+    @Override
+    public synchronized int update(long id, ContentValues values) {
+        for (String key : values.keySet()) {
+            if (!Photo.COLUMN_CHECKED.equals(key)) {
+                throw new UnsupportedOperationException(String.format(LOG_MESSAGE_UNSUPPORTED_COLUMN, key));
+            }
+        }
+        final Boolean checked = values.getAsBoolean(Photo.COLUMN_CHECKED);
+        if (checked == null) {
+            return 0;
+        }
+        if (id != -1) {
+            final int record = find(id);
+            if (record == -1 || isDeleted(record)) {
+                return 0;
+            }
+            setChecked(record, checked);
+            return 1;
+        }
+        int updated = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (!isDeleted(i)) {
+                setChecked(i, checked);
+                updated++;
+            }
+        }
+        return updated;
+    }
+
+    @Override
+    public int flush() {
+        int removed = 0;
+        synchronized (this) {
+            final long before = Photo.expireLimit();
+            for (int i = 0; i < mCount; i++) {
+                if (!isDeleted(i) && stamp(i) <= before) {
+                    delete(i);
+                    removed++;
+                }
+            }
+            if (!startCompaction()) {
+                return removed;
+            }
+        }
+        compactLater();
+        return removed;
+    }
+
+    @Override
+    public int evictUsers(long[] userIds) {
+        int removed = 0;
+        synchronized (this) {
+            for (long userId : userIds) {
+                final IntList records = mUserIndex.get(userId);
+                if (records == null) {
+                    continue;
+                }
+                //delete() removes record from the list, walk backwards
+                for (int i = records.size - 1; i >= 0; i--) {
+                    final int record = records.values[i];
+                    if ((mLog.buffer.getInt(recordPosition(record) + RECORD_FLAGS) & FLAG_CHECKED) == 0) {
+                        delete(record);
+                        removed++;
+                    }
+                }
+            }
+            if (!startCompaction()) {
+                return removed;
+            }
+        }
+        compactLater();
+        return removed;
+    }
+
+    @Override
+    public synchronized Set<Long> checkedOwners() {
+        Set<Long> owners = new HashSet<Long>();
+        for (int i = 0; i < mCount; i++) {
+            final int position = recordPosition(i);
+            if ((mLog.buffer.getInt(position + RECORD_FLAGS) & (FLAG_CHECKED | FLAG_DELETED)) == FLAG_CHECKED) {
+                owners.add(mLog.buffer.getLong(position + RECORD_USER_ID));
+            }
+        }
+        return owners;
+    }
+
+    @Override
+    public synchronized int count() {
+        return mCount - mDeleted;
+    }
+
+    @Override
+    public synchronized long sizeBytes() {
+        return recordPosition(mCount) + mHeapUsed;
+    }
+
+    /**
+     * Mark compaction as started if enough records are deleted, must be called holding lock
+     *
+     * @return true if caller should run {@link #compactLater()}
+     */
+    private boolean startCompaction() {
+        if (mDeleted * 2 <= mCount || mCompacting) {
+            return false;
+        }
+        mCompacting = true;
+        return true;
+    }
+
+    private void compactLater() {
+        mCompactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        });
+    }
+
+    /**
+     * Rewrite files without deleted records and unreferenced strings.<br/>
+     * Executed on background thread, see {@link #flush()}. Lock is held only to copy current files
+     * into memory and to swap files: new generation is written and forced without it,
+     * changes made meanwhile are applied to new files right before swap.
+     * Generation marker is the commit point, see {@link #writeGeneration(int)}.
+     */
+    void compact() {
+        final byte[] logBytes;
+        final byte[] heapBytes;
+        final int generation;
+        synchronized (this) {
+            if (mClosed) {
+                mCompacting = false;
+                return;
+            }
+            generation = mGeneration + 1;
+            logBytes = new byte[recordPosition(mCount)];
+            mLog.buffer.position(0);
+            mLog.buffer.get(logBytes);
+            heapBytes = new byte[mHeapUsed];
+            mHeap.buffer.position(0);
+            mHeap.buffer.get(heapBytes);
+        }
+
+        final File logFile = logFile(generation);
+        final File heapFile = heapFile(generation);
+        boolean swapped = false;
+        Compaction compaction = null;
+        try {
+            compaction = new Compaction(new MappedFile(logFile), new MappedFile(heapFile),
+                    (logBytes.length - LOG_HEADER_SIZE) / RECORD_SIZE, logBytes.length, heapBytes.length);
+            final ByteBuffer log = ByteBuffer.wrap(logBytes);
+            final ByteBuffer heap = ByteBuffer.wrap(heapBytes);
+            for (int i = 0; i < compaction.moved.length; i++) {
+                final int position = recordPosition(i);
+                if ((log.getInt(position + RECORD_FLAGS) & FLAG_DELETED) != 0) {
+                    compaction.moved[i] = -1;
+                    continue;
+                }
+                compaction.moved[i] = compaction.copy(log, position,
+                        readString(heap, log.getInt(position + RECORD_THUMBNAIL)),
+                        readString(heap, log.getInt(position + RECORD_IMAGE)));
+            }
+            compaction.log.buffer.force();
+            compaction.heap.buffer.force();
+            synchronized (this) {
+                swapped = swap(compaction, generation);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, LOG_MESSAGE_FAILED_COMPACT, e);
+        } finally {
+            if (!swapped) {
+                if (compaction != null) {
+                    compaction.log.close();
+                    compaction.heap.close();
+                }
+                //noinspection ResultOfMethodCallIgnored
+                logFile.delete();
+                //noinspection ResultOfMethodCallIgnored
+                heapFile.delete();
+            }
+            synchronized (this) {
+                mCompacting = false;
+            }
+        }
+    }
+
+    /**
+     * Bring compacted files up to date, commit them and switch store to them, must be called holding lock
+     *
+     * @return false if store was closed meanwhile
+     * @throws IOException
+     */
+    private boolean swap(Compaction compaction, int generation) throws IOException {
+        if (mClosed) {
+            return false;
+        }
+        //checked and deleted flags are changed in place
+        for (int i = 0; i < compaction.moved.length; i++) {
+            final int to = compaction.moved[i];
+            if (to >= 0) {
+                compaction.log.buffer.putInt(recordPosition(to) + RECORD_FLAGS,
+                        mLog.buffer.getInt(recordPosition(i) + RECORD_FLAGS));
+            }
+        }
+        //records inserted meanwhile
+        for (int i = compaction.moved.length; i < mCount; i++) {
+            if (!isDeleted(i)) {
+                final int position = recordPosition(i);
+                compaction.copy(mLog.buffer, position,
+                        mStrings.get(mLog.buffer.getInt(position + RECORD_THUMBNAIL)),
+                        mStrings.get(mLog.buffer.getInt(position + RECORD_IMAGE)));
+            }
+        }
+        compaction.writeHeaders(mNextId);
+        compaction.log.buffer.force();
+        compaction.heap.buffer.force();
+        writeGeneration(generation);
+
+        final int previous = mGeneration;
+        closeFiles();
+        mLog = compaction.log;
+        mHeap = compaction.heap;
+        mGeneration = generation;
+        mCount = compaction.count;
+        mHeapUsed = compaction.heapUsed;
+        mInterned.clear();
+        mStrings.clear();
+        for (Map.Entry<String, Integer> entry : compaction.interned.entrySet()) {
+            mInterned.put(entry.getKey(), entry.getValue());
+            mStrings.put(entry.getValue(), entry.getKey());
+        }
+        mUserIndex.clear();
+        mDeleted = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (isDeleted(i)) {
+                mDeleted++;
+            } else {
+                indexRecord(i, mLog.buffer.getLong(recordPosition(i) + RECORD_USER_ID));
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        logFile(previous).delete();
+        //noinspection ResultOfMethodCallIgnored
+        heapFile(previous).delete();
+        return true;
+    }
+
+    /**
+     * Read generation of current files from marker, missing marker means first generation
+     *
+     * @return generation
+     */
+    private int readGeneration() {
+        final File file = new File(mDirectory, GENERATION_FILE_NAME);
+        if (!file.isFile()) {
+            return 0;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return Math.max(0, in.readInt());
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, LOG_MESSAGE_FAILED_GENERATION, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Atomically switch store to generation: marker is written aside, synced and renamed over old one.
+     * Crash before rename keeps previous generation, files of the other one are deleted on open.
+     *
+     * @param generation -- new generation
+     * @throws IOException
+     */
+    private void writeGeneration(int generation) throws IOException {
+        final File file = new File(mDirectory, GENERATION_FILE_NAME);
+        final File temp = new File(mDirectory, GENERATION_FILE_NAME + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            new DataOutputStream(out).writeInt(generation);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    private File logFile(int generation) {
+        return new File(mDirectory, generation == 0 ? LOG_FILE_NAME : LOG_FILE_NAME + "." + generation);
+    }
+
+    private File heapFile(int generation) {
+        return new File(mDirectory, generation == 0 ? HEAP_FILE_NAME : HEAP_FILE_NAME + "." + generation);
+    }
+
+    /**
+     * Delete files left by interrupted compaction
+     */
+    private void deleteStaleFiles() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final String log = logFile(mGeneration).getName();
+        final String heap = heapFile(mGeneration).getName();
+        for (File file : files) {
+            final String name = file.getName();
+            if ((name.startsWith(LOG_FILE_NAME) || name.startsWith(HEAP_FILE_NAME)) && !name.equals(log) && !name.equals(heap)
+                    || name.equals(GENERATION_FILE_NAME + TEMP_SUFFIX)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Delete all store files in directory, store must be closed
+     *
+     * @param directory -- store directory
+     */
+    static void deleteFiles(@NonNull File directory) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.startsWith(LOG_FILE_NAME) || name.startsWith(HEAP_FILE_NAME) || name.startsWith(GENERATION_FILE_NAME)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        mCompactor.shutdown();
+        if (mLog != null && mLog.buffer != null) {
+            mLog.buffer.force();
+            mHeap.buffer.force();
+        }
+        closeFiles();
+    }
+
+    private void closeFiles() {
+        if (mLog != null) mLog.close();
+        if (mHeap != null) mHeap.close();
+    }
+
+    /**
+     * Return string offset in heap, appending it if not interned yet.
+     *
+     * @param value -- the string
+     * @return offset
+     * @throws IOException
+     */
+    private int intern(String value) throws IOException {
+        Integer offset = mInterned.get(value);
+        if (offset != null) {
+            return offset;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        mHeap.ensure(mHeapUsed + 4 + bytes.length);
+        offset = mHeapUsed;
+        mHeap.buffer.putInt(offset, bytes.length);
+        mHeap.buffer.position(offset + 4);
+        mHeap.buffer.put(bytes);
+        mHeapUsed += 4 + bytes.length;
+        mInterned.put(value, offset);
+        mStrings.put(offset, value);
+        return offset;
+    }
+
+    /**
+     * Binary search record by id, ids grow monotonically along the log.
+     *
+     * @param id -- photo id
+     * @return record index or -1
+     */
+    private int find(long id) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final long value = mLog.buffer.getLong(recordPosition(middle) + RECORD_ID);
+            if (value < id) {
+                low = middle + 1;
+            } else if (value > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private void addRow(MatrixCursor cursor, String[] columns, int record) {
+        final ByteBuffer log = mLog.buffer;
+        final int position = recordPosition(record);
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            final String column = columns[i];
+            if (Photo.COLUMN_ID.equals(column)) {
+                row[i] = log.getLong(position + RECORD_ID);
+            } else if (Photo.COLUMN_USER_ID.equals(column)) {
+                row[i] = log.getLong(position + RECORD_USER_ID);
+            } else if (Photo.COLUMN_THUMBNAIL_URL.equals(column)) {
+                row[i] = mStrings.get(log.getInt(position + RECORD_THUMBNAIL));
+            } else if (Photo.COLUMN_IMAGE_URL.equals(column)) {
+                row[i] = mStrings.get(log.getInt(position + RECORD_IMAGE));
+            } else if (Photo.COLUMN_LIKES.equals(column)) {
+                row[i] = log.getInt(position + RECORD_LIKES);
+            } else if (Photo.COLUMN_CHECKED.equals(column)) {
+                row[i] = log.getInt(position + RECORD_FLAGS) & FLAG_CHECKED;
+            } else if (Photo.COLUMN_TIMESTAMP.equals(column)) {
+                row[i] = log.getLong(position + RECORD_STAMP);
+            } else {
+                throw new IllegalArgumentException(String.format(LOG_MESSAGE_UNSUPPORTED_COLUMN, column));
+            }
+        }
+        cursor.addRow(row);
+    }
+
+    private boolean isDeleted(int record) {
+        return (mLog.buffer.getInt(recordPosition(record) + RECORD_FLAGS) & FLAG_DELETED) != 0;
+    }
+
+    private long stamp(int record) {
+        return mLog.buffer.getLong(recordPosition(record) + RECORD_STAMP);
+    }
+
+    private void setChecked(int record, boolean checked) {
+        final int position = recordPosition(record) + RECORD_FLAGS;
+        final int flags = mLog.buffer.getInt(position);
+        mLog.buffer.putInt(position, checked ? flags | FLAG_CHECKED : flags & ~FLAG_CHECKED);
+    }
+
+    private void delete(int record) {
+        final int position = recordPosition(record);
+        mLog.buffer.putInt(position + RECORD_FLAGS, mLog.buffer.getInt(position + RECORD_FLAGS) | FLAG_DELETED);
+        unindexRecord(record, mLog.buffer.getLong(position + RECORD_USER_ID));
+        mDeleted++;
+    }
+
+    private void indexRecord(int record, long userId) {
+        IntList list = mUserIndex.get(userId);
+        if (list == null) {
+            list = new IntList();
+            mUserIndex.put(userId, list);
+        }
+        list.add(record);
+    }
+
+    private void unindexRecord(int record, long userId) {
+        IntList list = mUserIndex.get(userId);
+        if (list != null) {
+            list.remove(record);
+            if (list.size == 0) {
+                mUserIndex.remove(userId);
+            }
+        }
+    }
+
+    /**
+     * Checksum of immutable record fields, flags are excluded since they are changed in place.
+     */
+    private int checksum(ByteBuffer log, int position) {
+        return checksum(mCrc, log, position);
+    }
+
+    private static int checksum(CRC32 crc, ByteBuffer log, int position) {
+        crc.reset();
+        for (int i = 0; i < RECORD_FLAGS; i++) {
+            crc.update(log.get(position + i));
+        }
+        for (int i = RECORD_STAMP; i < RECORD_CHECKSUM; i++) {
+            crc.update(log.get(position + i));
+        }
+        return (int) crc.getValue();
+    }
+
+    private static int recordPosition(int record) {
+        return LOG_HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private static String readString(ByteBuffer heap, int offset) {
+        return readString(heap, offset, heap.getInt(offset));
+    }
+
+    private static String readString(ByteBuffer heap, int offset, int length) {
+        byte[] bytes = new byte[length];
+        heap.position(offset + 4);
+        heap.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Growable memory-mapped file
+     */
+    private static class MappedFile {
+        private final RandomAccessFile file;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+
+        private MappedFile(File file) throws IOException {
+            this.file = new RandomAccessFile(file, "rw");
+            this.channel = this.file.getChannel();
+        }
+
+        private long length() throws IOException {
+            return file.length();
+        }
+
+        private void map(long capacity) throws IOException {
+            if (file.length() < capacity) {
+                file.setLength(capacity);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, file.length()));
+        }
+
+        /**
+         * Make sure mapping is at least required bytes long, capacity grows twice.
+         */
+        private void ensure(int required) throws IOException {
+            if (buffer.capacity() < required) {
+                long capacity = buffer.capacity();
+                while (capacity < required) {
+                    capacity *= 2;
+                }
+                map(capacity);
+            }
+        }
+
+        private void close() {
+            try {
+                channel.close();
+                file.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, e);
+            }
+            channel = null;
+            buffer = null;
+        }
+    }
+
+    /**
+     * Next generation of store files being written by {@link #compact()}
+     */
+    private static class Compaction {
+        private final MappedFile log;
+        private final MappedFile heap;
+        // new index of record copied from snapshot, -1 if dropped
+        private final int[] moved;
+        private final Map<String, Integer> interned = new HashMap<String, Integer>();
+        private final CRC32 crc = new CRC32();
+        private final byte[] scratch = new byte[RECORD_SIZE];
+        private int count;
+        private int heapUsed = HEAP_HEADER_SIZE;
+
+        private Compaction(MappedFile log, MappedFile heap, int records, int logBytes, int heapBytes) throws IOException {
+            this.log = log;
+            this.heap = heap;
+            this.moved = new int[records];
+            log.map(Math.max(INITIAL_CAPACITY, logBytes));
+            heap.map(Math.max(INITIAL_CAPACITY, heapBytes));
+        }
+
+        /**
+         * Append record with its strings
+         *
+         * @return new record index
+         */
+        private int copy(ByteBuffer from, int position, String thumbnailUrl, String imageUrl) throws IOException {
+            final int to = recordPosition(count);
+            log.ensure(to + RECORD_SIZE);
+            from.position(position);
+            from.get(scratch);
+            log.buffer.position(to);
+            log.buffer.put(scratch);
+            log.buffer.putInt(to + RECORD_THUMBNAIL, intern(thumbnailUrl));
+            log.buffer.putInt(to + RECORD_IMAGE, intern(imageUrl));
+            log.buffer.putInt(to + RECORD_CHECKSUM, checksum(crc, log.buffer, to));
+            return count++;
+        }
+
+        private int intern(String value) throws IOException {
+            Integer offset = interned.get(value);
+            if (offset != null) {
+                return offset;
+            }
+            byte[] bytes = value.getBytes(UTF_8);
+            heap.ensure(heapUsed + 4 + bytes.length);
+            offset = heapUsed;
+            heap.buffer.putInt(offset, bytes.length);
+            heap.buffer.position(offset + 4);
+            heap.buffer.put(bytes);
+            heapUsed += 4 + bytes.length;
+            interned.put(value, offset);
+            return offset;
+        }
+
+        private void writeHeaders(long nextId) {
+            log.buffer.putInt(0, LOG_MAGIC);
+            log.buffer.putInt(4, VERSION);
+            log.buffer.putInt(LOG_HEADER_COUNT, count);
+            log.buffer.putLong(LOG_HEADER_NEXT_ID, nextId);
+            heap.buffer.putInt(0, HEAP_MAGIC);
+            heap.buffer.putInt(4, VERSION);
+            heap.buffer.putInt(HEAP_HEADER_USED, heapUsed);
+        }
+    }
+
+    /**
+     * Minimal growable list of primitive ints
+     */
+    private static class IntList {
+        private int[] values = new int[16];
+        private int size;
+
+        private void add(int value) {
+            if (size == values.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = value;
+        }
+
+        private void remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    System.arraycopy(values, i + 1, values, i, size - i - 1);
+                    size--;
+                    return;
+                }
+            }
+        }
+    }
+}
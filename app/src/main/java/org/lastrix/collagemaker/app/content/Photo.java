@@ -7,6 +7,15 @@ import android.support.annotation.NonNull;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Photo is object for storing info about image, data retrieved from instagram server.<br/>
  * Factory methods:<br/>
@@ -14,7 +23,11 @@ import org.json.JSONObject;
  * {@link #fromJson(User, org.json.JSONObject)}<br/>
  * <br/>
  * Easy database storing:<br/>
- * {@link #asContentValues()}
+ * {@link #asContentValues()}<br/>
+ * <br/>
+ * Packed binary form, used for bulk reads through {@link org.lastrix.collagemaker.app.content.ContentProvider#CALL_CHECKED_PHOTOS}:<br/>
+ * {@link #pack(android.database.Cursor, int)}<br/>
+ * {@link #unpack(byte[])}
  */
 public class Photo {
 
@@ -26,6 +39,7 @@ public class Photo {
     public final static String COLUMN_CHECKED = "checked";
     public final static String COLUMN_TIMESTAMP = "stamp";
     public final static int CACHE_EXPIRE = 12; //hours
+    public final static long CACHE_EXPIRE_MILLIS = CACHE_EXPIRE * 60L * 60L * 1000L;
     final static String TABLE_NAME = "photo";
     final static String SQL_CREATE = "CREATE TABLE " + TABLE_NAME + " ( " +
             COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
@@ -34,10 +48,41 @@ public class Photo {
             COLUMN_IMAGE_URL + " TEXT NOT NULL, " +
             COLUMN_LIKES + " INTEGER DEFAULT 0 NOT NULL, " +
             COLUMN_CHECKED + " INTEGER DEFAULT 0 NOT NULL, " +
-            COLUMN_TIMESTAMP + " DATETIME DEFAULT CURRENT_TIMESTAMP NOT NULL" +
+            COLUMN_TIMESTAMP + " INTEGER DEFAULT (strftime('%s', 'now') * 1000) NOT NULL" +
             ");";
+    // cache hit check by owner, see PopularPhotosTask
+    final static String SQL_CREATE_INDEX_USER = "CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_user_stamp ON " +
+            TABLE_NAME + " ( " + COLUMN_USER_ID + ", " + COLUMN_TIMESTAMP + " );";
+    // collage selection, see LoadPhotosTask
+    final static String SQL_CREATE_INDEX_CHECKED = "CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_checked_stamp ON " +
+            TABLE_NAME + " ( " + COLUMN_CHECKED + ", " + COLUMN_TIMESTAMP + " );";
+    // expiry scan, see SQL_FLUSH
+    final static String SQL_CREATE_INDEX_STAMP = "CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_stamp ON " +
+            TABLE_NAME + " ( " + COLUMN_TIMESTAMP + " );";
     final static String SQL_DROP = "DROP TABLE IF EXISTS " + TABLE_NAME + ";";
-    final static String SQL_FLUSH = "DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_TIMESTAMP + " <= datetime( 'now', '-" + CACHE_EXPIRE + " hours' );";
+    final static String[] SQL_DROP_ALL = new String[]{
+            SQL_DROP,
+            "DROP TABLE IF EXISTS " + TABLE_NAME + "_v1;"
+    };
+    /**
+     * Requires single argument: {@link #expireLimit()}
+     */
+    final static String SQL_FLUSH = "DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_TIMESTAMP + " <= ?;";
+    /**
+     * Converts version 1 table (DATETIME text stamps) to epoch milliseconds, keeping cached rows.
+     */
+    final static String[] SQL_UPGRADE_V2 = new String[]{
+            "ALTER TABLE " + TABLE_NAME + " RENAME TO " + TABLE_NAME + "_v1;",
+            SQL_CREATE,
+            "INSERT INTO " + TABLE_NAME + " ( " + COLUMN_ID + ", " + COLUMN_USER_ID + ", " + COLUMN_THUMBNAIL_URL + ", " +
+                    COLUMN_IMAGE_URL + ", " + COLUMN_LIKES + ", " + COLUMN_CHECKED + ", " + COLUMN_TIMESTAMP + " ) " +
+                    "SELECT " + COLUMN_ID + ", " + COLUMN_USER_ID + ", " + COLUMN_THUMBNAIL_URL + ", " +
+                    COLUMN_IMAGE_URL + ", " + COLUMN_LIKES + ", " + COLUMN_CHECKED + ", " +
+                    "CAST(strftime('%s', " + COLUMN_TIMESTAMP + ") AS INTEGER) * 1000 FROM " + TABLE_NAME + "_v1;",
+            "DROP TABLE " + TABLE_NAME + "_v1;"
+    };
+    // two urls of ~100 chars and fixed fields
+    private static final int PACKED_SIZE_HINT = 256;
     private static final String FIELD_IMAGES = "images";
     private static final String FIELD_IMAGES_THUMBNAIL = "thumbnail";
     private static final String FIELD_IMAGES_STANDARD_RESOLUTION = "standard_resolution";
@@ -82,6 +127,15 @@ public class Photo {
         this.mChecked = checked;
     }
 
+    /**
+     * Return oldest timestamp of not expired photo
+     *
+     * @return epoch milliseconds
+     */
+    public static long expireLimit() {
+        return System.currentTimeMillis() - CACHE_EXPIRE_MILLIS;
+    }
+
     /**
      * Construct photo from cursor object
      *
@@ -105,6 +159,67 @@ public class Photo {
         return new Photo(id, owner, thumbUrl, imageUrl, likes, checked);
     }
 
+    /**
+     * Pack cursor rows after current position into byte array, packing stops once maxBytes is reached,
+     * cursor is left at last packed row. At least one row is packed if there is any.<br/>
+     * Format: int count, then per photo: long id, int likes, boolean checked,
+     * utf thumbnail url, utf image url.
+     *
+     * @param cursor   -- photos cursor with all columns, it is not closed
+     * @param maxBytes -- size limit, exceeded by one photo at most
+     * @return packed photos
+     * @throws IOException
+     */
+    static byte[] pack(@NonNull Cursor cursor, int maxBytes) throws IOException {
+        final int id = cursor.getColumnIndexOrThrow(COLUMN_ID);
+        final int thumbUrl = cursor.getColumnIndexOrThrow(COLUMN_THUMBNAIL_URL);
+        final int imageUrl = cursor.getColumnIndexOrThrow(COLUMN_IMAGE_URL);
+        final int likes = cursor.getColumnIndexOrThrow(COLUMN_LIKES);
+        final int checked = cursor.getColumnIndexOrThrow(COLUMN_CHECKED);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                Math.min(maxBytes, PACKED_SIZE_HINT * (cursor.getCount() + 1)));
+        DataOutputStream out = new DataOutputStream(bytes);
+        // count is patched when page is done
+        out.writeInt(0);
+        int count = 0;
+        while (out.size() < maxBytes && cursor.moveToNext()) {
+            out.writeLong(cursor.getLong(id));
+            out.writeInt(cursor.getInt(likes));
+            out.writeBoolean(cursor.getLong(checked) != 0);
+            out.writeUTF(cursor.getString(thumbUrl));
+            out.writeUTF(cursor.getString(imageUrl));
+            count++;
+        }
+        out.flush();
+        final byte[] packed = bytes.toByteArray();
+        ByteBuffer.wrap(packed).putInt(0, count);
+        return packed;
+    }
+
+    /**
+     * Unpack photos packed by {@link #pack(android.database.Cursor, int)}, owners are not stored,
+     * same as {@link #fromCursor(User, android.database.Cursor)} with null owner.
+     *
+     * @param packed -- packed photos
+     * @return photos
+     * @throws IOException if data is damaged
+     */
+    static List<Photo> unpack(@NonNull byte[] packed) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed));
+        final int count = in.readInt();
+        List<Photo> photos = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final long id = in.readLong();
+            final int likes = in.readInt();
+            final boolean checked = in.readBoolean();
+            final String thumbUrl = in.readUTF();
+            final String imageUrl = in.readUTF();
+            photos.add(new Photo(id, null, thumbUrl, imageUrl, likes, checked));
+        }
+        return photos;
+    }
+
     /**
      * Construct photo from json document
      *
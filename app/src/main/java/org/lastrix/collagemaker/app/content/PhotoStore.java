@@ -0,0 +1,108 @@
+package org.lastrix.collagemaker.app.content;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import java.util.Set;
+
+/**
+ * Storage backend for {@link org.lastrix.collagemaker.app.content.Photo} table.<br/>
+ * {@link org.lastrix.collagemaker.app.content.ContentProvider} routes every photo request here,
+ * users are always stored in sqlite.<br/>
+ * Implementations:<br/>
+ * {@link org.lastrix.collagemaker.app.content.SQLitePhotoStore}<br/>
+ * {@link org.lastrix.collagemaker.app.content.MappedPhotoStore}<br/>
+ * All methods may be called from any thread.
+ */
+interface PhotoStore {
+
+    /**
+     * Query photos with custom selection.
+     *
+     * @param projection    -- columns or null for all
+     * @param selection     -- selection or null
+     * @param selectionArgs -- selection arguments
+     * @param sortOrder     -- sort order or null
+     * @return cursor
+     * @throws java.lang.UnsupportedOperationException if backend can not handle selection
+     */
+    Cursor query(String[] projection, String selection, String[] selectionArgs, String sortOrder);
+
+    /**
+     * Query not expired photos of user, ordered by id.
+     *
+     * @param projection -- columns or null for all
+     * @param userId     -- photos owner
+     * @return cursor
+     */
+    Cursor queryByUser(String[] projection, long userId);
+
+    /**
+     * Query not expired photos marked as checked, ordered by id.
+     *
+     * @param projection -- columns or null for all
+     * @param afterId    -- only photos with greater id are returned, 0 for all
+     * @return cursor
+     */
+    Cursor queryChecked(String[] projection, long afterId);
+
+    /**
+     * Insert photos
+     *
+     * @param values -- photos
+     * @return number of inserted photos, 0 if insertion failed
+     */
+    int insert(ContentValues[] values);
+
+    /**
+     * Update photo
+     *
+     * @param id     -- photo id or -1 to update all photos
+     * @param values -- new values
+     * @return number of updated photos
+     */
+    int update(long id, ContentValues values);
+
+    /**
+     * Remove obsolete photos, see {@link org.lastrix.collagemaker.app.content.Photo#CACHE_EXPIRE}
+     *
+     * @return number of removed photos
+     */
+    int flush();
+
+    /**
+     * Remove photos of evicted users, checked photos are kept.<br/>
+     * Called by {@link org.lastrix.collagemaker.app.content.CacheEvictor}.
+     *
+     * @param userIds -- owners
+     * @return number of removed photos
+     */
+    int evictUsers(long[] userIds);
+
+    /**
+     * Return owners of checked photos, expired photos included.<br/>
+     * Such users are not evicted, their checked photos would lose owner otherwise.
+     *
+     * @return user ids
+     */
+    Set<Long> checkedOwners();
+
+    /**
+     * Count stored photos
+     *
+     * @return number of photos
+     */
+    int count();
+
+    /**
+     * Return size of files owned by store, provider database is not included
+     *
+     * @return bytes
+     */
+    long sizeBytes();
+
+    /**
+     * Release resources
+     */
+    void close();
+}
@@ -0,0 +1,109 @@
+package org.lastrix.collagemaker.app.content;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Measures photo backends on current device: bulk insert and lookup by user throughput.<br/>
+ * Both stores are created in scratch files and removed afterwards, cached data is not touched.<br/>
+ * Use {@link org.lastrix.collagemaker.app.content.ContentProvider#CALL_BENCHMARK} to run it,
+ * never run it on main thread.
+ */
+class PhotoStoreBenchmark {
+
+    public static final String RESULT_SQLITE_INSERT = "sqlite_insert_ms";
+    public static final String RESULT_SQLITE_LOOKUP = "sqlite_lookup_ms";
+    public static final String RESULT_MAPPED_INSERT = "mapped_insert_ms";
+    public static final String RESULT_MAPPED_LOOKUP = "mapped_lookup_ms";
+    public static final String RESULT_RECOMMENDED = "recommended";
+
+    private static final String LOG_TAG = PhotoStoreBenchmark.class.getSimpleName();
+    private static final String DATABASE_NAME = "benchmark.sqlite";
+    private static final String DIRECTORY_NAME = "benchmark";
+    private static final String URL_TEMPLATE = "http://photos.example/%d/%d_%s.jpg";
+    private static final int USERS = 20;
+    private static final int PHOTOS_PER_USER = 150;
+    private static final int LOOKUP_ROUNDS = 5;
+
+    private final Context mContext;
+
+    PhotoStoreBenchmark(@NonNull Context context) {
+        this.mContext = context;
+    }
+
+    /**
+     * Run benchmark for both backends
+     *
+     * @return bundle with timings and recommended store name,
+     * see {@link org.lastrix.collagemaker.app.content.ContentProvider#STORE_SQLITE}
+     * and {@link org.lastrix.collagemaker.app.content.ContentProvider#STORE_MAPPED}
+     */
+    Bundle run() {
+        Bundle bundle = new Bundle();
+
+        DatabaseHelper helper = new DatabaseHelper(mContext, DATABASE_NAME);
+        try {
+            measure(new SQLitePhotoStore(helper, new ProviderMetrics()), bundle, RESULT_SQLITE_INSERT, RESULT_SQLITE_LOOKUP);
+        } finally {
+            helper.close();
+            mContext.deleteDatabase(DATABASE_NAME);
+        }
+
+        File directory = new File(mContext.getCacheDir(), DIRECTORY_NAME);
+        try {
+            measure(new MappedPhotoStore(directory), bundle, RESULT_MAPPED_INSERT, RESULT_MAPPED_LOOKUP);
+        } finally {
+            MappedPhotoStore.deleteFiles(directory);
+            //noinspection ResultOfMethodCallIgnored
+            directory.delete();
+        }
+
+        final long sqlite = bundle.getLong(RESULT_SQLITE_INSERT) + bundle.getLong(RESULT_SQLITE_LOOKUP);
+        final long mapped = bundle.getLong(RESULT_MAPPED_INSERT) + bundle.getLong(RESULT_MAPPED_LOOKUP);
+        bundle.putString(RESULT_RECOMMENDED, mapped < sqlite ? ContentProvider.STORE_MAPPED : ContentProvider.STORE_SQLITE);
+        Log.i(LOG_TAG, bundle.toString());
+        return bundle;
+    }
+
+    /**
+     * Insert photos user by user, as {@link org.lastrix.collagemaker.app.api.PopularPhotosTask} does,
+     * then read every user's photos several times.
+     */
+    private void measure(PhotoStore store, Bundle bundle, String insertKey, String lookupKey) {
+        try {
+            ContentValues[] values = new ContentValues[PHOTOS_PER_USER];
+            long started = SystemClock.elapsedRealtime();
+            for (int user = 1; user <= USERS; user++) {
+                for (int i = 0; i < PHOTOS_PER_USER; i++) {
+                    values[i] = new Photo(new User(user, "", "", "", false),
+                            String.format(URL_TEMPLATE, user, i, "s"),
+                            String.format(URL_TEMPLATE, user, i, "n"),
+                            i).asContentValues();
+                }
+                store.insert(values);
+            }
+            bundle.putLong(insertKey, SystemClock.elapsedRealtime() - started);
+
+            started = SystemClock.elapsedRealtime();
+            for (int round = 0; round < LOOKUP_ROUNDS; round++) {
+                for (int user = 1; user <= USERS; user++) {
+                    Cursor cursor = store.queryByUser(null, user);
+                    while (cursor.moveToNext()) {
+                        Photo.fromCursor(null, cursor);
+                    }
+                    cursor.close();
+                }
+            }
+            bundle.putLong(lookupKey, SystemClock.elapsedRealtime() - started);
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package org.lastrix.collagemaker.app.content;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import org.lastrix.collagemaker.app.BuildConfig;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects {@link org.lastrix.collagemaker.app.content.ContentProvider} statistics:
+ * latency histogram and number of rows per uri, transaction durations
+ * and slow statements log with query plan.<br/>
+ * Histogram bucket N holds calls that took less than 2^N microseconds, last bucket holds the rest.<br/>
+ * Sqlite does not report rows visited through android api, so slow entries only tell access path:
+ * full table scan with table size as upper bound of visited rows, or index search.<br/>
+ * Read it with {@link org.lastrix.collagemaker.app.content.ContentProvider#CALL_METRICS}.<br/>
+ * All methods may be called from any thread.
+ */
+public final class ProviderMetrics {
+
+    public static final String RESULT_URIS = "uris";
+    public static final String RESULT_TRANSACTIONS = "transactions";
+    public static final String RESULT_SLOW = "slow";
+    public static final String RESULT_FULL_SCANS = "full_scans";
+    public static final String RESULT_COUNT = "count";
+    public static final String RESULT_TOTAL_US = "total_us";
+    public static final String RESULT_MAX_US = "max_us";
+    public static final String RESULT_ROWS = "rows";
+    public static final String RESULT_HISTOGRAM = "histogram";
+
+    private static final String LOG_TAG = ProviderMetrics.class.getSimpleName();
+    private static final String LOG_MESSAGE_FAILED_EXPLAIN = "Failed to explain query";
+    private static final boolean LOG_ALL = BuildConfig.LOG_ALL;
+    private static final String SQL_EXPLAIN = "EXPLAIN QUERY PLAN ";
+    // "SCAN TABLE t" before sqlite 3.36, "SCAN t" since
+    private static final String PLAN_SCAN = "SCAN ";
+    private static final String PLAN_USING_INDEX = "USING INDEX";
+    private static final String PLAN_USING_COVERING_INDEX = "USING COVERING INDEX";
+    private static final String PLAN_SEPARATOR = "; ";
+    private static final String SLOW_ENTRY_FORMAT = "%d ms, %s, rows %d, %s, sql [%s], plan [%s]";
+    private static final String SLOW_ENTRY_FULL_SCAN = "full scan of %d rows table";
+    private static final String SLOW_ENTRY_INDEXED = "indexed";
+    private static final String[] COLUMNS_ROWID = {"rowid"};
+    // plan detail is the last column in every sqlite version
+    private static final int COLUMN_PLAN_DETAIL_FROM_END = 1;
+    private static final long SLOW_STATEMENT_NANOS = 30 * 1000000L;
+    private static final int SLOW_LOG_SIZE = 32;
+    private static final int HISTOGRAM_BUCKETS = 20;
+
+    private final Map<String, Series> mUris = new LinkedHashMap<>();
+    private final Series mTransactions = new Series();
+    private final String[] mSlowLog = new String[SLOW_LOG_SIZE];
+    private int mSlowLogNext;
+    private long mFullScans;
+
+    /**
+     * Start measurement
+     *
+     * @return start mark for {@link #record(String, long, int)}
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record provider call
+     *
+     * @param uri     -- uri pattern, used as key
+     * @param started -- value returned by {@link #start()}
+     * @param rows    -- rows returned or affected
+     */
+    public synchronized void record(@NonNull String uri, long started, int rows) {
+        Series series = mUris.get(uri);
+        if (series == null) {
+            series = new Series();
+            mUris.put(uri, series);
+        }
+        series.add(System.nanoTime() - started, rows);
+    }
+
+    /**
+     * Record write transaction
+     *
+     * @param started -- value returned by {@link #start()}
+     * @param rows    -- rows written
+     */
+    public synchronized void recordTransaction(long started, int rows) {
+        mTransactions.add(System.nanoTime() - started, rows);
+    }
+
+    /**
+     * Run query and measure it, slow queries are explained and logged.<br/>
+     * Cursor window is filled here, so execution time is counted too.
+     *
+     * @return cursor
+     */
+    public Cursor query(@NonNull SQLiteDatabase db, @NonNull String table, String[] projection,
+                        String selection, String[] selectionArgs, String sortOrder) {
+        final long started = start();
+        Cursor cursor = db.query(table, projection, selection, selectionArgs, null, null, sortOrder);
+        final int rows = cursor.getCount();
+        final long elapsed = System.nanoTime() - started;
+        if (elapsed >= SLOW_STATEMENT_NANOS) {
+            logSlow(db, table, elapsed, rows,
+                    SQLiteQueryBuilder.buildQueryString(false, table, projection, selection, null, null, sortOrder, null),
+                    selectionArgs);
+        }
+        return cursor;
+    }
+
+    /**
+     * Run update and measure it, slow updates are explained and logged.
+     *
+     * @return number of updated rows
+     */
+    public int update(@NonNull SQLiteDatabase db, @NonNull String table, ContentValues values,
+                      String selection, String[] selectionArgs) {
+        final long started = start();
+        final int rows = db.update(table, values, selection, selectionArgs);
+        final long elapsed = System.nanoTime() - started;
+        if (elapsed >= SLOW_STATEMENT_NANOS) {
+            // sqlite picks the same access path for update as for select with equal where clause
+            logSlow(db, table, elapsed, rows,
+                    SQLiteQueryBuilder.buildQueryString(false, table, COLUMNS_ROWID, selection, null, null, null, null),
+                    selectionArgs);
+        }
+        return rows;
+    }
+
+    private void logSlow(SQLiteDatabase db, String table, long elapsed, int rows, String sql, String[] selectionArgs) {
+        final String plan = explain(db, sql, selectionArgs);
+        final boolean fullScan = isFullScan(plan);
+        final String access = fullScan
+                ? String.format(SLOW_ENTRY_FULL_SCAN, DatabaseUtils.queryNumEntries(db, table))
+                : SLOW_ENTRY_INDEXED;
+        final String entry = String.format(SLOW_ENTRY_FORMAT, elapsed / 1000000L, table, rows, access, sql, plan);
+        Log.w(LOG_TAG, entry);
+        synchronized (this) {
+            if (fullScan) {
+                mFullScans++;
+            }
+            mSlowLog[mSlowLogNext] = entry;
+            mSlowLogNext = (mSlowLogNext + 1) % SLOW_LOG_SIZE;
+        }
+    }
+
+    /**
+     * Check whether any plan step reads whole table: scan which is not walking an index
+     *
+     * @param plan -- details joined by {@link #explain(SQLiteDatabase, String, String[])}
+     * @return true for full scan
+     */
+    private static boolean isFullScan(String plan) {
+        for (String detail : plan.split(PLAN_SEPARATOR)) {
+            final String step = detail.trim();
+            if (step.startsWith(PLAN_SCAN) && !step.contains(PLAN_USING_INDEX)
+                    && !step.contains(PLAN_USING_COVERING_INDEX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String explain(SQLiteDatabase db, String sql, String[] selectionArgs) {
+        StringBuilder sb = new StringBuilder();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(SQL_EXPLAIN + sql, selectionArgs);
+            final int detail = cursor.getColumnCount() - COLUMN_PLAN_DETAIL_FROM_END;
+            while (cursor.moveToNext()) {
+                if (sb.length() > 0) {
+                    sb.append(PLAN_SEPARATOR);
+                }
+                sb.append(cursor.getString(detail));
+            }
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, LOG_MESSAGE_FAILED_EXPLAIN, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Export collected statistics
+     *
+     * @return bundle, see RESULT_* keys
+     */
+    public synchronized Bundle toBundle() {
+        Bundle uris = new Bundle();
+        for (Map.Entry<String, Series> entry : mUris.entrySet()) {
+            uris.putBundle(entry.getKey(), entry.getValue().toBundle());
+        }
+        Bundle bundle = new Bundle();
+        bundle.putBundle(RESULT_URIS, uris);
+        bundle.putBundle(RESULT_TRANSACTIONS, mTransactions.toBundle());
+        bundle.putLong(RESULT_FULL_SCANS, mFullScans);
+
+        // oldest entries first
+        String[] slow = new String[SLOW_LOG_SIZE];
+        int count = 0;
+        for (int i = 0; i < SLOW_LOG_SIZE; i++) {
+            String entry = mSlowLog[(mSlowLogNext + i) % SLOW_LOG_SIZE];
+            if (entry != null) {
+                slow[count++] = entry;
+            }
+        }
+        bundle.putStringArray(RESULT_SLOW, Arrays.copyOf(slow, count));
+
+        if (LOG_ALL) {
+            Log.v(LOG_TAG, bundle.toString());
+        }
+        return bundle;
+    }
+
+    /**
+     * Drop all collected statistics
+     */
+    public synchronized void reset() {
+        mUris.clear();
+        mTransactions.reset();
+        Arrays.fill(mSlowLog, null);
+        mSlowLogNext = 0;
+        mFullScans = 0;
+    }
+
+    /**
+     * Latency histogram with totals
+     */
+    private static final class Series {
+        private final long[] mHistogram = new long[HISTOGRAM_BUCKETS];
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+        private long mRows;
+
+        void add(long nanos, int rows) {
+            final long micros = nanos / 1000L;
+            final int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            mHistogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)]++;
+            mCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+            mRows += rows;
+        }
+
+        void reset() {
+            Arrays.fill(mHistogram, 0);
+            mCount = 0;
+            mTotalNanos = 0;
+            mMaxNanos = 0;
+            mRows = 0;
+        }
+
+        Bundle toBundle() {
+            Bundle bundle = new Bundle();
+            bundle.putLong(RESULT_COUNT, mCount);
+            bundle.putLong(RESULT_TOTAL_US, mTotalNanos / 1000L);
+            bundle.putLong(RESULT_MAX_US, mMaxNanos / 1000L);
+            bundle.putLong(RESULT_ROWS, mRows);
+            bundle.putLongArray(RESULT_HISTOGRAM, mHistogram.clone());
+            return bundle;
+        }
+    }
+}
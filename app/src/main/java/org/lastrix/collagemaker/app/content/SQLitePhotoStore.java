@@ -0,0 +1,121 @@
+package org.lastrix.collagemaker.app.content;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Default photo backend, keeps photos in the same sqlite database as users.
+ */
+class SQLitePhotoStore implements PhotoStore {
+
+    // both conditions are range seeks over indices, see Photo.SQL_CREATE_INDEX_USER and Photo.SQL_CREATE_INDEX_CHECKED
+    private static final String WHERE_USER = String.format("%s = ? AND %s > ?",
+            Photo.COLUMN_USER_ID, Photo.COLUMN_TIMESTAMP);
+    private static final String WHERE_CHECKED = String.format("%s = 1 AND %s > ? AND %s > ?",
+            Photo.COLUMN_CHECKED, Photo.COLUMN_TIMESTAMP, Photo.COLUMN_ID);
+    private static final String SQL_CHANGES = "SELECT changes()";
+    private static final String WHERE_ID = String.format("%s = ?", Photo.COLUMN_ID);
+    private static final String WHERE_EVICT = String.format("%s = 0 AND %s IN ", Photo.COLUMN_CHECKED, Photo.COLUMN_USER_ID);
+    // range seek over Photo.SQL_CREATE_INDEX_CHECKED
+    private static final String WHERE_CHECKED_ANY = String.format("%s = 1", Photo.COLUMN_CHECKED);
+    private static final String[] COLUMNS_USER_ID = {Photo.COLUMN_USER_ID};
+
+    private final DatabaseHelper mDatabaseHelper;
+    private final ProviderMetrics mMetrics;
+
+    /**
+     * Create store
+     *
+     * @param databaseHelper -- database with photo table installed
+     * @param metrics        -- statistics receiver for slow statements
+     */
+    SQLitePhotoStore(@NonNull DatabaseHelper databaseHelper, @NonNull ProviderMetrics metrics) {
+        this.mDatabaseHelper = databaseHelper;
+        this.mMetrics = metrics;
+    }
+
+    @Override
+    public Cursor query(String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
+        return mMetrics.query(db, Photo.TABLE_NAME, projection, selection, selectionArgs, sortOrder);
+    }
+
+    @Override
+    public Cursor queryByUser(String[] projection, long userId) {
+        return query(projection, WHERE_USER,
+                new String[]{Long.toString(userId), Long.toString(Photo.expireLimit())},
+                Photo.COLUMN_ID);
+    }
+
+    @Override
+    public Cursor queryChecked(String[] projection, long afterId) {
+        return query(projection, WHERE_CHECKED,
+                new String[]{Long.toString(Photo.expireLimit()), Long.toString(afterId)},
+                Photo.COLUMN_ID);
+    }
+
+    @Override
+    public int insert(ContentValues[] values) {
+        return DatabaseHelper.insertAll(mDatabaseHelper.getWritableDatabase(), Photo.TABLE_NAME, values);
+    }
+
+    @Override
+    public int update(long id, ContentValues values) {
+        SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        if (id == -1) {
+            return mMetrics.update(db, Photo.TABLE_NAME, values, null, null);
+        }
+        return mMetrics.update(db, Photo.TABLE_NAME, values, WHERE_ID, new String[]{Long.toString(id)});
+    }
+
+    @Override
+    public int flush() {
+        SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        db.execSQL(Photo.SQL_FLUSH, new Object[]{Photo.expireLimit()});
+        return (int) DatabaseUtils.longForQuery(db, SQL_CHANGES, null);
+    }
+
+    @Override
+    public int evictUsers(long[] userIds) {
+        return mDatabaseHelper.getWritableDatabase().delete(Photo.TABLE_NAME,
+                WHERE_EVICT + DatabaseHelper.placeholders(userIds.length),
+                DatabaseHelper.toArgs(userIds));
+    }
+
+    @Override
+    public Set<Long> checkedOwners() {
+        Cursor cursor = mDatabaseHelper.getReadableDatabase().query(true, Photo.TABLE_NAME, COLUMNS_USER_ID,
+                WHERE_CHECKED_ANY, null, null, null, null, null);
+        try {
+            Set<Long> owners = new HashSet<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                owners.add(cursor.getLong(0));
+            }
+            return owners;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public int count() {
+        return (int) DatabaseUtils.queryNumEntries(mDatabaseHelper.getReadableDatabase(), Photo.TABLE_NAME);
+    }
+
+    @Override
+    public long sizeBytes() {
+        //table is a part of provider database
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        //database is owned by provider
+    }
+}
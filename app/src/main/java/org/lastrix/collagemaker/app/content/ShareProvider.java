@@ -0,0 +1,185 @@
+package org.lastrix.collagemaker.app.content;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.lastrix.collagemaker.app.task.SaveImageTask;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Streams shared bitmaps to receiving applications, nothing is written to storage.<br/>
+ * Register bitmap with {@link #share(android.graphics.Bitmap, android.graphics.Bitmap.CompressFormat, int)}
+ * and send returned uri with {@link android.content.Intent#FLAG_GRANT_READ_URI_PERMISSION}.
+ * Bitmap is encoded when receiver opens uri, bytes go through pipe while they are produced,
+ * so receiver reads while encoder works. Every open encodes bitmap again.<br/>
+ * Only last {@link #MAX_SHARES} bitmaps are kept, older uris can not be opened any more.
+ * Registry lives in memory, so uris die with process too.<br/>
+ * Pipes are not seekable and size is unknown before encoding, so {@link OpenableColumns#SIZE} is null.<br/>
+ * Use it only if {@link #isSupported()}: read permission reaches {@link android.content.Intent#EXTRA_STREAM}
+ * since jelly bean, where it is copied into clip data.
+ */
+public class ShareProvider extends android.content.ContentProvider {
+
+    public static final String AUTHORITY = "org.lastrix.collagemaker.app.share";
+    private static final String LOG_TAG = ShareProvider.class.getSimpleName();
+    private static final String LOG_MESSAGE_FAILED_ENCODE = "Failed to encode [%s]";
+    private static final String LOG_MESSAGE_FAILED_WRITE = "Receiver closed [%s]";
+    private static final String LOG_MESSAGE_UNSUPPORTED = "Unsupported operation";
+    private static final String[] DEFAULT_PROJECTION = {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+    private static final int MAX_SHARES = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Random sRandom = new Random();
+    // access order, eldest share is dropped
+    private static final Map<String, Share> sShares = new LinkedHashMap<String, Share>(MAX_SHARES + 1, 1f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Share> eldest) {
+            return size() > MAX_SHARES;
+        }
+    };
+
+    /**
+     * Check whether shares can be streamed on this device
+     *
+     * @return true if supported, save image with {@link SaveImageTask} otherwise
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    /**
+     * Register bitmap for sharing, bitmap must not be recycled while it is shared
+     *
+     * @param bmp     -- the bitmap
+     * @param format  -- format sent to receiver
+     * @param quality -- quality, ignored by PNG
+     * @return uri of encoded image
+     */
+    public static Uri share(@NonNull Bitmap bmp, @NonNull Bitmap.CompressFormat format, int quality) {
+        final String name;
+        synchronized (sShares) {
+            name = Long.toHexString(sRandom.nextLong()) + "." + SaveImageTask.getExtension(format);
+            sShares.put(name, new Share(bmp, format, quality));
+        }
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(AUTHORITY)
+                .appendPath(name)
+                .build();
+    }
+
+    private static Share get(Uri uri) {
+        synchronized (sShares) {
+            return sShares.get(uri.getLastPathSegment());
+        }
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        if (get(uri) == null) {
+            return null;
+        }
+        if (projection == null) {
+            projection = DEFAULT_PROJECTION;
+        }
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            if (OpenableColumns.DISPLAY_NAME.equals(projection[i])) {
+                row[i] = uri.getLastPathSegment();
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        Share share = get(uri);
+        return share == null ? null : SaveImageTask.getMimeType(share.mFormat);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        Share share = get(uri);
+        if (share == null || !"r".equals(mode)) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return openPipeHelper(uri, SaveImageTask.getMimeType(share.mFormat), null, share, new ShareWriter());
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException(LOG_MESSAGE_UNSUPPORTED);
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException(LOG_MESSAGE_UNSUPPORTED);
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException(LOG_MESSAGE_UNSUPPORTED);
+    }
+
+    /**
+     * Shared bitmap
+     */
+    private static class Share {
+        private final Bitmap mBitmap;
+        private final Bitmap.CompressFormat mFormat;
+        private final int mQuality;
+
+        private Share(Bitmap bitmap, Bitmap.CompressFormat format, int quality) {
+            this.mBitmap = bitmap;
+            this.mFormat = format;
+            this.mQuality = quality;
+        }
+    }
+
+    /**
+     * Encodes share into pipe on {@link android.os.AsyncTask} pool.
+     * Kept apart from provider, so older platforms never load it.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static class ShareWriter implements PipeDataWriter<Share> {
+        @Override
+        public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts, Share share) {
+            // stream does not own descriptor, pipe is closed by provider
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(output.getFileDescriptor()), BUFFER_SIZE);
+            try {
+                if (share.mBitmap.isRecycled() || !share.mBitmap.compress(share.mFormat, share.mQuality, os)) {
+                    Log.e(LOG_TAG, String.format(LOG_MESSAGE_FAILED_ENCODE, uri));
+                }
+                os.flush();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, String.format(LOG_MESSAGE_FAILED_WRITE, uri), e);
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import org.json.JSONObject;
 public class User {
 
     public final static int CACHE_EXPIRE = 48; //hours
+    public final static long CACHE_EXPIRE_MILLIS = CACHE_EXPIRE * 60L * 60L * 1000L;
 
     public final static String COLUMN_ID = BaseColumns._ID;
     public final static String COLUMN_NAME = "name";
@@ -31,6 +32,7 @@ public class User {
     public final static String COLUMN_PHOTO_URL = "photo_url";
     public final static String COLUMN_TIMESTAMP = "stamp";
     public final static String COLUMN_FAVORITE = "favorite";
+    public final static String COLUMN_ACCESSED = "accessed";
     public static final String DEFAULT_SORT = String.format("%s DESC, %s ASC", COLUMN_FAVORITE, COLUMN_NICK);
     static final String TABLE_NAME = "user";
     final static String SQL_CREATE = "CREATE TABLE " + TABLE_NAME + " ( " +
@@ -39,10 +41,53 @@ public class User {
             COLUMN_NICK + " TEXT NOT NULL, " +
             COLUMN_PHOTO_URL + " TEXT NOT NULL, " +
             COLUMN_FAVORITE + " INTEGER DEFAULT 0 NOT NULL, " +
-            COLUMN_TIMESTAMP + " DATETIME DEFAULT CURRENT_TIMESTAMP NOT NULL" +
+            COLUMN_TIMESTAMP + " INTEGER DEFAULT (strftime('%s', 'now') * 1000) NOT NULL, " +
+            COLUMN_ACCESSED + " INTEGER DEFAULT (strftime('%s', 'now') * 1000) NOT NULL" +
             ");";
+    // expiry scan, see SQL_FLUSH
+    final static String SQL_CREATE_INDEX_STAMP = "CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_stamp ON " +
+            TABLE_NAME + " ( " + COLUMN_TIMESTAMP + " );";
+    // least recently used scan, see CacheEvictor
+    final static String SQL_CREATE_INDEX_ACCESSED = "CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_favorite_accessed ON " +
+            TABLE_NAME + " ( " + COLUMN_FAVORITE + ", " + COLUMN_ACCESSED + " );";
     final static String SQL_DROP = "DROP TABLE IF EXISTS " + TABLE_NAME + ";";
-    final static String SQL_FLUSH = "DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_TIMESTAMP + " <= datetime( 'now', '-" + CACHE_EXPIRE + " hours' );";
+    final static String[] SQL_DROP_ALL = new String[]{
+            SQL_DROP,
+            "DROP TABLE IF EXISTS " + TABLE_NAME + "_v1;",
+            "DROP TABLE IF EXISTS " + TABLE_NAME + "_v2;"
+    };
+    /**
+     * Requires single argument: {@link #expireLimit()}.
+     */
+    final static String SQL_FLUSH = "DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_TIMESTAMP + " <= ?;";
+    /**
+     * Converts version 1 table (DATETIME text stamps) to epoch milliseconds, keeping cached rows.
+     */
+    final static String[] SQL_UPGRADE_V2 = new String[]{
+            "ALTER TABLE " + TABLE_NAME + " RENAME TO " + TABLE_NAME + "_v1;",
+            SQL_CREATE,
+            "INSERT INTO " + TABLE_NAME + " ( " + COLUMN_ID + ", " + COLUMN_NAME + ", " + COLUMN_NICK + ", " +
+                    COLUMN_PHOTO_URL + ", " + COLUMN_FAVORITE + ", " + COLUMN_TIMESTAMP + " ) " +
+                    "SELECT " + COLUMN_ID + ", " + COLUMN_NAME + ", " + COLUMN_NICK + ", " +
+                    COLUMN_PHOTO_URL + ", " + COLUMN_FAVORITE + ", " +
+                    "CAST(strftime('%s', " + COLUMN_TIMESTAMP + ") AS INTEGER) * 1000 FROM " + TABLE_NAME + "_v1;",
+            "DROP TABLE " + TABLE_NAME + "_v1;"
+    };
+    /**
+     * Adds access time column, it starts from insertion time.<br/>
+     * Renamed table keeps its indices, so they are dropped first and recreated by DatabaseHelper.
+     */
+    final static String[] SQL_UPGRADE_V3 = new String[]{
+            "DROP INDEX IF EXISTS " + TABLE_NAME + "_stamp;",
+            "ALTER TABLE " + TABLE_NAME + " RENAME TO " + TABLE_NAME + "_v2;",
+            SQL_CREATE,
+            "INSERT INTO " + TABLE_NAME + " ( " + COLUMN_ID + ", " + COLUMN_NAME + ", " + COLUMN_NICK + ", " +
+                    COLUMN_PHOTO_URL + ", " + COLUMN_FAVORITE + ", " + COLUMN_TIMESTAMP + ", " + COLUMN_ACCESSED + " ) " +
+                    "SELECT " + COLUMN_ID + ", " + COLUMN_NAME + ", " + COLUMN_NICK + ", " +
+                    COLUMN_PHOTO_URL + ", " + COLUMN_FAVORITE + ", " + COLUMN_TIMESTAMP + ", " + COLUMN_TIMESTAMP +
+                    " FROM " + TABLE_NAME + "_v2;",
+            "DROP TABLE " + TABLE_NAME + "_v2;"
+    };
     private static final String FIELD_ID = "id";
     private static final String FIELD_NAME = "full_name";
     private static final String FIELD_USERNAME = "username";
@@ -71,6 +116,15 @@ public class User {
         this.mFavorite = favorite;
     }
 
+    /**
+     * Return oldest timestamp of not expired user
+     *
+     * @return epoch milliseconds
+     */
+    public static long expireLimit() {
+        return System.currentTimeMillis() - CACHE_EXPIRE_MILLIS;
+    }
+
     /**
      * Fetch user object from its json representation
      *
@@ -0,0 +1,150 @@
+package org.lastrix.collagemaker.app.gfx;
+
+import android.graphics.Bitmap;
+import android.opengl.GLUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.opengl.GLES20.*;
+
+/**
+ * Packs small RGB565 bitmaps (thumbnails) into shared texture pages, so entities sharing a page
+ * are drawn with single draw call, see {@link GFXBatch}.<br/>
+ * Pages are filled shelf by shelf, single region is never freed: pages are deleted all at once with
+ * {@link #clear()} when scene is cleared. Page memory is accounted as a whole, see {@link #getByteCount()}.<br/>
+ * Use this class only from GL thread.
+ */
+class GFXAtlas {
+
+    private static final int PAGE_SIZE = 1024;
+    // keeps linear filtering of neighbour regions apart
+    private static final int GUTTER = 2;
+    private static final int PIXEL_SIZE = 2;
+
+    private final List<Page> mPages = new ArrayList<>();
+    private int mPageSize = PAGE_SIZE;
+
+    /**
+     * Read texture size limit of current context, call it after surface creation.
+     * Pages of previous context are forgotten.
+     */
+    void init() {
+        int[] maxSize = new int[1];
+        glGetIntegerv(GL_MAX_TEXTURE_SIZE, maxSize, 0);
+        mPageSize = Math.min(PAGE_SIZE, maxSize[0]);
+        mPages.clear();
+    }
+
+    /**
+     * Upload bitmap into atlas
+     *
+     * @param bmp -- the bitmap
+     * @return region or null if bitmap does not fit page or is not RGB565
+     */
+    Region add(Bitmap bmp) {
+        final int width = bmp.getWidth();
+        final int height = bmp.getHeight();
+        // sub image upload must match page format
+        if (bmp.getConfig() != Bitmap.Config.RGB_565 || width + GUTTER > mPageSize || height + GUTTER > mPageSize) {
+            return null;
+        }
+        Page page = mPages.isEmpty() ? null : mPages.get(mPages.size() - 1);
+        if (page == null || !page.fit(width + GUTTER, height + GUTTER, mPageSize)) {
+            page = new Page(mPageSize);
+            mPages.add(page);
+            page.fit(width + GUTTER, height + GUTTER, mPageSize);
+        }
+        glBindTexture(GL_TEXTURE_2D, page.mTextureId);
+        GLUtils.texSubImage2D(GL_TEXTURE_2D, 0, page.mX, page.mY, bmp);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        // sample texel centers only
+        final float size = mPageSize;
+        final Region region = new Region(page.mTextureId,
+                (page.mX + 0.5f) / size, (page.mY + 0.5f) / size,
+                (page.mX + width - 0.5f) / size, (page.mY + height - 0.5f) / size);
+        page.mX += width + GUTTER;
+        return region;
+    }
+
+    /**
+     * Return GPU memory taken by all pages
+     *
+     * @return bytes
+     */
+    long getByteCount() {
+        return (long) mPages.size() * mPageSize * mPageSize * PIXEL_SIZE;
+    }
+
+    /**
+     * Delete all pages
+     */
+    void clear() {
+        int[] textures = new int[mPages.size()];
+        for (int i = 0; i < textures.length; i++) {
+            textures[i] = mPages.get(i).mTextureId;
+        }
+        if (textures.length > 0) {
+            glDeleteTextures(textures.length, textures, 0);
+        }
+        mPages.clear();
+    }
+
+    /**
+     * Allocated part of page
+     */
+    static final class Region {
+        final int textureId;
+        final float u0, v0, u1, v1;
+
+        private Region(int textureId, float u0, float v0, float u1, float v1) {
+            this.textureId = textureId;
+            this.u0 = u0;
+            this.v0 = v0;
+            this.u1 = u1;
+            this.v1 = v1;
+        }
+    }
+
+    /**
+     * Page texture with shelf packing state
+     */
+    private static final class Page {
+        private final int mTextureId;
+        private int mX;
+        private int mY;
+        private int mShelfHeight;
+
+        private Page(int size) {
+            int tex[] = new int[1];
+            glGenTextures(1, tex, 0);
+            mTextureId = tex[0];
+            glBindTexture(GL_TEXTURE_2D, mTextureId);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+            glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, size, size, 0, GL_RGB, GL_UNSIGNED_SHORT_5_6_5, null);
+            glBindTexture(GL_TEXTURE_2D, 0);
+        }
+
+        /**
+         * Move cursor to place where region fits, opening new shelf if needed
+         *
+         * @return false if page is full
+         */
+        private boolean fit(int width, int height, int size) {
+            if (mX + width > size) {
+                mX = 0;
+                mY += mShelfHeight;
+                mShelfHeight = 0;
+            }
+            if (mY + height > size) {
+                return false;
+            }
+            mShelfHeight = Math.max(mShelfHeight, height);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.lastrix.collagemaker.app.gfx;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static android.opengl.GLES20.*;
+
+/**
+ * Draws whole scene with one draw call per texture.<br/>
+ * Entity quads are written as unit corners with entity transform into single dynamic vertex buffer,
+ * transform and world matrix are applied in vertex shader, see {@link GFXEntity#getTransform(float[], int)}. Quads are sorted by texture (thumbnails share {@link GFXAtlas} pages),
+ * draw order is kept by depth test: each entity gets its own depth by position in draw order.<br/>
+ * Entities outside visible area are culled before anything is written.<br/>
+ * Surface must have depth buffer. Call {@link #init()} after surface creation.<br/>
+ * Use this class only from GL thread.
+ */
+class GFXBatch {
+
+    static final String SHADER_VERTEX =
+            "        uniform mat4 uWorld;\n" +
+                    "        attribute vec3 aPosition;\n" +
+                    "        attribute vec4 aTransform;\n" +
+                    "        attribute vec2 a_texCoord;\n" +
+                    "        varying vec2 v_texCoord;\n" +
+                    "\n" +
+                    "        void main() {\n" +
+                    "        gl_Position = uWorld * vec4(aPosition.xy * aTransform.zw + aTransform.xy, 0.0, 1.0);\n" +
+                    "        gl_Position.z = aPosition.z;\n" +
+                    "        v_texCoord = a_texCoord;\n" +
+                    "        }\n";
+
+    private static final String LOG_TAG = GFXBatch.class.getSimpleName();
+    // corner and depth, transform, texture coordinates
+    private static final int FLOATS_PER_VERTEX = 9;
+    private static final int VERTICES_PER_QUAD = 4;
+    private static final int INDICES_PER_QUAD = 6;
+    private static final int FLOATS_PER_QUAD = FLOATS_PER_VERTEX * VERTICES_PER_QUAD;
+    private static final int STRIDE = FLOATS_PER_VERTEX * 4;
+    // short indices address 65536 vertices
+    private static final int MAX_QUADS = 65536 / VERTICES_PER_QUAD;
+    private static final int INITIAL_QUADS = 64;
+    // depth range used by entities, top entity is nearest
+    private static final float DEPTH_FAR = 0.99f;
+    private static final float DEPTH_NEAR = -0.99f;
+
+    private int mProgram;
+    private int mPositionHandle;
+    private int mTransformHandle;
+    private int mTexCoordHandle;
+    private int mWorldHandle;
+    private int mSamplerHandle;
+    private int mVertexBufferId;
+    private int mIndexBufferId;
+    private int mCapacity;
+    private float[] mVertices;
+    private FloatBuffer mVertexBuffer;
+    private GFXEntity[] mEntities = new GFXEntity[INITIAL_QUADS];
+    private long[] mKeys = new long[INITIAL_QUADS];
+
+    /**
+     * Create program and buffers in current context, objects of previous context are forgotten
+     *
+     * @return true if success
+     */
+    boolean init() {
+        final int vertexShader = GFXResource.loadShader(GL_VERTEX_SHADER, SHADER_VERTEX);
+        final int fragmentShader = GFXResource.loadShader(GL_FRAGMENT_SHADER, GFXResource.SHADER_TEXTURE);
+        mProgram = glCreateProgram();
+        glAttachShader(mProgram, vertexShader);
+        glAttachShader(mProgram, fragmentShader);
+        glLinkProgram(mProgram);
+        // program keeps shaders alive
+        glDeleteShader(vertexShader);
+        glDeleteShader(fragmentShader);
+
+        int[] status = new int[1];
+        glGetProgramiv(mProgram, GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.e(LOG_TAG, "Failed to link program.");
+            glDeleteProgram(mProgram);
+            mProgram = 0;
+            return false;
+        }
+        mPositionHandle = glGetAttribLocation(mProgram, "aPosition");
+        mTransformHandle = glGetAttribLocation(mProgram, "aTransform");
+        mTexCoordHandle = glGetAttribLocation(mProgram, "a_texCoord");
+        mWorldHandle = glGetUniformLocation(mProgram, "uWorld");
+        mSamplerHandle = glGetUniformLocation(mProgram, "s_texture");
+
+        int[] buffers = new int[2];
+        glGenBuffers(2, buffers, 0);
+        mVertexBufferId = buffers[0];
+        mIndexBufferId = buffers[1];
+        mCapacity = 0;
+        ensureCapacity(INITIAL_QUADS);
+        return true;
+    }
+
+    /**
+     * Delete program and buffers
+     */
+    void destroy() {
+        glDeleteProgram(mProgram);
+        glDeleteBuffers(2, new int[]{mVertexBufferId, mIndexBufferId}, 0);
+        mProgram = 0;
+        mVertexBufferId = 0;
+        mIndexBufferId = 0;
+        mCapacity = 0;
+    }
+
+    /**
+     * Draw entities intersecting visible area
+     *
+     * @param drawOrder -- entities, bottom first
+     * @param world     -- world matrix
+     * @param area      -- visible area: left, right, bottom, top, see {@link GFXResource#getVisibleArea(float[])}
+     * @return number of drawn entities
+     */
+    int draw(Collection<GFXEntity> drawOrder, float[] world, float[] area) {
+        if (drawOrder.isEmpty() || mProgram == 0) {
+            return 0;
+        }
+        ensureCapacity(Math.min(drawOrder.size(), MAX_QUADS));
+
+        // key: texture id, then position in draw order
+        int count = 0;
+        for (GFXEntity entity : drawOrder) {
+            if (count == MAX_QUADS) {
+                break;
+            }
+            if (!entity.intersects(area[0], area[1], area[2], area[3])) {
+                continue;
+            }
+            mEntities[count] = entity;
+            mKeys[count] = ((long) entity.getTextureId() << 32) | count;
+            count++;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(mKeys, 0, count);
+
+        final float step = (DEPTH_FAR - DEPTH_NEAR) / count;
+        int offset = 0;
+        int i;
+        for (i = 0; i < count; i++) {
+            final int order = (int) mKeys[i];
+            offset = mEntities[order].writeQuad(mVertices, offset, DEPTH_FAR - step * order);
+        }
+        mVertexBuffer.position(0);
+        mVertexBuffer.put(mVertices, 0, offset);
+        mVertexBuffer.position(0);
+
+        glEnable(GL_DEPTH_TEST);
+        glDepthFunc(GL_LESS);
+        glUseProgram(mProgram);
+        glUniformMatrix4fv(mWorldHandle, 1, false, world, 0);
+        glUniform1i(mSamplerHandle, 0);
+
+        glBindBuffer(GL_ARRAY_BUFFER, mVertexBufferId);
+        // new storage every frame, driver does not wait for previous frame
+        glBufferData(GL_ARRAY_BUFFER, mCapacity * FLOATS_PER_QUAD * 4, null, GL_DYNAMIC_DRAW);
+        glBufferSubData(GL_ARRAY_BUFFER, 0, offset * 4, mVertexBuffer);
+        glEnableVertexAttribArray(mPositionHandle);
+        glVertexAttribPointer(mPositionHandle, 3, GL_FLOAT, false, STRIDE, 0);
+        glEnableVertexAttribArray(mTransformHandle);
+        glVertexAttribPointer(mTransformHandle, 4, GL_FLOAT, false, STRIDE, 3 * 4);
+        glEnableVertexAttribArray(mTexCoordHandle);
+        glVertexAttribPointer(mTexCoordHandle, 2, GL_FLOAT, false, STRIDE, 7 * 4);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId);
+
+        int start = 0;
+        for (i = 1; i <= count; i++) {
+            final int texture = (int) (mKeys[start] >>> 32);
+            if (i == count || (int) (mKeys[i] >>> 32) != texture) {
+                glBindTexture(GL_TEXTURE_2D, texture);
+                glDrawElements(GL_TRIANGLES, (i - start) * INDICES_PER_QUAD, GL_UNSIGNED_SHORT,
+                        start * INDICES_PER_QUAD * 2);
+                start = i;
+            }
+        }
+
+        glDisableVertexAttribArray(mPositionHandle);
+        glDisableVertexAttribArray(mTransformHandle);
+        glDisableVertexAttribArray(mTexCoordHandle);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        glUseProgram(0);
+        glDisable(GL_DEPTH_TEST);
+        Arrays.fill(mEntities, 0, count, null);
+        return count;
+    }
+
+    /**
+     * Grow client arrays and index buffer, indices are static: two triangles per quad
+     */
+    private void ensureCapacity(int quads) {
+        if (quads <= mCapacity) {
+            return;
+        }
+        int capacity = Math.max(INITIAL_QUADS, mCapacity);
+        while (capacity < quads) {
+            capacity *= 2;
+        }
+        capacity = Math.min(capacity, MAX_QUADS);
+
+        mVertices = new float[capacity * FLOATS_PER_QUAD];
+        mVertexBuffer = ByteBuffer.allocateDirect(mVertices.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        if (mEntities.length < capacity) {
+            mEntities = new GFXEntity[capacity];
+            mKeys = new long[capacity];
+        }
+
+        ShortBuffer indices = ByteBuffer.allocateDirect(capacity * INDICES_PER_QUAD * 2)
+                .order(ByteOrder.nativeOrder()).asShortBuffer();
+        for (int quad = 0; quad < capacity; quad++) {
+            final int base = quad * VERTICES_PER_QUAD;
+            for (short index : GFXResource.TILE_ORDER) {
+                indices.put((short) (base + index));
+            }
+        }
+        indices.position(0);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, capacity * INDICES_PER_QUAD * 2, indices, GL_STATIC_DRAW);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+        mCapacity = capacity;
+    }
+}
@@ -0,0 +1,192 @@
+package org.lastrix.collagemaker.app.gfx;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static android.opengl.GLES20.*;
+
+/**
+ * Captures scene at surface size without per-pixel work on GL thread.<br/>
+ * Scene is drawn into framebuffer object upside down, so rows read back top first, and on transparent
+ * background, so RGBA bytes are already premultiplied {@link Bitmap.Config#ARGB_8888} pixels.
+ * GL thread only reads pixels into reusable direct buffer, bitmap is filled with
+ * {@link Bitmap#copyPixelsFromBuffer(java.nio.Buffer)} on worker thread and delivered on main thread.<br/>
+ * Call {@link #capture(java.util.Collection, GFXBatch, float[], float[], int, int, GFXListener)} from GL thread,
+ * {@link #close()} when surface is destroyed.
+ */
+class GFXCapture {
+
+    private static final String LOG_TAG = GFXCapture.class.getSimpleName();
+    private static final String LOG_MESSAGE_INCOMPLETE = "Framebuffer incomplete: 0x%x";
+    private static final String LOG_MESSAGE_NO_MEMORY = "Not enough memory for %dx%d capture";
+    private static final String LOG_MESSAGE_DROPPED = "Capture dropped, worker is closed";
+
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // buffer is handed to worker, it comes back when bitmap is filled
+    private final AtomicReference<ByteBuffer> mSpare = new AtomicReference<>();
+    private final float[] mWorld = new float[16];
+    private final int[] mIds = new int[3];
+    private int mFramebuffer;
+    private int mColor;
+    private int mDepth;
+    private int mWidth;
+    private int mHeight;
+
+    /**
+     * Forget objects of previous context, call it after surface creation
+     */
+    void init() {
+        mFramebuffer = 0;
+        mColor = 0;
+        mDepth = 0;
+        mWidth = 0;
+        mHeight = 0;
+    }
+
+    /**
+     * Delete framebuffer objects
+     */
+    void destroy() {
+        if (mFramebuffer != 0) {
+            glDeleteFramebuffers(1, new int[]{mFramebuffer}, 0);
+            glDeleteTextures(1, new int[]{mColor}, 0);
+            glDeleteRenderbuffers(1, new int[]{mDepth}, 0);
+        }
+        init();
+    }
+
+    /**
+     * Stop worker, pending captures are still delivered
+     */
+    void close() {
+        mWorker.shutdown();
+    }
+
+    /**
+     * Draw scene into framebuffer object and read it back, on-screen framebuffer is bound again after that
+     *
+     * @param drawOrder -- entities, bottom first
+     * @param batch     -- scene renderer
+     * @param world     -- world matrix of screen
+     * @param area      -- visible area, see {@link GFXResource#getVisibleArea(float[])}
+     * @param width     -- surface width
+     * @param height    -- surface height
+     * @param listener  -- receives bitmap on main thread, null if capture failed
+     */
+    void capture(Collection<GFXEntity> drawOrder, GFXBatch batch, float[] world, float[] area,
+                 final int width, final int height, final GFXListener listener) {
+        if (!prepare(width, height)) {
+            deliver(listener, null);
+            return;
+        }
+        ByteBuffer buffer = mSpare.getAndSet(null);
+        if (buffer == null || buffer.capacity() != width * height * 4) {
+            try {
+                buffer = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+            } catch (OutOfMemoryError e) {
+                Log.e(LOG_TAG, String.format(LOG_MESSAGE_NO_MEMORY, width, height), e);
+                deliver(listener, null);
+                return;
+            }
+        }
+
+        // negate clip y: first row read back is top of the scene
+        System.arraycopy(world, 0, mWorld, 0, 16);
+        for (int column = 0; column < 4; column++) {
+            mWorld[column * 4 + 1] = -mWorld[column * 4 + 1];
+        }
+        glBindFramebuffer(GL_FRAMEBUFFER, mFramebuffer);
+        glClearColor(0f, 0f, 0f, 0f);
+        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+        GFXResource.setClearColor();
+        batch.draw(drawOrder, mWorld, area);
+        buffer.position(0);
+        glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+
+        final ByteBuffer pixels = buffer;
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bmp = null;
+                try {
+                    bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                    pixels.position(0);
+                    bmp.copyPixelsFromBuffer(pixels);
+                } catch (OutOfMemoryError e) {
+                    Log.e(LOG_TAG, String.format(LOG_MESSAGE_NO_MEMORY, width, height), e);
+                }
+                mSpare.set(pixels);
+                deliver(listener, bmp);
+            }
+        };
+        try {
+            mWorker.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, LOG_MESSAGE_DROPPED);
+            mSpare.set(pixels);
+            deliver(listener, null);
+        }
+    }
+
+    private void deliver(final GFXListener listener, final Bitmap bmp) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.captured(bmp);
+            }
+        });
+    }
+
+    /**
+     * Create framebuffer object of surface size
+     *
+     * @return true if framebuffer is complete
+     */
+    private boolean prepare(int width, int height) {
+        if (mFramebuffer != 0 && mWidth == width && mHeight == height) {
+            return true;
+        }
+        destroy();
+        glGenFramebuffers(1, mIds, 0);
+        glGenTextures(1, mIds, 1);
+        glGenRenderbuffers(1, mIds, 2);
+        mFramebuffer = mIds[0];
+        mColor = mIds[1];
+        mDepth = mIds[2];
+        mWidth = width;
+        mHeight = height;
+
+        glBindTexture(GL_TEXTURE_2D, mColor);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, null);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        glBindRenderbuffer(GL_RENDERBUFFER, mDepth);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT16, width, height);
+        glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+        glBindFramebuffer(GL_FRAMEBUFFER, mFramebuffer);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, mColor, 0);
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, mDepth);
+        final int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        if (status != GL_FRAMEBUFFER_COMPLETE) {
+            Log.e(LOG_TAG, String.format(LOG_MESSAGE_INCOMPLETE, status));
+            destroy();
+            return false;
+        }
+        return true;
+    }
+}
@@ -2,28 +2,37 @@ package org.lastrix.collagemaker.app.gfx;
 
 import android.graphics.Bitmap;
 import android.opengl.GLUtils;
-import android.opengl.Matrix;
 
 import static android.opengl.GLES20.*;
 
 /**
  * Entity under Render control.<br/>
  * Use factory method ( from openGL thread!) to create entity, see {@link #create(android.graphics.Bitmap)} .<br/>
- * The entity will automatically calculate it's model matrix, see {@link #getModel()}, {@link #resetModel()}.<br/>
+ * Entity transform is kept as position, scale and ratio, it is applied in vertex shader,
+ * see {@link #getTransform(float[], int)}.<br/>
+ * Entity is changed only from GL thread, other threads request moves with {@link #moveTo(float, float)}
+ * and read position with {@link #getPosition()}.<br/>
  * Whenever you need to remove this entity call {@link #destroy()} from openGL thread.
  * Created by lastrix on 8/25/14.
  */
 class GFXEntity {
-    private static float[] sTranslate = new float[16];
-    private static float[] sScale = new float[16];
-    private static float[] sRotate = new float[16];
-    private static float[] sScratch = new float[16];
-
     private float mX, mY;
     private float mScaleX, mScaleY;
     private int mTextureId;
+    // atlas pages are shared, entity owns only its own texture
+    private boolean mOwnsTexture = true;
+    private float mU0 = 0f, mV0 = 0f, mU1 = 1f, mV1 = 1f;
     private float mRatio;
-    private float[] mModel;
+    // requested position, both floats packed, written by any thread
+    private volatile long mMoveTo;
+    // last applied request, GL thread only
+    private long mMoveApplied;
+    // applied position, both floats packed, published by GL thread for other threads
+    private volatile long mPosition;
+    // written by UI thread, see GFXRenderer#putToTop(GFXEntity)
+    private volatile long mZ;
+    // GL thread only: z latched at frame start, draw order is sorted by it
+    private long mSortZ;
 
     /**
      * Private empty constructor
@@ -45,8 +54,7 @@ class GFXEntity {
         mY = 0f;
         mScaleX = 1f;
         mScaleY = 1f;
-        mModel = new float[16];
-        resetModel();
+        mMoveTo = mMoveApplied = mPosition = pack(0f, 0f);
     }
 
     /**
@@ -57,6 +65,54 @@ class GFXEntity {
      * @return an entity
      */
     public static GFXEntity create(Bitmap bmp) {
+        int textureId = newTexture();
+        GLUtils.texImage2D(GL_TEXTURE_2D, 0, bmp, 0);
+        float ratio = (float) bmp.getWidth() / (float) bmp.getHeight();
+        return new GFXEntity(textureId, ratio);
+    }
+
+    /**
+     * Create entity for bitmap, small RGB565 bitmaps are packed into atlas<br/>
+     * Call this method only from GL thread, see {@link android.opengl.GLSurfaceView#queueEvent(Runnable)}
+     *
+     * @param bmp   -- the bitmap
+     * @param atlas -- atlas
+     * @return an entity
+     */
+    public static GFXEntity create(Bitmap bmp, GFXAtlas atlas) {
+        GFXAtlas.Region region = atlas.add(bmp);
+        if (region == null) {
+            return create(bmp);
+        }
+        GFXEntity entity = new GFXEntity(region.textureId, (float) bmp.getWidth() / (float) bmp.getHeight());
+        entity.mOwnsTexture = false;
+        entity.mU0 = region.u0;
+        entity.mV0 = region.v0;
+        entity.mU1 = region.u1;
+        entity.mV1 = region.v1;
+        return entity;
+    }
+
+    /**
+     * Create entity for cached texture<br/>
+     * Call this method only from GL thread, see {@link android.opengl.GLSurfaceView#queueEvent(Runnable)}
+     *
+     * @param texture -- the texture
+     * @return an entity
+     */
+    public static GFXEntity create(GFXTextureCache.Texture texture) {
+        int textureId = newTexture();
+        texture.upload();
+        return new GFXEntity(textureId, texture.getRatio());
+    }
+
+    /**
+     * Generate and bind texture.<br/>
+     * Images are not power of two sized, such textures are complete only without mipmaps and repeat.
+     *
+     * @return texture id
+     */
+    private static int newTexture() {
         int tex[] = new int[1];
         glGenTextures(1, tex, 0);
         int textureId = tex[0];
@@ -65,9 +121,134 @@ class GFXEntity {
 
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        return textureId;
+    }
+
+    /**
+     * Replace texture image, used to swap thumbnail with full-sized image.
+     * Position and scale are kept.<br/>
+     * Call this method only from GL thread, see {@link android.opengl.GLSurfaceView#queueEvent(Runnable)}
+     *
+     * @param bmp -- new image
+     */
+    public void setTexture(Bitmap bmp) {
+        bindOwnTexture();
         GLUtils.texImage2D(GL_TEXTURE_2D, 0, bmp, 0);
-        float ratio = (float) bmp.getWidth() / (float) bmp.getHeight();
-        return new GFXEntity(textureId, ratio);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        mRatio = (float) bmp.getWidth() / (float) bmp.getHeight();
+    }
+
+    /**
+     * Replace texture image with cached texture, see {@link #setTexture(android.graphics.Bitmap)}.<br/>
+     * Call this method only from GL thread, see {@link android.opengl.GLSurfaceView#queueEvent(Runnable)}
+     *
+     * @param texture -- new image
+     */
+    public void setTexture(GFXTextureCache.Texture texture) {
+        bindOwnTexture();
+        texture.upload();
+        glBindTexture(GL_TEXTURE_2D, 0);
+        mRatio = texture.getRatio();
+    }
+
+    /**
+     * Delete texture, entity is drawn as placeholder until {@link #setTexture(GFXTextureCache.Texture)}.<br/>
+     * Call this method only from GL thread, see {@link android.opengl.GLSurfaceView#queueEvent(Runnable)}
+     */
+    public void releaseTexture() {
+        if (mOwnsTexture) {
+            int[] textures = new int[]{mTextureId};
+            glDeleteTextures(1, textures, 0);
+        }
+        mTextureId = 0;
+    }
+
+    /**
+     * Bind texture owned by this entity, leaving atlas or creating new one after release
+     */
+    private void bindOwnTexture() {
+        if (mTextureId == 0 || !mOwnsTexture) {
+            mTextureId = newTexture();
+            mOwnsTexture = true;
+            mU0 = 0f;
+            mV0 = 0f;
+            mU1 = 1f;
+            mV1 = 1f;
+        } else {
+            glBindTexture(GL_TEXTURE_2D, mTextureId);
+        }
+    }
+
+    /**
+     * Write transform: x, y, width, height.
+     * Unit quad corner c is placed at c * (width, height) + (x, y).
+     *
+     * @param dst    -- destination
+     * @param offset -- offset in destination
+     * @return offset after transform
+     */
+    public int getTransform(float[] dst, int offset) {
+        dst[offset] = mX;
+        dst[offset + 1] = mY;
+        dst[offset + 2] = getWidth();
+        dst[offset + 3] = getHeight();
+        return offset + 4;
+    }
+
+    /**
+     * Write quad vertices: corner x, corner y, z, transform, u, v for corners in {@link GFXResource#TILE_MESH} order
+     *
+     * @param dst    -- destination
+     * @param offset -- offset in destination
+     * @param z      -- depth in normalized device coordinates
+     * @return offset after quad
+     */
+    public int writeQuad(float[] dst, int offset, float z) {
+        offset = writeVertex(dst, offset, 0f, 1f, z, mU0, mV0);
+        offset = writeVertex(dst, offset, 0f, 0f, z, mU0, mV1);
+        offset = writeVertex(dst, offset, 1f, 0f, z, mU1, mV1);
+        return writeVertex(dst, offset, 1f, 1f, z, mU1, mV0);
+    }
+
+    private int writeVertex(float[] dst, int offset, float cx, float cy, float z, float u, float v) {
+        dst[offset] = cx;
+        dst[offset + 1] = cy;
+        dst[offset + 2] = z;
+        offset = getTransform(dst, offset + 3);
+        dst[offset] = u;
+        dst[offset + 1] = v;
+        return offset + 2;
+    }
+
+    /**
+     * Check whether entity samples shared atlas page, releasing its texture frees no memory then
+     *
+     * @return true if texture is shared
+     */
+    public boolean isShared() {
+        return mTextureId != 0 && !mOwnsTexture;
+    }
+
+    /**
+     * Forget texture id of lost EGL context, it must not be deleted in new one
+     */
+    public void invalidateTexture() {
+        mTextureId = 0;
+    }
+
+    /**
+     * Check whether entity bounds intersect area
+     *
+     * @param left   -- area left
+     * @param right  -- area right
+     * @param bottom -- area bottom
+     * @param top    -- area top
+     * @return true if intersects
+     */
+    public boolean intersects(float left, float right, float bottom, float top) {
+        return mX < right && mX + getWidth() > left && mY < top && mY + getHeight() > bottom;
     }
 
     /**
@@ -97,6 +278,24 @@ class GFXEntity {
         return mY;
     }
 
+    /**
+     * Get width in world units, ratio and scale applied
+     *
+     * @return width
+     */
+    public float getWidth() {
+        return mRatio * mScaleX;
+    }
+
+    /**
+     * Get height in world units
+     *
+     * @return height
+     */
+    public float getHeight() {
+        return mScaleY;
+    }
+
     /**
      * Set scaleX (unused)
      *
@@ -106,7 +305,6 @@ class GFXEntity {
     public void setScale(float scaleX, float scaleY) {
         this.mScaleX = scaleX;
         this.mScaleY = scaleY;
-        resetModel();
     }
 
     /**
@@ -119,41 +317,119 @@ class GFXEntity {
     }
 
     /**
-     * Reset model, calculate new matrix immediately
+     * Remove this entity, delete texture.<br/>
+     * Call this method only from GL thread, see {@link android.opengl.GLSurfaceView#queueEvent(Runnable)}
      */
-    private void resetModel() {
-        Matrix.setIdentityM(sTranslate, 0);
-        Matrix.translateM(sTranslate, 0, mX, mY, 0.0f);
+    public void destroy() {
+        releaseTexture();
+    }
 
-        Matrix.setIdentityM(sScale, 0);
-        Matrix.scaleM(sScale, 0, mRatio * mScaleX, mScaleY, 1f);
+    /**
+     * Set position, call it from GL thread. Pending {@link #moveTo(float, float)} is dropped.
+     *
+     * @param x -- new x
+     * @param y -- new y
+     */
+    public void setPosition(float x, float y) {
+        this.mX = x;
+        this.mY = y;
+        mMoveTo = mMoveApplied = mPosition = pack(x, y);
+    }
 
-        Matrix.multiplyMM(mModel, 0, sTranslate, 0, sScale, 0);
+    /**
+     * Request move, safe to call from any thread, nothing is allocated.<br/>
+     * Position is changed by GL thread in {@link #applyMove()}, only last request counts.
+     *
+     * @param x -- new x
+     * @param y -- new y
+     */
+    public void moveTo(float x, float y) {
+        mMoveTo = pack(x, y);
     }
 
     /**
-     * Return model matrix
+     * Apply last requested move, call it from GL thread
      *
-     * @return model matrix
+     * @return true if position changed
      */
-    public float[] getModel() {
-        return mModel;
+    public boolean applyMove() {
+        final long moveTo = mMoveTo;
+        if (moveTo == mMoveApplied) {
+            return false;
+        }
+        mMoveApplied = mPosition = moveTo;
+        mX = unpackX(moveTo);
+        mY = unpackY(moveTo);
+        return true;
     }
 
     /**
-     * Remove this entity, delete texture.<br/>
-     * Call this method only from GL thread, see {@link android.opengl.GLSurfaceView#queueEvent(Runnable)}
+     * Return last applied position, safe to call from any thread.<br/>
+     * Both coordinates are packed in single value, so they always belong to the same move,
+     * use {@link #unpackX(long)} and {@link #unpackY(long)} to read them.
+     *
+     * @return packed position
      */
-    public void destroy() {
-        int[] textures = new int[]{mTextureId};
-        glDeleteTextures(1, textures, 0);
-        mModel = null;
+    public long getPosition() {
+        return mPosition;
     }
 
-    public void setPosition(float x, float y) {
-        this.mX = x;
-        this.mY = y;
-        resetModel();
+    /**
+     * Get x of packed position
+     *
+     * @param position -- packed position, see {@link #getPosition()}
+     * @return x
+     */
+    public static float unpackX(long position) {
+        return Float.intBitsToFloat((int) (position >> 32));
+    }
+
+    /**
+     * Get y of packed position
+     *
+     * @param position -- packed position, see {@link #getPosition()}
+     * @return y
+     */
+    public static float unpackY(long position) {
+        return Float.intBitsToFloat((int) position);
+    }
+
+    private static long pack(float x, float y) {
+        return ((long) Float.floatToRawIntBits(x) << 32) | (Float.floatToRawIntBits(y) & 0xffffffffL);
+    }
+
+    /**
+     * Return z-order, larger is drawn later
+     *
+     * @return z
+     */
+    public long getZ() {
+        return mZ;
+    }
+
+    /**
+     * Set z-order
+     *
+     * @param z -- new z
+     */
+    public void setZ(long z) {
+        this.mZ = z;
+    }
+
+    /**
+     * Copy requested z-order into sort key, call it from GL thread before sorting
+     */
+    public void latchZ() {
+        mSortZ = mZ;
+    }
+
+    /**
+     * Return z-order latched by {@link #latchZ()}, it does not change while GL thread sorts
+     *
+     * @return z
+     */
+    public long getSortZ() {
+        return mSortZ;
     }
 
     /**
@@ -0,0 +1,336 @@
+package org.lastrix.collagemaker.app.gfx;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static android.opengl.GLES20.*;
+
+/**
+ * Renders visible area of scene offscreen at any resolution, screen size does not limit it.<br/>
+ * Image is split into tiles no larger than {@link #MAX_TILE_SIZE} and render buffer, texture and viewport limits.
+ * Every tile is drawn into framebuffer object with its own projection and read back into direct buffer.<br/>
+ * Whole image is rendered in single GL event, so entities can not move or change textures between tiles.
+ * GL thread only draws and reads pixels, tiles are converted and copied into result bitmap on worker thread
+ * while next tiles are drawn, bitmap is delivered on main thread.
+ * On-screen framebuffer and viewport are restored after export.<br/>
+ * NOTICE: entities are drawn with textures resident for display, decoded no larger than
+ * {@link GFXResource#maxEntityHeight(int)}, so image larger than screen shows no more detail than screen does.
+ * Caller must make sure full levels are resident, see {@link GFXTextureResidency#setPinned(boolean)}.<br/>
+ * Call {@link #export(java.util.Collection, float[], int, int, GFXListener)} from GL thread,
+ * {@link #close()} when surface is destroyed.
+ */
+class GFXExporter {
+
+    private static final String LOG_TAG = GFXExporter.class.getSimpleName();
+    private static final String LOG_MESSAGE_INCOMPLETE = "Framebuffer incomplete: 0x%x";
+    private static final String LOG_MESSAGE_NO_MEMORY = "Not enough memory for %dx%d export";
+    private static final String LOG_MESSAGE_DROPPED = "Export dropped, exporter is closed";
+    // bounds read back buffers
+    private static final int MAX_TILE_SIZE = 1024;
+
+    private final GFXResource mResource;
+    private final GFXBatch mBatch;
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // tile buffers come back from worker once copied
+    private final Queue<ByteBuffer> mSpare = new ConcurrentLinkedQueue<>();
+    private final float[] mWorld = new float[16];
+    private final float[] mTileArea = new float[4];
+
+    /**
+     * Create exporter
+     *
+     * @param resource -- world matrix source
+     * @param batch    -- scene renderer
+     */
+    GFXExporter(@NonNull GFXResource resource, @NonNull GFXBatch batch) {
+        this.mResource = resource;
+        this.mBatch = batch;
+    }
+
+    /**
+     * Stop worker, pending exports are still delivered
+     */
+    void close() {
+        mWorker.shutdown();
+    }
+
+    /**
+     * Render area into bitmap
+     *
+     * @param drawOrder -- entities, bottom first
+     * @param area      -- world area: left, right, bottom, top
+     * @param width     -- bitmap width
+     * @param height    -- bitmap height
+     * @param listener  -- receives bitmap on main thread, null if export failed
+     */
+    void export(Collection<GFXEntity> drawOrder, float[] area, int width, int height, GFXListener listener) {
+        final int tile = tileSize();
+        final Assembly assembly = new Assembly(width, height, tile, listener);
+        if (!submit(assembly)) {
+            deliver(listener, null);
+            return;
+        }
+
+        int[] viewport = new int[4];
+        glGetIntegerv(GL_VIEWPORT, viewport, 0);
+        int[] ids = new int[1];
+        glGenFramebuffers(1, ids, 0);
+        final int framebuffer = ids[0];
+        glGenTextures(1, ids, 0);
+        final int color = ids[0];
+        glGenRenderbuffers(1, ids, 0);
+        final int depth = ids[0];
+        try {
+            glBindTexture(GL_TEXTURE_2D, color);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+            glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, tile, tile, 0, GL_RGBA, GL_UNSIGNED_BYTE, null);
+            glBindTexture(GL_TEXTURE_2D, 0);
+            glBindRenderbuffer(GL_RENDERBUFFER, depth);
+            // batch keeps draw order with depth test
+            glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT16, tile, tile);
+            glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+            glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+            glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, color, 0);
+            glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, depth);
+            final int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+            if (status != GL_FRAMEBUFFER_COMPLETE) {
+                Log.e(LOG_TAG, String.format(LOG_MESSAGE_INCOMPLETE, status));
+                assembly.mFailed = true;
+                return;
+            }
+
+            final float unitsPerPixelX = (area[1] - area[0]) / width;
+            final float unitsPerPixelY = (area[3] - area[2]) / height;
+            // tile rows go from image top, framebuffer rows from bottom
+            for (int y = 0; y < height && !assembly.mFailed; y += tile) {
+                for (int x = 0; x < width && !assembly.mFailed; x += tile) {
+                    final int w = Math.min(tile, width - x);
+                    final int h = Math.min(tile, height - y);
+                    final ByteBuffer buffer = obtainBuffer(tile);
+                    if (buffer == null) {
+                        assembly.mFailed = true;
+                        break;
+                    }
+                    mTileArea[0] = area[0] + x * unitsPerPixelX;
+                    mTileArea[1] = mTileArea[0] + w * unitsPerPixelX;
+                    mTileArea[3] = area[3] - y * unitsPerPixelY;
+                    mTileArea[2] = mTileArea[3] - h * unitsPerPixelY;
+                    mResource.getWorld(mTileArea, mWorld);
+
+                    glViewport(0, 0, w, h);
+                    mResource.clear();
+                    mBatch.draw(drawOrder, mWorld, mTileArea);
+
+                    buffer.position(0);
+                    glReadPixels(0, 0, w, h, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
+                    if (!submit(new CopyTile(assembly, buffer, x, y, w, h))) {
+                        assembly.mFailed = true;
+                    }
+                }
+            }
+        } finally {
+            glBindFramebuffer(GL_FRAMEBUFFER, 0);
+            glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+            glDeleteFramebuffers(1, new int[]{framebuffer}, 0);
+            glDeleteTextures(1, new int[]{color}, 0);
+            glDeleteRenderbuffers(1, new int[]{depth}, 0);
+            // worker runs tasks in order, so this one comes after all tiles
+            if (!submit(new Deliver(assembly))) {
+                deliver(listener, null);
+            }
+        }
+    }
+
+    /**
+     * Take buffer returned by worker or allocate new one
+     *
+     * @return buffer or null if out of memory
+     */
+    private ByteBuffer obtainBuffer(int tile) {
+        ByteBuffer buffer;
+        while ((buffer = mSpare.poll()) != null) {
+            // tile size changes only with context
+            if (buffer.capacity() == tile * tile * 4) {
+                return buffer;
+            }
+        }
+        try {
+            return ByteBuffer.allocateDirect(tile * tile * 4).order(ByteOrder.nativeOrder());
+        } catch (OutOfMemoryError e) {
+            Log.e(LOG_TAG, String.format(LOG_MESSAGE_NO_MEMORY, tile, tile), e);
+            return null;
+        }
+    }
+
+    /**
+     * Tell listener that export was dropped, may be called from any thread
+     *
+     * @param listener -- receives null on main thread
+     */
+    void fail(GFXListener listener) {
+        deliver(listener, null);
+    }
+
+    private void deliver(final GFXListener listener, final Bitmap bmp) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.exported(bmp);
+            }
+        });
+    }
+
+    private boolean submit(Runnable task) {
+        try {
+            mWorker.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, LOG_MESSAGE_DROPPED);
+            return false;
+        }
+    }
+
+    /**
+     * Return tile size supported by current context
+     *
+     * @return tile size
+     */
+    private static int tileSize() {
+        int[] value = new int[2];
+        int size = MAX_TILE_SIZE;
+        glGetIntegerv(GL_MAX_RENDERBUFFER_SIZE, value, 0);
+        size = Math.min(size, value[0]);
+        glGetIntegerv(GL_MAX_TEXTURE_SIZE, value, 0);
+        size = Math.min(size, value[0]);
+        glGetIntegerv(GL_MAX_VIEWPORT_DIMS, value, 0);
+        return Math.min(size, Math.min(value[0], value[1]));
+    }
+
+    /**
+     * Convert pixels read as RGBA bytes into ARGB ints
+     */
+    private static void toArgb(int[] pixels, int count) {
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            // ABGR: swap red and blue
+            for (int i = 0; i < count; i++) {
+                final int p = pixels[i];
+                pixels[i] = (p & 0xff00ff00) | ((p & 0x000000ff) << 16) | ((p & 0x00ff0000) >> 16);
+            }
+        } else {
+            // RGBA: rotate alpha to the top
+            for (int i = 0; i < count; i++) {
+                final int p = pixels[i];
+                pixels[i] = (p >>> 8) | (p << 24);
+            }
+        }
+    }
+
+    /**
+     * Result bitmap, created and filled on worker thread
+     */
+    private static class Assembly implements Runnable {
+        private final int mWidth;
+        private final int mHeight;
+        private final int mTile;
+        private final GFXListener mListener;
+        // set on GL thread, remaining tiles are skipped
+        private volatile boolean mFailed;
+        private Bitmap mBitmap;
+        private int[] mPixels;
+
+        private Assembly(int width, int height, int tile, GFXListener listener) {
+            this.mWidth = width;
+            this.mHeight = height;
+            this.mTile = tile;
+            this.mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+                mPixels = new int[Math.min(mWidth, mTile) * Math.min(mHeight, mTile)];
+            } catch (OutOfMemoryError e) {
+                Log.e(LOG_TAG, String.format(LOG_MESSAGE_NO_MEMORY, mWidth, mHeight), e);
+                if (mBitmap != null) {
+                    mBitmap.recycle();
+                    mBitmap = null;
+                }
+                mFailed = true;
+            }
+        }
+    }
+
+    /**
+     * Convert tile read back on GL thread and copy it into result bitmap
+     */
+    private class CopyTile implements Runnable {
+        private final Assembly mAssembly;
+        private final ByteBuffer mBuffer;
+        private final int mX;
+        private final int mY;
+        private final int mWidth;
+        private final int mHeight;
+
+        private CopyTile(Assembly assembly, ByteBuffer buffer, int x, int y, int width, int height) {
+            this.mAssembly = assembly;
+            this.mBuffer = buffer;
+            this.mX = x;
+            this.mY = y;
+            this.mWidth = width;
+            this.mHeight = height;
+        }
+
+        @Override
+        public void run() {
+            if (!mAssembly.mFailed) {
+                final int[] pixels = mAssembly.mPixels;
+                final int count = mWidth * mHeight;
+                mBuffer.position(0);
+                mBuffer.asIntBuffer().get(pixels, 0, count);
+                toArgb(pixels, count);
+                // bottom row first, flip while copying
+                mAssembly.mBitmap.setPixels(pixels, (mHeight - 1) * mWidth, -mWidth, mX, mY, mWidth, mHeight);
+            }
+            mSpare.offer(mBuffer);
+        }
+    }
+
+    /**
+     * Pass result bitmap to main thread
+     */
+    private class Deliver implements Runnable {
+        private final Assembly mAssembly;
+
+        private Deliver(Assembly assembly) {
+            this.mAssembly = assembly;
+        }
+
+        @Override
+        public void run() {
+            Bitmap bmp = mAssembly.mBitmap;
+            if (mAssembly.mFailed && bmp != null) {
+                bmp.recycle();
+                bmp = null;
+            }
+            mAssembly.mBitmap = null;
+            mAssembly.mPixels = null;
+            deliver(mAssembly.mListener, bmp);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.lastrix.collagemaker.app.gfx;
+
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static android.opengl.GLES20.*;
+
+/**
+ * Collects {@link GFXRenderer} frame statistics: CPU time of scene update and draw submission,
+ * GPU time sampled with glFinish every {@link #GPU_SAMPLE_INTERVAL} frames, janky and dropped frames,
+ * texture upload time, resident texture memory and number of drawn and culled entities.<br/>
+ * Frame is janky when its GL thread work takes longer than vsync period {@link #FRAME_BUDGET_NANOS},
+ * every extra period counts as dropped frame. Frames are rendered on demand, so idle time between frames
+ * is not counted.<br/>
+ * Histogram bucket N holds frames that took less than 2^N milliseconds, last bucket holds the rest.<br/>
+ * Show it with {@link GFXSurfaceView#setStatsView(android.widget.TextView)},
+ * export it with {@link GFXSurfaceView#dump(String, java.io.PrintWriter)}.<br/>
+ * All methods may be called from any thread.
+ */
+final class GFXFrameStats {
+
+    static final long FRAME_BUDGET_NANOS = 1000000000L / 60L;
+    // glFinish stalls pipeline, so GPU time is sampled rarely
+    static final int GPU_SAMPLE_INTERVAL = 60;
+
+    private static final String OVERLAY_FORMAT =
+            "frames %d, jank %d, dropped %d\n" +
+                    "update %.2f ms, draw %.2f ms, gpu %.2f ms\n" +
+                    "uploads %d, %.2f ms\n" +
+                    "entities %d drawn, %d culled\n" +
+                    "textures %d / %d KB";
+    private static final String DUMP_SERIES_FORMAT = "%s%s: count %d, avg %.2f ms, max %.2f ms, histogram %s";
+    private static final int HISTOGRAM_BUCKETS = 8;
+    private static final float NANOS_PER_MS = 1000000f;
+
+    // since start
+    private final Series mUpdate = new Series();
+    private final Series mDraw = new Series();
+    private final Series mFrame = new Series();
+    private final Series mGpu = new Series();
+    private final Series mUpload = new Series();
+    // since last overlay refresh
+    private final Series mWindowUpdate = new Series();
+    private final Series mWindowDraw = new Series();
+    private final Series mWindowGpu = new Series();
+    private final Series mWindowUpload = new Series();
+    private long mJanky;
+    private long mDropped;
+    private long mWindowFrames;
+    private long mWindowJanky;
+    private long mWindowDropped;
+    private long mResidentBytes;
+    private long mBudgetBytes;
+    private String mRenderer;
+    private long mFrames;
+    private long mDrawn;
+    private long mCulled;
+    private int mLastDrawn;
+    private int mLastCulled;
+
+    /**
+     * Start measurement
+     *
+     * @return start mark
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Remember GPU name, call it from GL thread after surface creation
+     */
+    synchronized void onSurfaceCreated() {
+        mRenderer = glGetString(GL_VENDOR) + " " + glGetString(GL_RENDERER) + ", " + glGetString(GL_VERSION);
+    }
+
+    /**
+     * Tell whether GPU time of this frame should be measured
+     *
+     * @return true if frame should be finished with {@link #recordGpu(long)}
+     */
+    synchronized boolean shouldSampleGpu() {
+        return mFrames % GPU_SAMPLE_INTERVAL == 0;
+    }
+
+    /**
+     * Record GPU time: from the end of submission till glFinish returns
+     *
+     * @param submitted -- mark taken after draw submission
+     */
+    synchronized void recordGpu(long submitted) {
+        final long nanos = System.nanoTime() - submitted;
+        mGpu.add(nanos);
+        mWindowGpu.add(nanos);
+    }
+
+    /**
+     * Record frame
+     *
+     * @param started       -- mark taken at frame start
+     * @param updated       -- mark taken after scene update
+     * @param submitted     -- mark taken after draw submission
+     * @param residentBytes -- texture memory in use
+     * @param budgetBytes   -- texture memory budget
+     */
+    synchronized void recordFrame(long started, long updated, long submitted, long residentBytes, long budgetBytes) {
+        mUpdate.add(updated - started);
+        mDraw.add(submitted - updated);
+        mWindowUpdate.add(updated - started);
+        mWindowDraw.add(submitted - updated);
+        final long nanos = submitted - started;
+        mFrame.add(nanos);
+        mFrames++;
+        mWindowFrames++;
+        if (nanos > FRAME_BUDGET_NANOS) {
+            final long dropped = (nanos - 1) / FRAME_BUDGET_NANOS;
+            mJanky++;
+            mWindowJanky++;
+            mDropped += dropped;
+            mWindowDropped += dropped;
+        }
+        mResidentBytes = residentBytes;
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Record viewport culling of scene frame
+     *
+     * @param drawn  -- entities submitted for drawing
+     * @param culled -- entities skipped as invisible
+     */
+    synchronized void recordCulling(int drawn, int culled) {
+        mDrawn += drawn;
+        mCulled += culled;
+        mLastDrawn = drawn;
+        mLastCulled = culled;
+    }
+
+    /**
+     * Record texture upload
+     *
+     * @param started -- value returned by {@link #start()}
+     */
+    synchronized void recordUpload(long started) {
+        final long nanos = System.nanoTime() - started;
+        mUpload.add(nanos);
+        mWindowUpload.add(nanos);
+    }
+
+    /**
+     * Format statistics collected since previous call for overlay
+     *
+     * @return text
+     */
+    synchronized String overlayText() {
+        final String text = String.format(Locale.US, OVERLAY_FORMAT, mWindowFrames, mWindowJanky, mWindowDropped,
+                mWindowUpdate.average(), mWindowDraw.average(), mWindowGpu.average(),
+                mWindowUpload.mCount, mWindowUpload.average(),
+                mLastDrawn, mLastCulled,
+                mResidentBytes / 1024, mBudgetBytes / 1024);
+        mWindowUpdate.reset();
+        mWindowDraw.reset();
+        mWindowGpu.reset();
+        mWindowUpload.reset();
+        mWindowFrames = 0;
+        mWindowJanky = 0;
+        mWindowDropped = 0;
+        return text;
+    }
+
+    /**
+     * Print statistics collected since start
+     *
+     * @param prefix -- line prefix
+     * @param writer -- destination
+     */
+    synchronized void dump(@NonNull String prefix, @NonNull PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("device: " + Build.MANUFACTURER + " " + Build.MODEL + ", api " + Build.VERSION.SDK_INT);
+        writer.print(prefix);
+        writer.println("gpu: " + mRenderer);
+        writer.print(prefix);
+        writer.println("frames: " + mFrames + ", janky " + mJanky + ", dropped " + mDropped);
+        mFrame.dump(prefix, "frame", writer);
+        mUpdate.dump(prefix, "update", writer);
+        mDraw.dump(prefix, "draw", writer);
+        mGpu.dump(prefix, "gpu", writer);
+        mUpload.dump(prefix, "upload", writer);
+        writer.print(prefix);
+        writer.println("entities: drawn " + mDrawn + ", culled " + mCulled
+                + ", last frame drawn " + mLastDrawn + ", culled " + mLastCulled);
+        writer.print(prefix);
+        writer.println("textures: " + mResidentBytes / 1024 + " KB of " + mBudgetBytes / 1024 + " KB");
+    }
+
+    /**
+     * Duration histogram with totals
+     */
+    private static final class Series {
+        private final long[] mHistogram = new long[HISTOGRAM_BUCKETS];
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        void add(long nanos) {
+            final long millis = nanos / 1000000L;
+            final int bucket = 64 - Long.numberOfLeadingZeros(millis);
+            mHistogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)]++;
+            mCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+        }
+
+        float average() {
+            return mCount == 0 ? 0f : mTotalNanos / NANOS_PER_MS / mCount;
+        }
+
+        void reset() {
+            Arrays.fill(mHistogram, 0);
+            mCount = 0;
+            mTotalNanos = 0;
+            mMaxNanos = 0;
+        }
+
+        void dump(String prefix, String name, PrintWriter writer) {
+            writer.println(String.format(Locale.US, DUMP_SERIES_FORMAT, prefix, name, mCount, average(),
+                    mMaxNanos / NANOS_PER_MS, Arrays.toString(mHistogram)));
+        }
+    }
+}
@@ -3,15 +3,22 @@ package org.lastrix.collagemaker.app.gfx;
 import android.graphics.Bitmap;
 
 /**
- * Callback listener to receive screen capture.
+ * Callback listener to receive screen capture and exported image.
  * Created by lastrix on 8/25/14.
  */
 public interface GFXListener {
 
     /**
-     * The screen has been captured
+     * The screen has been captured, called from main thread
      *
-     * @param bmp -- screen capture
+     * @param bmp -- screen capture or null if capture failed
      */
     void captured(Bitmap bmp);
+
+    /**
+     * High-resolution export finished, called from main thread
+     *
+     * @param bmp -- exported image or null if export failed
+     */
+    void exported(Bitmap bmp);
 }
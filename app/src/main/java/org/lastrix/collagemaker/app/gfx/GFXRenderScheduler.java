@@ -0,0 +1,171 @@
+package org.lastrix.collagemaker.app.gfx;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Schedules on-demand rendering of {@link GFXSurfaceView}, surface is never rendered continuously.<br/>
+ * Any number of {@link #requestFrame()} calls between two frames results in single render,
+ * frames are aligned to vsync with {@link android.view.Choreographer} since jelly bean
+ * and throttled to {@link #FRAME_INTERVAL_MS} before.<br/>
+ * Animations ask for frames explicitly, see {@link #addAnimation(GFXRenderScheduler.Animation)}.<br/>
+ * All methods may be called from any thread, animations are called from main thread.
+ */
+class GFXRenderScheduler {
+
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    private final Target mTarget;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Animation> mAnimations = new ArrayList<>();
+    private final List<Animation> mRunning = new ArrayList<>();
+    private final Runnable mSchedule = new Runnable() {
+        @Override
+        public void run() {
+            schedule();
+        }
+    };
+    private final Runnable mFrame = new Runnable() {
+        @Override
+        public void run() {
+            doFrame(System.nanoTime());
+        }
+    };
+    private Object mFrameCallback;
+    private boolean mRequested;
+    private long mLastFrame;
+
+    /**
+     * Create scheduler
+     *
+     * @param target -- surface to render
+     */
+    GFXRenderScheduler(@NonNull Target target) {
+        this.mTarget = target;
+    }
+
+    /**
+     * Request single frame
+     */
+    void requestFrame() {
+        synchronized (this) {
+            if (mRequested) {
+                return;
+            }
+            mRequested = true;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            schedule();
+        } else {
+            mHandler.post(mSchedule);
+        }
+    }
+
+    /**
+     * Run animation, it is called before every frame until it returns false
+     *
+     * @param animation -- animation
+     */
+    void addAnimation(@NonNull Animation animation) {
+        synchronized (this) {
+            mAnimations.add(animation);
+        }
+        requestFrame();
+    }
+
+    /**
+     * Drop pending frame and all animations, call it when surface is paused
+     */
+    void cancel() {
+        synchronized (this) {
+            mAnimations.clear();
+            mRequested = false;
+        }
+        mHandler.removeCallbacks(mSchedule);
+        mHandler.removeCallbacks(mFrame);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && mFrameCallback != null) {
+            removeFrameCallback();
+        }
+    }
+
+    private void schedule() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postFrameCallback();
+        } else {
+            final long delay = mLastFrame + FRAME_INTERVAL_MS - SystemClock.uptimeMillis();
+            mHandler.postDelayed(mFrame, Math.max(0, delay));
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        if (mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    GFXRenderScheduler.this.doFrame(frameTimeNanos);
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void removeFrameCallback() {
+        Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+
+    private void doFrame(long frameTimeNanos) {
+        mLastFrame = SystemClock.uptimeMillis();
+        synchronized (this) {
+            mRequested = false;
+            mRunning.addAll(mAnimations);
+        }
+        boolean animating = false;
+        for (Animation animation : mRunning) {
+            if (animation.doFrame(frameTimeNanos)) {
+                animating = true;
+            } else {
+                synchronized (this) {
+                    mAnimations.remove(animation);
+                }
+            }
+        }
+        mRunning.clear();
+        mTarget.render();
+        if (animating) {
+            requestFrame();
+        }
+    }
+
+    /**
+     * Surface rendered by scheduler
+     */
+    interface Target {
+        /**
+         * Render single frame now
+         */
+        void render();
+    }
+
+    /**
+     * Animation driven by scheduler
+     */
+    interface Animation {
+        /**
+         * Advance animation
+         *
+         * @param frameTimeNanos -- frame time, {@link System#nanoTime()} base
+         * @return true if more frames are needed
+         */
+        boolean doFrame(long frameTimeNanos);
+    }
+}
@@ -5,17 +5,25 @@ import android.opengl.GLSurfaceView;
 
 import org.lastrix.collagemaker.app.BuildConfig;
 
-import java.util.Deque;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
+import static android.opengl.GLES20.glFinish;
+
 /**
- * Controls entities and rendering procedure.
+ * Controls entities and rendering procedure.<br/>
+ * Scene is owned by GL thread, UI thread never blocks on it:
+ * hit testing queries spatial index published by GL thread, moves are stored in entities and zoom is queued
+ * as command, both are applied at frame start, z-order is a counter, so raising entity is O(1) and order is sorted
+ * on GL thread when it changes, by z copied at frame start.
  * Created by lastrix on 8/17/14.
  */
 class GFXRenderer implements GLSurfaceView.Renderer {
@@ -26,14 +34,34 @@ class GFXRenderer implements GLSurfaceView.Renderer {
         public void captured(Bitmap bmp) {
 
         }
+
+        @Override
+        public void exported(Bitmap bmp) {
+            if (bmp != null) {
+                bmp.recycle();
+            }
+        }
     };
 
     private static final boolean LOG_ALL = BuildConfig.LOG_ALL;
 
-    private final List<GFXEntity> mEntities = new LinkedList<GFXEntity>();
-    private final Deque<GFXEntity> mDrawOrder = new LinkedList<GFXEntity>();
-    private final Object mLock = new Object();
-    private GFXListener mGfxListener;
+    private static final Comparator<GFXEntity> Z_ORDER = new Comparator<GFXEntity>() {
+        @Override
+        public int compare(GFXEntity lhs, GFXEntity rhs) {
+            final long l = lhs.getSortZ();
+            final long r = rhs.getSortZ();
+            return l < r ? -1 : (l == r ? 0 : 1);
+        }
+    };
+
+    // GL thread only, bottom first
+    private final ArrayList<GFXEntity> mEntities = new ArrayList<>();
+    private final Queue<Runnable> mCommands = new ConcurrentLinkedQueue<>();
+    private final AtomicLong mTopZ = new AtomicLong();
+    private final GFXSpatialIndex mIndex = new GFXSpatialIndex();
+    private volatile boolean mOrderChanged;
+    private volatile float mZoom;
+    private volatile GFXListener mGfxListener;
     private boolean mDestroy = false;
     private boolean mDestroyed = false;
     private volatile boolean mLoading = true;
@@ -41,10 +69,30 @@ class GFXRenderer implements GLSurfaceView.Renderer {
     private volatile boolean mCapture = false;
     private float mMax;
     private GFXEntity mLoadingEntity;
-
-    public GFXRenderer() {
+    private final float[] mTransform = new float[4];
+    // left, right, bottom, top
+    private final float[] mVisibleArea = new float[4];
+    private final GFXTextureResidency mResidency;
+    private final GFXFrameStats mStats;
+    private final GFXBatch mBatch = new GFXBatch();
+    private final GFXAtlas mAtlas = new GFXAtlas();
+    private final GFXExporter mExporter;
+    private final GFXCapture mCapturer;
+    private final float[] mExportArea = new float[4];
+    // placement of late entities, GL thread only
+    private final Random mRandom = new Random();
+    // GL thread only: pending export, waits until visible entities have full levels
+    private int mExportLongSide;
+    private GFXListener mExportListener;
+
+    public GFXRenderer(GFXTextureResidency residency, GFXFrameStats stats, GFXCapture capture) {
+        mResidency = residency;
+        mStats = stats;
+        mCapturer = capture;
         mGfxListener = DUMMY_LISTENER;
         mGfxResource = new GFXResource();
+        mExporter = new GFXExporter(mGfxResource, mBatch);
+        mZoom = mGfxResource.getZoom();
         mLoadingEntity = GFXEntity.create();
         onLoading(1);
     }
@@ -53,12 +101,24 @@ class GFXRenderer implements GLSurfaceView.Renderer {
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
         mDestroy = false;
         mDestroyed = false;
-        mLoading = true;
+        if (mEntities.isEmpty()) {
+            mLoading = true;
+        } else {
+            //context was lost with scene alive, old texture ids are dead
+            mResidency.onContextLost();
+        }
         if (!mGfxResource.init()) {
             mDestroy = true;
         }
 
         mGfxResource.surfaceCreated(gl, config);
+        mStats.onSurfaceCreated();
+        GFXTextureCache.checkCompressionSupport();
+        mAtlas.init();
+        mCapturer.init();
+        if (!mBatch.init()) {
+            mDestroy = true;
+        }
     }
 
     @Override
@@ -76,12 +136,16 @@ class GFXRenderer implements GLSurfaceView.Renderer {
      * @param gfxListener -- the listener
      */
     public void setGfxListener(GFXListener gfxListener) {
-        synchronized (mLock) {
-            this.mGfxListener = gfxListener;
-            if (mGfxListener == null) {
-                mGfxListener = DUMMY_LISTENER;
-            }
-        }
+        this.mGfxListener = gfxListener == null ? DUMMY_LISTENER : gfxListener;
+    }
+
+    /**
+     * Return listener
+     *
+     * @return the listener, never null
+     */
+    public GFXListener getGfxListener() {
+        return mGfxListener;
     }
 
     @Override
@@ -93,80 +157,172 @@ class GFXRenderer implements GLSurfaceView.Renderer {
             return;
         }
 
+        final long started = GFXFrameStats.start();
+        Runnable command;
+        while ((command = mCommands.poll()) != null) {
+            command.run();
+        }
+
         //handle scene
-        if (mLoading) {
+        final boolean loading = mLoading;
+        if (!loading) {
+            updateScene();
+        }
+        final long updated = GFXFrameStats.start();
+        if (loading) {
             drawLoadingScreen(unused);
         } else {
             drawScene(unused);
         }
+        final long submitted = GFXFrameStats.start();
+        if (mStats.shouldSampleGpu()) {
+            glFinish();
+            mStats.recordGpu(submitted);
+        }
+        mStats.recordFrame(started, updated, submitted, mResidency.getCommittedBytes(), mResidency.getBudget());
 
-        if (mCapture) {
+        // scene only, request waits for loading to finish
+        if (mCapture && !loading) {
             mCapture = false;
-            mGfxListener.captured(mGfxResource.capture());
+            mCapturer.capture(mEntities, mBatch, mGfxResource.getWorld(), mVisibleArea,
+                    mGfxResource.getWidth(), mGfxResource.getHeight(), mGfxListener);
+        }
+        if (mExportLongSide != 0 && !loading
+                && mResidency.isFullyResident(mEntities, mVisibleArea[0], mVisibleArea[1], mVisibleArea[2], mVisibleArea[3])) {
+            runExport();
         }
     }
 
-    private void drawScene(GL10 unused) {
-        synchronized (mLock) {
-            mGfxResource.bind(unused);
-            for (GFXEntity entity : mDrawOrder) {
-                mGfxResource.draw(unused, entity.getModel(), entity.getTextureId());
+    private void updateScene() {
+        if (mOrderChanged) {
+            mOrderChanged = false;
+            // UI thread may raise entities meanwhile, sort must see consistent keys
+            for (GFXEntity entity : mEntities) {
+                entity.latchZ();
             }
-            mGfxResource.unbind(unused);
+            Collections.sort(mEntities, Z_ORDER);
         }
+        for (GFXEntity entity : mEntities) {
+            entity.applyMove();
+        }
+        index();
+        mGfxResource.getVisibleArea(mVisibleArea);
+        mResidency.update(mEntities, mVisibleArea[0], mVisibleArea[1], mVisibleArea[2], mVisibleArea[3]);
+    }
+
+    private void drawScene(GL10 unused) {
+        mGfxResource.clear();
+        final int drawn = mBatch.draw(mEntities, mGfxResource.getWorld(), mVisibleArea);
+        mStats.recordCulling(drawn, mEntities.size() - drawn);
     }
 
     private void drawLoadingScreen(GL10 unused) {
         mGfxResource.bind(unused);
-        synchronized (mLock) {
-            mGfxResource.draw(unused, mLoadingEntity.getModel(), 0);
-        }
+        mLoadingEntity.getTransform(mTransform, 0);
+        mGfxResource.draw(unused, mTransform, 0);
         mGfxResource.unbind(unused);
     }
 
+    /**
+     * Bring spatial index up to date with entity bounds and publish it for UI thread.
+     * Only entities whose cells changed touch the index.
+     */
+    private void index() {
+        for (GFXEntity entity : mEntities) {
+            mIndex.update(entity);
+        }
+        mIndex.publish();
+    }
+
+
+    /**
+     * Stop exporter worker, call it when view is destroyed.
+     * Exports queued before are still delivered.
+     */
+    public void close() {
+        mExporter.close();
+    }
 
     /**
      * Removes everything
      */
     public void dispose() {
-        synchronized (mLock) {
-            mDrawOrder.clear();
-            for (GFXEntity entity : mEntities) {
-                entity.destroy();
-            }
-            mEntities.clear();
-            mDestroyed = true;
-            mLoading = true;
+        cancelExport();
+        for (GFXEntity entity : mEntities) {
+            entity.destroy();
         }
+        mEntities.clear();
+        mIndex.clear();
+        mResidency.clear();
+        mAtlas.clear();
+        mCapturer.destroy();
+        mBatch.destroy();
+        mDestroyed = true;
+        mLoading = true;
     }
 
     /**
-     * Add entity
+     * Add entity on top, call it from GL thread
      *
      * @param entity -- the entity
      */
     public void add(GFXEntity entity) {
-        synchronized (mLock) {
-            mEntities.add(entity);
-            mDrawOrder.add(entity);
+        entity.setZ(mTopZ.incrementAndGet());
+        entity.latchZ();
+        mEntities.add(entity);
+        //late entity, scene is already placed
+        if (!mLoading) {
+            place(entity, mRandom);
+            mIndex.update(entity);
+            mIndex.publish();
         }
     }
 
     /**
-     * Put object to top, so it would be drawn last
+     * Return texture residency manager, use it only from GL thread
+     *
+     * @return residency
+     */
+    public GFXTextureResidency getResidency() {
+        return mResidency;
+    }
+
+    /**
+     * Return thumbnail atlas, use it only from GL thread
+     *
+     * @return atlas
+     */
+    public GFXAtlas getAtlas() {
+        return mAtlas;
+    }
+
+    /**
+     * Put object to top, so it would be drawn last.<br/>
+     * Safe to call from any thread, order is sorted on next frame.
      *
      * @param e -- the entity
      */
     public void putToTop(GFXEntity e) {
         if (mLoading) return;
-        synchronized (mLock) {
-            mDrawOrder.remove(e);
-            mDrawOrder.add(e);
-        }
+        e.setZ(mTopZ.incrementAndGet());
+        mOrderChanged = true;
     }
 
     /**
-     * Locates entity under coordinates
+     * Move entity on next frame, safe to call from any thread, nothing is allocated
+     *
+     * @param e -- the entity
+     * @param x -- new x
+     * @param y -- new y
+     */
+    public void moveTo(GFXEntity e, float x, float y) {
+        e.moveTo(x, y);
+    }
+
+    /**
+     * Locates entity under coordinates, safe to call from any thread.<br/>
+     * Only entities of single index cell are tested against their real bounds, topmost entity is chosen by z,
+     * so entities raised after publication are handled too.
      *
      * @param x -- the x
      * @param y -- the y
@@ -174,22 +330,7 @@ class GFXRenderer implements GLSurfaceView.Renderer {
      */
     public GFXEntity getEntityUnder(float x, float y) {
         if (mLoading) return null;
-        //TODO: ratio is not handled
-        synchronized (mLock) {
-            Iterator<GFXEntity> it = mDrawOrder.descendingIterator();
-            GFXEntity e;
-            float dx;
-            float dy;
-            while (it.hasNext()) {
-                e = it.next();
-                dx = x - e.getX();
-                dy = y - e.getY();
-                if (dx > 0f && dx < 1f && dy > 0f && dy < 1f) {
-                    return e;
-                }
-            }
-        }
-        return null;
+        return mIndex.query(x, y);
     }
 
     /**
@@ -199,13 +340,66 @@ class GFXRenderer implements GLSurfaceView.Renderer {
         mCapture = true;
     }
 
+    /**
+     * Drop capture request that was not served yet, listener is not called for it
+     */
+    public void cancelCapture() {
+        mCapture = false;
+    }
+
+    /**
+     * Render visible area offscreen, see {@link GFXExporter}.<br/>
+     * Visible entities are pinned at full level first, export is rendered on the frame they all are resident,
+     * see {@link GFXTextureResidency#setPinned(boolean)}. Texture detail is that of full level, decoded for screen.<br/>
+     * Call it from GL thread and request render, image is passed to
+     * {@link GFXListener#exported(android.graphics.Bitmap)} on main thread.
+     *
+     * @param longSide -- size of longer image side in pixels, shorter one follows screen aspect
+     * @return false if scene is not ready, listener is not called then
+     */
+    public boolean export(int longSide) {
+        if (mLoading || mDestroyed) {
+            return false;
+        }
+        cancelExport();
+        mExportLongSide = longSide;
+        mExportListener = mGfxListener;
+        mResidency.setPinned(true);
+        return true;
+    }
+
+    private void runExport() {
+        final int longSide = mExportLongSide;
+        final GFXListener listener = mExportListener;
+        mExportLongSide = 0;
+        mExportListener = null;
+        mGfxResource.getVisibleArea(mExportArea);
+        final float ratio = (mExportArea[1] - mExportArea[0]) / (mExportArea[3] - mExportArea[2]);
+        final int width = ratio >= 1f ? longSide : Math.max(1, Math.round(longSide * ratio));
+        final int height = ratio >= 1f ? Math.max(1, Math.round(longSide / ratio)) : longSide;
+        mExporter.export(mEntities, mExportArea, width, height, listener);
+        mResidency.setPinned(false);
+    }
+
+    /**
+     * Drop pending export, its listener receives null
+     */
+    private void cancelExport() {
+        if (mExportLongSide != 0) {
+            mExporter.fail(mExportListener);
+            mExportLongSide = 0;
+            mExportListener = null;
+            mResidency.setPinned(false);
+        }
+    }
+
     /**
      * Get zoom
      *
      * @return zoom
      */
     public float getZoom() {
-        return mGfxResource.getZoom();
+        return mZoom;
     }
 
     /**
@@ -213,31 +407,38 @@ class GFXRenderer implements GLSurfaceView.Renderer {
      *
      * @param zoom -- new zoom
      */
-    public void setZoom(float zoom) {
-        if (!mLoading) {
-            synchronized (mLock) {
+    public void setZoom(final float zoom) {
+        if (mLoading || zoom < GFXResource.ZOOM_MIN || zoom > GFXResource.ZOOM_MAX) {
+            return;
+        }
+        mZoom = zoom;
+        mCommands.add(new Runnable() {
+            @Override
+            public void run() {
                 mGfxResource.setZoom(zoom);
                 mLoadingEntity.setPosition(-zoom * mGfxResource.getRatio(), -zoom);
                 mLoadingEntity.setScale(zoom * 2f * mGfxResource.getRatio(), zoom * 2f);
             }
-        }
+        });
     }
 
     /**
      * Should be called when current scene should be drawn.
      */
     public void ready() {
-        synchronized (mLock) {
-            //place entities correctly
-            Random random = new Random(mEntities.size());
-            final float xLim = getZoom() * mGfxResource.getRatio();
-            final float yLim = getZoom();
-
-            for (GFXEntity entity : mEntities) {
-                entity.setPosition(xLim * (random.nextFloat() * 1.5f - 0.75f), yLim * (random.nextFloat() * 1.5f - 0.75f));
-            }
-            mLoading = false;
+        //place entities correctly
+        Random random = new Random(mEntities.size());
+        for (GFXEntity entity : mEntities) {
+            place(entity, random);
         }
+        index();
+        mLoading = false;
+    }
+
+    private void place(GFXEntity entity, Random random) {
+        final float xLim = getZoom() * mGfxResource.getRatio();
+        final float yLim = getZoom();
+        entity.setPosition(xLim * (random.nextFloat() * 1.5f - 0.75f), yLim * (random.nextFloat() * 1.5f - 0.75f));
     }
 
     /**
@@ -248,9 +449,7 @@ class GFXRenderer implements GLSurfaceView.Renderer {
     public void onLoading(int max) {
         mMax = (float) max;
         float scale = getZoom() * 2f;
-        synchronized (mLock) {
-            mLoadingEntity.setScale(scale * mGfxResource.getRatio(), scale);
-        }
+        mLoadingEntity.setScale(scale * mGfxResource.getRatio(), scale);
     }
 
     /**
@@ -260,25 +459,24 @@ class GFXRenderer implements GLSurfaceView.Renderer {
      */
     public void onProgress(int left) {
         float scale = (float) left / mMax * getZoom() * 2f;
-        synchronized (mLock) {
-            mLoadingEntity.setScale(scale * mGfxResource.getRatio(), mLoadingEntity.getScaleY());
-        }
+        mLoadingEntity.setScale(scale * mGfxResource.getRatio(), mLoadingEntity.getScaleY());
     }
 
     /**
      * Resets state of render
      */
     public void clearState() {
-        synchronized (mLock) {
-            mLoading = true;
-            for (GFXEntity entity : mEntities) {
-                entity.destroy();
-            }
-            mEntities.clear();
-            mDrawOrder.clear();
-            mLoadingEntity.setPosition(-getZoom() * mGfxResource.getRatio(), -getZoom());
-            mLoadingEntity.setScale(getZoom() * 2f * mGfxResource.getRatio(), getZoom() * 2f);
-            onLoading(1);
+        cancelExport();
+        mLoading = true;
+        for (GFXEntity entity : mEntities) {
+            entity.destroy();
         }
+        mEntities.clear();
+        mIndex.clear();
+        mResidency.clear();
+        mAtlas.clear();
+        mLoadingEntity.setPosition(-getZoom() * mGfxResource.getRatio(), -getZoom());
+        mLoadingEntity.setScale(getZoom() * 2f * mGfxResource.getRatio(), getZoom() * 2f);
+        onLoading(1);
     }
 }
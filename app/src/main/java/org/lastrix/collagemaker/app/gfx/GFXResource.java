@@ -5,6 +5,8 @@ import android.opengl.GLES20;
 import android.opengl.Matrix;
 import android.util.Log;
 
+import org.lastrix.collagemaker.app.BuildConfig;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 import java.nio.*;
@@ -27,13 +29,14 @@ class GFXResource {
     public static final int COORDS_PER_VERTEX = 3;
     public static final int VERTEX_STRIDE = COORDS_PER_VERTEX * 4;
     static final String SHADER_VERTEX =
-            "        uniform mat4 uMVPMatrix;\n" +
+            "        uniform mat4 uWorld;\n" +
+                    "        uniform vec4 uTransform;\n" +
                     "        attribute vec4 vPosition;\n" +
                     "        attribute vec2 a_texCoord;\n" +
                     "        varying vec2 v_texCoord;\n" +
                     "\n" +
                     "        void main() {\n" +
-                    "        gl_Position = uMVPMatrix * vPosition;\n" +
+                    "        gl_Position = uWorld * vec4(vPosition.xy * uTransform.zw + uTransform.xy, 0.0, 1.0);\n" +
                     "        v_texCoord = a_texCoord;\n" +
                     "        }\n";
     static final String SHADER_TEXTURE =
@@ -58,6 +61,7 @@ class GFXResource {
     };
     static final short TILE_ORDER[] = {0, 1, 2, 0, 2, 3}; // order to draw vertices
     private static final String LOG_TAG = GFXResource.class.getSimpleName();
+    private static final boolean LOG_ALL = BuildConfig.LOG_ALL;
 
     public static final float ZOOM_MIN = 1f;
     public static final float ZOOM_MAX = 10f;
@@ -65,15 +69,16 @@ class GFXResource {
     private final float[] mProjectionMatrix = new float[16];
     private final float[] mViewMatrix = new float[16];
     private final float[] mWorld = new float[16];
-    private final float[] mScratch = new float[16];
-    private FloatBuffer mVertexBuffer;
-    private FloatBuffer mTextureBuffer;
-    private ShortBuffer mDrawListBuffer;
+    private final float[] mTileProjection = new float[16];
+    private int mVertexBufferId;
+    private int mTextureBufferId;
+    private int mDrawListBufferId;
     private int mDrawListBufferSize;
     private int mProgram;
     private int mPositionHandle;
     private int mTexCoord;
-    private int mMVPMatrixHandle;
+    private int mWorldHandle;
+    private int mTransformHandle;
     private int mSamplerLoc;
     private int mVertexShader;
     private int mTextureShader;
@@ -87,6 +92,18 @@ class GFXResource {
         mInitializing = true;
     }
 
+    /**
+     * Return largest on-screen height of entity in pixels.<br/>
+     * Entity is one world unit high, it is the largest at {@link #ZOOM_MIN},
+     * when 2 * ZOOM_MIN units fill surface height.
+     *
+     * @param surfaceHeight -- surface height in pixels
+     * @return height in pixels
+     */
+    static int maxEntityHeight(int surfaceHeight) {
+        return (int) Math.ceil(surfaceHeight / (2f * ZOOM_MIN));
+    }
+
     /**
      * Load values to buffer
      *
@@ -143,10 +160,23 @@ class GFXResource {
      * @return true if success
      */
     public boolean init() {
+        // mesh is uploaded once, buffers of previous context are gone with it
+        int[] buffers = new int[3];
+        glGenBuffers(buffers.length, buffers, 0);
+        mVertexBufferId = buffers[0];
+        mTextureBufferId = buffers[1];
+        mDrawListBufferId = buffers[2];
         mDrawListBufferSize = TILE_ORDER.length;
-        mVertexBuffer = loadToBuffer(TILE_MESH);
-        mTextureBuffer = loadToBuffer(TILE_TEX);
-        mDrawListBuffer = loadToBuffer(TILE_ORDER);
+
+        glBindBuffer(GL_ARRAY_BUFFER, mVertexBufferId);
+        glBufferData(GL_ARRAY_BUFFER, TILE_MESH.length * 4, loadToBuffer(TILE_MESH), GL_STATIC_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, mTextureBufferId);
+        glBufferData(GL_ARRAY_BUFFER, TILE_TEX.length * 4, loadToBuffer(TILE_TEX), GL_STATIC_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, mDrawListBufferId);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, TILE_ORDER.length * 2, loadToBuffer(TILE_ORDER), GL_STATIC_DRAW);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+        checkGlError("glBufferData");
 
 
         mVertexShader = loadShader(GL_VERTEX_SHADER, SHADER_VERTEX);
@@ -176,8 +206,10 @@ class GFXResource {
             mTexCoord = glGetAttribLocation(mProgram, "a_texCoord");
             checkGlError("glGetAttribLocation");
 
-            // get handle to shape's transformation matrix
-            mMVPMatrixHandle = glGetUniformLocation(mProgram, "uMVPMatrix");
+            mWorldHandle = glGetUniformLocation(mProgram, "uWorld");
+            checkGlError("glGetUniformLocation");
+
+            mTransformHandle = glGetUniformLocation(mProgram, "uTransform");
             checkGlError("glGetUniformLocation");
 
             mSamplerLoc = glGetUniformLocation(mProgram, "s_texture");
@@ -197,7 +229,7 @@ class GFXResource {
      * @param shaderCode - String containing the shader code.
      * @return - Returns an id for the shader.
      */
-    private int loadShader(int type, String shaderCode) {
+    static int loadShader(int type, String shaderCode) {
 
         int shader = glCreateShader(type);
 
@@ -217,7 +249,7 @@ class GFXResource {
      * @param config -- egl configuration
      */
     public void surfaceCreated(GL10 unused, EGLConfig config) {
-        glClearColor(0.3f, 0.5f, 0.1f, 0.0f);
+        setClearColor();
         GLES20.glEnable(GLES20.GL_BLEND);
         GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
     }
@@ -236,24 +268,55 @@ class GFXResource {
         glClear(GL_COLOR_BUFFER_BIT);
 
         glUseProgram(mProgram);
-        checkGlError("glUseProgram");
+        if (LOG_ALL) checkGlError("glUseProgram");
 
         // Enable a handle to the triangle vertices
         glEnableVertexAttribArray(mPositionHandle);
-        checkGlError("glEnableVertexAttribArray");
+        if (LOG_ALL) checkGlError("glEnableVertexAttribArray");
 
         // Prepare the triangle coordinate data
-        glVertexAttribPointer(mPositionHandle, COORDS_PER_VERTEX, GL_FLOAT, false, VERTEX_STRIDE, mVertexBuffer);
-        checkGlError("glVertexAttribPointer");
+        glBindBuffer(GL_ARRAY_BUFFER, mVertexBufferId);
+        glVertexAttribPointer(mPositionHandle, COORDS_PER_VERTEX, GL_FLOAT, false, VERTEX_STRIDE, 0);
+        if (LOG_ALL) checkGlError("glVertexAttribPointer");
 
         glEnableVertexAttribArray(mTexCoord);
-        checkGlError("glEnableVertexAttribArray");
+        if (LOG_ALL) checkGlError("glEnableVertexAttribArray");
+
+        glBindBuffer(GL_ARRAY_BUFFER, mTextureBufferId);
+        glVertexAttribPointer(mTexCoord, COORDS_PER_TEXTURE, GL_FLOAT, false, TEXTURE_STRIDE, 0);
+        if (LOG_ALL) checkGlError("glVertexAttribPointer");
 
-        glVertexAttribPointer(mTexCoord, COORDS_PER_TEXTURE, GL_FLOAT, false, TEXTURE_STRIDE, mTextureBuffer);
-        checkGlError("glVertexAttribPointer");
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, mDrawListBufferId);
 
         glUniform1i(mSamplerLoc, 0);
-        checkGlError("glUniform1i");
+        if (LOG_ALL) checkGlError("glUniform1i");
+
+        glUniformMatrix4fv(mWorldHandle, 1, false, mWorld, 0);
+        if (LOG_ALL) checkGlError("glUniformMatrix4fv");
+    }
+
+    /**
+     * Set background color of scene
+     */
+    static void setClearColor() {
+        glClearColor(0.3f, 0.5f, 0.1f, 0.0f);
+    }
+
+    /**
+     * Clear color and depth buffers
+     */
+    public void clear() {
+        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+    }
+
+    /**
+     * Return world matrix: projection and view
+     *
+     * @return matrix, do not modify
+     */
+    public float[] getWorld() {
+        return mWorld;
     }
 
     /**
@@ -267,16 +330,17 @@ class GFXResource {
         }
 
         glDisableVertexAttribArray(mPositionHandle);
-        checkGlError("glDisableVertexAttribArray");
+        if (LOG_ALL) checkGlError("glDisableVertexAttribArray");
 
         glDisableVertexAttribArray(mTexCoord);
-        checkGlError("glDisableVertexAttribArray");
+        if (LOG_ALL) checkGlError("glDisableVertexAttribArray");
 
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
         glBindTexture(GL_TEXTURE_2D, 0);
-        checkGlError("glBindTexture");
+        if (LOG_ALL) checkGlError("glBindTexture");
 
         glUseProgram(0);
-        checkGlError("glUseProgram");
+        if (LOG_ALL) checkGlError("glUseProgram");
 
     }
 
@@ -294,9 +358,10 @@ class GFXResource {
         mVertexShader = 0;
         mTextureShader = 0;
 
-        mVertexBuffer = null;
-        mTextureBuffer = null;
-        mDrawListBuffer = null;
+        glDeleteBuffers(3, new int[]{mVertexBufferId, mTextureBufferId, mDrawListBufferId}, 0);
+        mVertexBufferId = 0;
+        mTextureBufferId = 0;
+        mDrawListBufferId = 0;
         mDrawListBufferSize = 0;
     }
 
@@ -354,47 +419,65 @@ class GFXResource {
     }
 
     /**
-     * Draw object with custom model and texture
+     * Draw object with custom transform and texture
      *
      * @param unused    -- not used
-     * @param mModel    -- model matrix
+     * @param transform -- x, y, width, height, see {@link GFXEntity#getTransform(float[], int)}
      * @param textureId -- the texture
      */
-    public void draw(GL10 unused, float[] mModel, int textureId) {
+    public void draw(GL10 unused, float[] transform, int textureId) {
         glBindTexture(GL_TEXTURE_2D, textureId);
 
-        Matrix.multiplyMM(mScratch, 0, mWorld, 0, mModel, 0);
-
-        glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mScratch, 0);
-        checkGlError("glUniformMatrix4fv");
+        glUniform4fv(mTransformHandle, 1, transform, 0);
+        if (LOG_ALL) checkGlError("glUniform4fv");
 
-        glDrawElements(
-                GL_TRIANGLES, mDrawListBufferSize,
-                GL_UNSIGNED_SHORT, mDrawListBuffer);
+        // index buffer is bound by bind()
+        glDrawElements(GL_TRIANGLES, mDrawListBufferSize, GL_UNSIGNED_SHORT, 0);
     }
 
     /**
-     * Make screen capture
+     * Return surface width
      *
-     * @return screen capture
+     * @return width in pixels
      */
-    public Bitmap capture() {
-        int size = mWidth * mHeight;
-        int[] array = new int[size];
-        IntBuffer buf = IntBuffer.wrap(array);
-        glReadPixels(0, 0, mWidth, mHeight, GL_RGBA, GL_UNSIGNED_BYTE, buf);
-
-        for (int i = 0; i < size; ++i) {
-            // The alpha and green channels' positions are preserved while the red and blue are swapped
-            array[i] = ((array[i] & 0xff00ff00)) | ((array[i] & 0x000000ff) << 16) | ((array[i] & 0x00ff0000) >> 16);
-        }
+    public int getWidth() {
+        return mWidth;
+    }
 
-        Bitmap bmp = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
-        bmp.setPixels(array, size - mWidth, -mWidth, 0, 0, mWidth, mHeight);
-        return bmp;
+    /**
+     * Return surface height
+     *
+     * @return height in pixels
+     */
+    public int getHeight() {
+        return mHeight;
     }
 
     public float getRatio() {
         return mRatio;
     }
+
+    /**
+     * Calculate world matrix showing part of world area with current view, used for offscreen tiles
+     *
+     * @param area  -- shown area: left, right, bottom, top
+     * @param world -- destination matrix
+     */
+    public void getWorld(float[] area, float[] world) {
+        Matrix.orthoM(mTileProjection, 0, area[0], area[1], area[2], area[3], ZOOM_MIN, ZOOM_MAX);
+        Matrix.multiplyMM(world, 0, mTileProjection, 0, mViewMatrix, 0);
+    }
+
+    /**
+     * Return world area covered by orthographic frustum of {@link #getWorld()}: camera looks at origin,
+     * half height is zoom
+     *
+     * @param area -- destination: left, right, bottom, top
+     */
+    public void getVisibleArea(float[] area) {
+        area[0] = -mZoom * mRatio;
+        area[1] = mZoom * mRatio;
+        area[2] = -mZoom;
+        area[3] = mZoom;
+    }
 }
@@ -0,0 +1,169 @@
+package org.lastrix.collagemaker.app.gfx;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Uniform grid over entity bounds for hit testing.<br/>
+ * World is not bounded, so grid cells are hashed into {@link #GRID} x {@link #GRID} buckets,
+ * bucket may hold entities of distant cells, they are filtered by exact bounds test.<br/>
+ * Index is maintained by GL thread, see {@link #update(GFXEntity)}, and published copy-on-write:
+ * changed buckets are replaced with new arrays, so {@link #query(float, float)} may be called
+ * from any thread without locking and costs the same for any number of entities.
+ * Buckets hold immutable bounds snapshots taken on GL thread, queries never read entity position.
+ */
+class GFXSpatialIndex {
+
+    // power of two, cell coordinates are masked
+    private static final int GRID = 32;
+    // entity is one unit high
+    private static final float CELL_SIZE = 1f;
+    private static final Entry[] EMPTY_BUCKET = new Entry[0];
+
+    // GL thread only: last indexed snapshot of entity
+    private final Map<GFXEntity, Entry> mEntries = new HashMap<>();
+    private volatile Entry[][] mBuckets = emptyBuckets();
+    // GL thread only: copy being modified, null when nothing changed since publish()
+    private Entry[][] mPending;
+
+    private static Entry[][] emptyBuckets() {
+        Entry[][] buckets = new Entry[GRID * GRID][];
+        Arrays.fill(buckets, EMPTY_BUCKET);
+        return buckets;
+    }
+
+    private static int cell(float coordinate) {
+        return (int) Math.floor(coordinate / CELL_SIZE);
+    }
+
+    private static int bucket(int cx, int cy) {
+        return (cx & (GRID - 1)) * GRID + (cy & (GRID - 1));
+    }
+
+    /**
+     * Index entity or update its snapshot if bounds changed, call it from GL thread.
+     * Changes are visible to {@link #query(float, float)} after {@link #publish()}.
+     *
+     * @param entity -- the entity
+     */
+    void update(GFXEntity entity) {
+        final float x = entity.getX();
+        final float y = entity.getY();
+        final float width = entity.getWidth();
+        final float height = entity.getHeight();
+        final Entry entry = mEntries.get(entity);
+        if (entry != null && entry.mX == x && entry.mY == y && entry.mWidth == width && entry.mHeight == height) {
+            return;
+        }
+        if (entry != null) {
+            forEachBucket(entry, false);
+        }
+        final Entry updated = new Entry(entity, x, y, width, height);
+        mEntries.put(entity, updated);
+        forEachBucket(updated, true);
+    }
+
+    /**
+     * Drop all entities, call it from GL thread
+     */
+    void clear() {
+        mEntries.clear();
+        mPending = null;
+        mBuckets = emptyBuckets();
+    }
+
+    /**
+     * Make updates visible to queries, call it from GL thread
+     */
+    void publish() {
+        if (mPending != null) {
+            mBuckets = mPending;
+            mPending = null;
+        }
+    }
+
+    /**
+     * Find topmost entity containing point, safe to call from any thread.
+     * Bounds are those of last {@link #publish()}.
+     *
+     * @param x -- world x
+     * @param y -- world y
+     * @return entity with largest z or null
+     */
+    GFXEntity query(float x, float y) {
+        GFXEntity top = null;
+        for (Entry e : mBuckets[bucket(cell(x), cell(y))]) {
+            final float dx = x - e.mX;
+            final float dy = y - e.mY;
+            if (dx >= 0f && dx < e.mWidth && dy >= 0f && dy < e.mHeight
+                    && (top == null || e.mEntity.getZ() > top.getZ())) {
+                top = e.mEntity;
+            }
+        }
+        return top;
+    }
+
+    private void forEachBucket(Entry entry, boolean add) {
+        if (mPending == null) {
+            mPending = mBuckets.clone();
+        }
+        final int x0 = cell(entry.mX);
+        final int y0 = cell(entry.mY);
+        // huge entity covers every bucket once
+        final int x1 = Math.min(cell(entry.mX + entry.mWidth), x0 + GRID - 1);
+        final int y1 = Math.min(cell(entry.mY + entry.mHeight), y0 + GRID - 1);
+        for (int cx = x0; cx <= x1; cx++) {
+            for (int cy = y0; cy <= y1; cy++) {
+                final int index = bucket(cx, cy);
+                mPending[index] = add ? with(mPending[index], entry) : without(mPending[index], entry);
+            }
+        }
+    }
+
+    private static Entry[] with(Entry[] bucket, Entry entry) {
+        for (Entry e : bucket) {
+            if (e == entry) {
+                //distant cells share bucket
+                return bucket;
+            }
+        }
+        Entry[] result = Arrays.copyOf(bucket, bucket.length + 1);
+        result[bucket.length] = entry;
+        return result;
+    }
+
+    private static Entry[] without(Entry[] bucket, Entry entry) {
+        for (int i = 0; i < bucket.length; i++) {
+            if (bucket[i] == entry) {
+                if (bucket.length == 1) {
+                    return EMPTY_BUCKET;
+                }
+                Entry[] result = new Entry[bucket.length - 1];
+                System.arraycopy(bucket, 0, result, 0, i);
+                System.arraycopy(bucket, i + 1, result, i, bucket.length - i - 1);
+                return result;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Entity bounds taken on GL thread, published to queries with bucket arrays
+     */
+    private static final class Entry {
+        private final GFXEntity mEntity;
+        private final float mX;
+        private final float mY;
+        private final float mWidth;
+        private final float mHeight;
+
+        private Entry(GFXEntity entity, float x, float y, float width, float height) {
+            this.mEntity = entity;
+            this.mX = x;
+            this.mY = y;
+            this.mWidth = width;
+            this.mHeight = height;
+        }
+    }
+}
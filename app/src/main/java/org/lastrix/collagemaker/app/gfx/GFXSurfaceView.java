@@ -1,5 +1,6 @@
 package org.lastrix.collagemaker.app.gfx;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
@@ -8,30 +9,84 @@ import android.support.annotation.NonNull;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.View;
+import android.widget.TextView;
 
+import com.nostra13.universalimageloader.core.DisplayImageOptions;
 import com.nostra13.universalimageloader.core.ImageLoader;
 import com.nostra13.universalimageloader.core.assist.FailReason;
+import com.nostra13.universalimageloader.core.assist.ImageSize;
+import com.nostra13.universalimageloader.core.assist.ViewScaleType;
+import com.nostra13.universalimageloader.core.imageaware.ImageAware;
+import com.nostra13.universalimageloader.core.imageaware.NonViewAware;
 import com.nostra13.universalimageloader.core.listener.ImageLoadingListener;
+import com.nostra13.universalimageloader.utils.MemoryCacheUtils;
 
 import org.lastrix.collagemaker.app.content.Photo;
+import org.lastrix.collagemaker.app.image.ImagePipeline;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Custom GLSurfaceView. See {@link #requestCapture()}, {@link #add(java.util.List)},
- * {@link #zoom(float)}.
+ * Custom GLSurfaceView. See {@link #requestCapture()}, {@link #requestExport(int)}, {@link #add(java.util.List)},
+ * {@link #zoom(float)}.<br/>
+ * Touch samples, historical ones included, are collected by {@link GFXTouchTracker}, drag and pinch zoom
+ * are applied once per frame right before rendering, dragged entity is moved to position predicted for
+ * the moment frame is shown.
  * Created by lastrix on 8/17/14.
  */
 public final class GFXSurfaceView extends GLSurfaceView {
 
     public static final String LOG_TAG = GFXSurfaceView.class.getSimpleName();
+    private static final int TEXTURE_BUDGET_DIVIDER = 4;
+    private static final long STATS_REFRESH_MS = 500;
+    private static final long NANOS_PER_MS = 1000000L;
+    // frame is shown on vsync after the one it was started at
+    private static final long DISPLAY_LATENCY_NANOS = 16 * NANOS_PER_MS;
     private GFXRenderer mRenderer;
     private GFXEntity mDragged;
-    private float mPreviousX;
-    private float mPreviousY;
+    private int mDragPointerId;
+    // dragged entity position relative to finger, world units
+    private float mGrabX;
+    private float mGrabY;
+    private final GFXTouchTracker mTracker = new GFXTouchTracker();
+    private final float[] mPoint = new float[2];
+    private ScaleGestureDetector mScaleDetector;
+    private float mTargetZoom;
+    private boolean mZoomPending;
+    private boolean mTouchScheduled;
+    private final GFXRenderScheduler.Animation mTouchUpdate = new GFXRenderScheduler.Animation() {
+        @Override
+        public boolean doFrame(long frameTimeNanos) {
+            applyTouch(frameTimeNanos);
+            return false;
+        }
+    };
     private AtomicInteger mPending;
+    private volatile Batch mBatch;
+    private GFXTextureCache mTextureCache;
+    private final GFXCapture mCapture = new GFXCapture();
+    private final GFXFrameStats mStats = new GFXFrameStats();
+    private TextView mStatsView;
+    private final Runnable mStatsRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (mStatsView != null) {
+                mStatsView.setText(mStats.overlayText());
+                postDelayed(this, STATS_REFRESH_MS);
+            }
+        }
+    };
+    private final GFXRenderScheduler mScheduler = new GFXRenderScheduler(new GFXRenderScheduler.Target() {
+        @Override
+        public void render() {
+            GFXSurfaceView.super.requestRender();
+        }
+    });
 
     public GFXSurfaceView(Context context) {
         super(context);
@@ -46,26 +101,93 @@ public final class GFXSurfaceView extends GLSurfaceView {
     private void init() {
         setEGLContextClientVersion(2);
 
-        mRenderer = new GFXRenderer();
+        mTextureCache = new GFXTextureCache(getContext());
+        final ActivityManager am = (ActivityManager) getContext().getSystemService(Context.ACTIVITY_SERVICE);
+        // gpu memory is shared with system ram on most devices, heap size tells how much device has
+        final long textureBudget = (long) am.getMemoryClass() * 1024L * 1024L / TEXTURE_BUDGET_DIVIDER;
+        mRenderer = new GFXRenderer(new GFXTextureResidency(this, mTextureCache, textureBudget, mStats), mStats, mCapture);
 
-        setEGLConfigChooser(8, 8, 8, 8, 0, 0);
+        // depth keeps draw order of batched entities, see GFXBatch
+        setEGLConfigChooser(8, 8, 8, 8, 16, 0);
         setRenderer(mRenderer);
 
         getHolder().setFormat(PixelFormat.TRANSLUCENT);
         // Render the view only when there is a change in the drawing data
-        setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+        setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+
+        mScaleDetector = new ScaleGestureDetector(getContext(), new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScaleBegin(ScaleGestureDetector detector) {
+                if (!mZoomPending) {
+                    mTargetZoom = mRenderer.getZoom();
+                }
+                return true;
+            }
+
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                // spreading fingers shows less of the world
+                setTargetZoom(mTargetZoom / detector.getScaleFactor());
+                return true;
+            }
+        });
     }
 
     /**
-     * Send destory signal
+     * Request frame, requests are coalesced to single frame per vsync, see {@link GFXRenderScheduler}.
+     */
+    @Override
+    public void requestRender() {
+        mScheduler.requestFrame();
+    }
+
+    /**
+     * Show frame statistics in text view, it is refreshed twice a second, see {@link GFXFrameStats}
+     *
+     * @param view -- overlay view, null hides statistics
+     */
+    public void setStatsView(TextView view) {
+        removeCallbacks(mStatsRefresh);
+        if (mStatsView != null) {
+            mStatsView.setVisibility(View.GONE);
+        }
+        mStatsView = view;
+        if (view != null) {
+            view.setVisibility(View.VISIBLE);
+            //drop old window
+            mStats.overlayText();
+            postDelayed(mStatsRefresh, STATS_REFRESH_MS);
+        }
+    }
+
+    /**
+     * Print frame statistics collected since view creation, see {@link GFXFrameStats}
+     *
+     * @param prefix -- line prefix
+     * @param writer -- destination
+     */
+    public void dump(@NonNull String prefix, @NonNull PrintWriter writer) {
+        mStats.dump(prefix, writer);
+    }
+
+    /**
+     * Send destory signal, pending image loads are cancelled
      */
     public void onDestroy() {
+        removeCallbacks(mStatsRefresh);
+        final Batch batch = mBatch;
+        if (batch != null) {
+            batch.cancel();
+        }
         queueEvent(new Runnable() {
             @Override
             public void run() {
                 mRenderer.dispose();
             }
         });
+        mTextureCache.close();
+        mCapture.close();
+        mRenderer.close();
     }
 
 
@@ -73,17 +195,24 @@ public final class GFXSurfaceView extends GLSurfaceView {
     public void onResume() {
         super.onResume();
         mRenderer.setGfxListener((GFXListener) getContext());
-        setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+        requestRender();
     }
 
     @Override
     public void onPause() {
         super.onPause();
+        mScheduler.cancel();
+        mTouchScheduled = false;
+        mZoomPending = false;
+        mDragged = null;
         mRenderer.setGfxListener(null);
         //free all memory
         queueEvent(new Runnable() {
             @Override
             public void run() {
+                if (mBatch != null) {
+                    mBatch.cancel();
+                }
                 mRenderer.clearState();
             }
         });
@@ -91,47 +220,120 @@ public final class GFXSurfaceView extends GLSurfaceView {
 
     @Override
     public boolean onTouchEvent(@NonNull MotionEvent event) {
-        float ratio = (float) getWidth() / (float) getHeight();
-        float w = getWidth();
-        float x = (event.getX() * 2.0f - w) / w * mRenderer.getZoom() * ratio;
-        float h = getHeight();
-        float y = -(event.getY() * 2.0f - h) / h * mRenderer.getZoom();
+        mScaleDetector.onTouchEvent(event);
 
-        switch (event.getAction()) {
+        switch (event.getActionMasked()) {
             case MotionEvent.ACTION_DOWN:
-                mDragged = mRenderer.getEntityUnder(x, y);
+                toWorld(event.getX(), event.getY(), mRenderer.getZoom(), mPoint);
+                mDragged = mRenderer.getEntityUnder(mPoint[0], mPoint[1]);
                 if (mDragged != null) {
-                    mPreviousX = x;
-                    mPreviousY = y;
+                    mDragPointerId = event.getPointerId(0);
+                    // fields of entity belong to GL thread
+                    final long position = mDragged.getPosition();
+                    mGrabX = GFXEntity.unpackX(position) - mPoint[0];
+                    mGrabY = GFXEntity.unpackY(position) - mPoint[1];
+                    mTracker.reset();
+                    mTracker.add(event.getEventTime() * NANOS_PER_MS, event.getX(), event.getY());
                     mRenderer.putToTop(mDragged);
-                    return true;
+                    requestRender();
                 }
-                break;
+                // the rest of gesture is needed for pinch
+                return true;
+
+            case MotionEvent.ACTION_POINTER_DOWN:
+                // pinch takes over
+                mDragged = null;
+                return true;
 
             case MotionEvent.ACTION_MOVE:
-                if (mDragged == null)
-                    break;
-                mDragged.setPosition(mDragged.getX() + (x - mPreviousX), mDragged.getY() + (y - mPreviousY));
-                mPreviousX = x;
-                mPreviousY = y;
-                requestRender();
+                if (mDragged == null) {
+                    return true;
+                }
+                final int index = event.findPointerIndex(mDragPointerId);
+                if (index < 0) {
+                    return true;
+                }
+                // samples batched since previous event
+                for (int h = 0; h < event.getHistorySize(); h++) {
+                    mTracker.add(event.getHistoricalEventTime(h) * NANOS_PER_MS,
+                            event.getHistoricalX(index, h), event.getHistoricalY(index, h));
+                }
+                mTracker.add(event.getEventTime() * NANOS_PER_MS, event.getX(index), event.getY(index));
+                scheduleTouchUpdate();
                 return true;
 
             case MotionEvent.ACTION_UP:
-                mDragged = null;
+            case MotionEvent.ACTION_CANCEL:
+                if (mDragged != null) {
+                    // finger stopped, drop prediction
+                    mTracker.last(mPoint);
+                    toWorld(mPoint[0], mPoint[1], mRenderer.getZoom(), mPoint);
+                    mRenderer.moveTo(mDragged, mGrabX + mPoint[0], mGrabY + mPoint[1]);
+                    mDragged = null;
+                    requestRender();
+                }
                 return true;
         }
         return false;
     }
 
     /**
-     * Change current zoom
+     * Convert view coordinates into world coordinates
+     *
+     * @param x    -- view x
+     * @param y    -- view y
+     * @param zoom -- zoom
+     * @param out  -- destination: x, y
+     */
+    private void toWorld(float x, float y, float zoom, float[] out) {
+        final float w = getWidth();
+        final float h = getHeight();
+        out[0] = (x * 2.0f - w) / w * zoom * (w / h);
+        out[1] = -(y * 2.0f - h) / h * zoom;
+    }
+
+    /**
+     * Apply gestures once before next frame
+     */
+    private void scheduleTouchUpdate() {
+        if (!mTouchScheduled) {
+            mTouchScheduled = true;
+            mScheduler.addAnimation(mTouchUpdate);
+        }
+    }
+
+    /**
+     * Apply gestures collected since previous frame: single zoom change and single move of dragged entity
+     * to position predicted for the moment frame is shown
+     *
+     * @param frameTimeNanos -- frame time
+     */
+    private void applyTouch(long frameTimeNanos) {
+        mTouchScheduled = false;
+        if (mZoomPending) {
+            mZoomPending = false;
+            mRenderer.setZoom(mTargetZoom);
+        }
+        if (mDragged != null && !mTracker.isEmpty()) {
+            mTracker.predict(frameTimeNanos + DISPLAY_LATENCY_NANOS, mPoint);
+            toWorld(mPoint[0], mPoint[1], mRenderer.getZoom(), mPoint);
+            mRenderer.moveTo(mDragged, mGrabX + mPoint[0], mGrabY + mPoint[1]);
+        }
+    }
+
+    /**
+     * Change current zoom, change is applied before next frame together with pinch zoom
      *
      * @param dZoom -- how zoom should be changed
      */
     public void zoom(float dZoom) {
-        mRenderer.setZoom(mRenderer.getZoom() + dZoom);
-        requestRender();
+        setTargetZoom((mZoomPending ? mTargetZoom : mRenderer.getZoom()) + dZoom);
+    }
+
+    private void setTargetZoom(float zoom) {
+        mTargetZoom = Math.max(GFXResource.ZOOM_MIN, Math.min(GFXResource.ZOOM_MAX, zoom));
+        mZoomPending = true;
+        scheduleTouchUpdate();
     }
 
     /**
@@ -142,14 +344,51 @@ public final class GFXSurfaceView extends GLSurfaceView {
         requestRender();
     }
 
+    /**
+     * Drop pending capture request, e.g. when scene will never finish loading.
+     * Capture already taken is still delivered.
+     */
+    public void cancelCapture() {
+        mRenderer.cancelCapture();
+    }
+
+    /**
+     * Request high-resolution export of what is shown on screen, see {@link GFXExporter}.
+     * Bitmap would be passed to {@link org.lastrix.collagemaker.app.gfx.GFXListener#exported(android.graphics.Bitmap)}
+     * on main thread.
+     *
+     * @param longSide -- size of longer image side in pixels
+     */
+    public void requestExport(final int longSide) {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                if (!mRenderer.export(longSide)) {
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mRenderer.getGfxListener().exported(null);
+                        }
+                    });
+                }
+                // export waits for full levels, uploads request further frames
+                requestRender();
+            }
+        });
+    }
+
     /**
      * Add photos to surface, for each photo image would be downloaded
-     * and converted to internal entity object.
+     * and converted to internal entity object.<br/>
+     * Photos shown before are uploaded straight from texture cache, see {@link GFXTextureCache}.
+     * Other entities are created from thumbnails first, usually they are in memory cache already,
+     * so scene is ready almost immediately. Full-sized images replace thumbnails as they arrive,
+     * see {@link GFXEntity#setTexture(GFXTextureCache.Texture)}.<br/>
+     * Images are decoded no larger than entity can be displayed, see {@link GFXResource#maxEntityHeight(int)}.
      *
      * @param photos -- list of photo
      */
     public void add(final List<Photo> photos) {
-        ImageLoader loader = ImageLoader.getInstance();
         final int size = photos.size();
 
         //if user selected nothing
@@ -159,17 +398,55 @@ public final class GFXSurfaceView extends GLSurfaceView {
         }
 
         //if not - do the job!
+        // only height matters: decoder keeps aspect ratio and scales to cover target size
+        final int surfaceHeight = getHeight() > 0 ? getHeight() : getResources().getDisplayMetrics().heightPixels;
         mPending = new AtomicInteger(size);
+        final Batch batch = new Batch(GFXResource.maxEntityHeight(surfaceHeight));
+        mBatch = batch;
         queueEvent(new Runnable() {
             @Override
             public void run() {
                 mRenderer.onLoading(size);
+                requestRender();
             }
         });
 
         for (Photo photo : photos) {
-            loader.loadImage(photo.getImageUrl(), new GFXImageLoadingListener(this, mPending));
+            mTextureCache.execute(new CachedTextureTask(this, new Slot(batch, photo), mPending));
+        }
+    }
+
+    /**
+     * Start loading of photo not found in texture cache: thumbnail first, then full-sized image
+     *
+     * @param slot    -- photo slot
+     * @param pending -- batch counter
+     */
+    private void load(Slot slot, AtomicInteger pending) {
+        final ImageLoader loader = ImageLoader.getInstance();
+        final Photo photo = slot.photo;
+        final List<Bitmap> thumbnails = MemoryCacheUtils.findCachedBitmapsForImageUri(photo.getThumbnailUrl(),
+                loader.getMemoryCache());
+        if (!thumbnails.isEmpty()) {
+            queueEvent(new NewGFXEntityRunnable(this, slot, thumbnails.get(0), pending));
+        } else {
+            // zero size means largest size of memory cache, as with ImageLoader#loadImage(String, ImageLoadingListener)
+            load(photo.getThumbnailUrl(), new ImageSize(0, 0), ImagePipeline.gridOptions(), slot, pending, false);
         }
+        load(photo.getImageUrl(), new ImageSize(1, slot.batch.height), ImagePipeline.collageOptions(), slot, pending, true);
+    }
+
+    /**
+     * Start image loading which can be cancelled with its batch
+     */
+    private void load(String uri, ImageSize size, DisplayImageOptions options, Slot slot, AtomicInteger pending,
+                      boolean fullSized) {
+        final ImageAware aware = new NonViewAware(uri, size, ViewScaleType.CROP);
+        if (!slot.batch.track(aware)) {
+            return;
+        }
+        ImageLoader.getInstance().displayImage(uri, aware, options,
+                new GFXImageLoadingListener(this, slot, pending, fullSized, aware));
     }
 
     /**
@@ -181,7 +458,6 @@ public final class GFXSurfaceView extends GLSurfaceView {
             public void run() {
                 mRenderer.ready();
                 requestRender();
-                setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
             }
         });
     }
@@ -191,54 +467,313 @@ public final class GFXSurfaceView extends GLSurfaceView {
      */
     private void updateProgress() {
         mRenderer.onProgress(mPending.get());
+        requestRender();
     }
 
     /**
-     * New entity creation task
+     * Loading state of single photo, entity is accessed only from GL thread
+     */
+    private static class Slot {
+        private final Batch batch;
+        private final Photo photo;
+        private GFXEntity entity;
+
+        private Slot(Batch batch, Photo photo) {
+            this.batch = batch;
+            this.photo = photo;
+        }
+    }
+
+    /**
+     * Photos passed to single {@link #add(java.util.List)} call,
+     * late images of cancelled batch are dropped
+     */
+    private static class Batch {
+        // decoded image height, part of texture cache key
+        private final int height;
+        private volatile boolean cancelled;
+        // image loads in flight, guarded by itself
+        private final List<ImageAware> loads = new ArrayList<>();
+
+        private Batch(int height) {
+            this.height = height;
+        }
+
+        /**
+         * Remember image load
+         *
+         * @param aware -- load target
+         * @return false if batch is cancelled and load should not be started
+         */
+        private boolean track(ImageAware aware) {
+            synchronized (loads) {
+                if (cancelled) {
+                    return false;
+                }
+                loads.add(aware);
+                return true;
+            }
+        }
+
+        private void untrack(ImageAware aware) {
+            synchronized (loads) {
+                loads.remove(aware);
+            }
+        }
+
+        /**
+         * Drop late images and cancel image loads in flight
+         */
+        private void cancel() {
+            final List<ImageAware> pending;
+            synchronized (loads) {
+                cancelled = true;
+                pending = new ArrayList<>(loads);
+                loads.clear();
+            }
+            for (ImageAware aware : pending) {
+                ImageLoader.getInstance().cancelDisplayTask(aware);
+            }
+        }
+    }
+
+    /**
+     * Looks up texture cache on cache thread, falls back to image loading on miss
+     */
+    private static class CachedTextureTask implements Runnable {
+        private final GFXSurfaceView mSurfaceView;
+        private final Slot mSlot;
+        private final AtomicInteger mPending;
+
+        public CachedTextureTask(GFXSurfaceView surfaceView, Slot slot, AtomicInteger pending) {
+            this.mSurfaceView = surfaceView;
+            this.mSlot = slot;
+            this.mPending = pending;
+        }
+
+        @Override
+        public void run() {
+            if (mSlot.batch.cancelled) {
+                return;
+            }
+            GFXTextureCache.Texture texture = mSurfaceView.mTextureCache.load(mSlot.photo.getImageUrl(), mSlot.batch.height);
+            if (texture != null) {
+                mSurfaceView.queueEvent(new NewGFXEntityRunnable(mSurfaceView, mSlot, texture, mPending));
+            } else {
+                mSurfaceView.load(mSlot, mPending);
+            }
+        }
+    }
+
+    /**
+     * Encodes full-sized image into texture on cache thread, stores it with its low level of detail
+     * and swaps entity texture. Full level is stored first, so residency manager may reload it right after swap.
+     */
+    private static class EncodeTextureTask implements Runnable {
+        private final GFXSurfaceView mSurfaceView;
+        private final Slot mSlot;
+        private final Bitmap mImage;
+
+        public EncodeTextureTask(GFXSurfaceView surfaceView, Slot slot, Bitmap image) {
+            this.mSurfaceView = surfaceView;
+            this.mSlot = slot;
+            this.mImage = image;
+        }
+
+        @Override
+        public void run() {
+            if (mSlot.batch.cancelled) {
+                ImagePipeline.bitmapPool().put(mImage);
+                return;
+            }
+            final GFXTextureCache cache = mSurfaceView.mTextureCache;
+            final GFXTextureCache.Texture texture = cache.encode(mImage);
+            final int lowHeight = GFXTextureResidency.lowHeight(mSlot.batch.height);
+            final Bitmap low = Bitmap.createScaledBitmap(mImage,
+                    Math.max(1, mImage.getWidth() * lowHeight / mImage.getHeight()), lowHeight, true);
+            final GFXTextureCache.Texture lowTexture = cache.encode(low);
+            if (low != mImage) {
+                low.recycle();
+            }
+            // full-sized images are not memory cached, so nobody else holds it
+            ImagePipeline.bitmapPool().put(mImage);
+
+            cache.store(mSlot.photo.getImageUrl(), mSlot.batch.height, texture);
+            mSurfaceView.queueEvent(new SwapTextureRunnable(mSurfaceView, mSlot, texture));
+            cache.store(mSlot.photo.getImageUrl(), lowHeight, lowTexture);
+        }
+    }
+
+    /**
+     * Stores thumbnail as low level of detail on cache thread, unless full image already stored real one
+     */
+    private static class StoreThumbnailTask implements Runnable {
+        private final GFXSurfaceView mSurfaceView;
+        private final Slot mSlot;
+        private final Bitmap mImage;
+
+        public StoreThumbnailTask(GFXSurfaceView surfaceView, Slot slot, Bitmap image) {
+            this.mSurfaceView = surfaceView;
+            this.mSlot = slot;
+            this.mImage = image;
+        }
+
+        @Override
+        public void run() {
+            final String url = mSlot.photo.getImageUrl();
+            final int lowHeight = GFXTextureResidency.lowHeight(mSlot.batch.height);
+            final GFXTextureCache cache = mSurfaceView.mTextureCache;
+            // thumbnail is memory cached, it is only read here
+            if (mSlot.batch.cancelled || mImage.isRecycled() || cache.contains(url, lowHeight)) {
+                return;
+            }
+            final GFXTextureCache.Texture texture = cache.encode(mImage);
+            cache.store(url, lowHeight, texture);
+            final int bytes = texture.getByteCount();
+            mSurfaceView.queueEvent(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mSlot.batch.cancelled && mSlot.entity != null) {
+                        mSurfaceView.mRenderer.getResidency().onLowCached(mSlot.entity, bytes);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * New entity creation task, created from thumbnail bitmap or cached texture.
+     * Both are null if thumbnail failed to load
      */
     private static class NewGFXEntityRunnable implements Runnable {
         private GFXSurfaceView mSurfaceView;
+        private Slot mSlot;
         private Bitmap mImage;
+        private GFXTextureCache.Texture mTexture;
         private AtomicInteger mPending;
 
-        public NewGFXEntityRunnable(GFXSurfaceView surfaceView, Bitmap image, AtomicInteger atomicInteger) {
+        public NewGFXEntityRunnable(GFXSurfaceView surfaceView, Slot slot, Bitmap image, AtomicInteger atomicInteger) {
             this.mSurfaceView = surfaceView;
+            this.mSlot = slot;
             this.mImage = image;
             this.mPending = atomicInteger;
         }
 
+        public NewGFXEntityRunnable(GFXSurfaceView surfaceView, Slot slot, GFXTextureCache.Texture texture, AtomicInteger atomicInteger) {
+            this.mSurfaceView = surfaceView;
+            this.mSlot = slot;
+            this.mTexture = texture;
+            this.mPending = atomicInteger;
+        }
+
         @Override
         public void run() {
-            mSurfaceView.mRenderer.add(GFXEntity.create(mImage));
+            if (mSlot.batch.cancelled) {
+                return;
+            }
+            //full-sized image may come first
+            final GFXTextureResidency residency = mSurfaceView.mRenderer.getResidency();
+            final long started = GFXFrameStats.start();
+            if (mTexture != null) {
+                mSlot.entity = GFXEntity.create(mTexture);
+                mSurfaceView.mStats.recordUpload(started);
+                mSurfaceView.mRenderer.add(mSlot.entity);
+                residency.onUploaded(mSlot.entity, mSlot.photo.getImageUrl(), mSlot.batch.height,
+                        GFXTextureResidency.LOD_FULL, mTexture.getByteCount());
+            } else if (mImage != null && mSlot.entity == null) {
+                final GFXAtlas atlas = mSurfaceView.mRenderer.getAtlas();
+                mSlot.entity = GFXEntity.create(mImage, atlas);
+                mSurfaceView.mStats.recordUpload(started);
+                mSurfaceView.mRenderer.add(mSlot.entity);
+                residency.onUploaded(mSlot.entity, mSlot.photo.getImageUrl(), mSlot.batch.height,
+                        GFXTextureResidency.LOD_LOW, GFXTextureResidency.byteCount(mImage));
+                residency.setAtlasBytes(atlas.getByteCount());
+                // evicted or lost thumbnail is restored from texture cache
+                mSurfaceView.mTextureCache.execute(new StoreThumbnailTask(mSurfaceView, mSlot, mImage));
+            }
             if (mPending.decrementAndGet() == 0) {
                 mSurfaceView.onLoadingCompleted();
             } else {
                 mSurfaceView.updateProgress();
             }
             mSurfaceView = null;
+            mSlot = null;
             mImage = null;
+            mTexture = null;
             mPending = null;
         }
     }
 
+    /**
+     * Replaces thumbnail texture with full-sized image
+     */
+    private static class SwapTextureRunnable implements Runnable {
+        private GFXSurfaceView mSurfaceView;
+        private Slot mSlot;
+        private GFXTextureCache.Texture mImage;
+
+        public SwapTextureRunnable(GFXSurfaceView surfaceView, Slot slot, GFXTextureCache.Texture image) {
+            this.mSurfaceView = surfaceView;
+            this.mSlot = slot;
+            this.mImage = image;
+        }
+
+        @Override
+        public void run() {
+            if (!mSlot.batch.cancelled) {
+                final long started = GFXFrameStats.start();
+                if (mSlot.entity == null) {
+                    mSlot.entity = GFXEntity.create(mImage);
+                    mSurfaceView.mRenderer.add(mSlot.entity);
+                } else {
+                    mSlot.entity.setTexture(mImage);
+                }
+                mSurfaceView.mStats.recordUpload(started);
+                mSurfaceView.mRenderer.getResidency().onUploaded(mSlot.entity, mSlot.photo.getImageUrl(),
+                        mSlot.batch.height, GFXTextureResidency.LOD_FULL, mImage.getByteCount());
+                mSurfaceView.requestRender();
+            }
+            mSurfaceView = null;
+            mSlot = null;
+            mImage = null;
+        }
+    }
+
     /**
      * Listens image loading.
-     * Since some tasks could fail - this one would make you sure, that loading won't be forever.
+     * Since some tasks could fail - this one would make you sure, that loading won't be forever:
+     * failed thumbnail still counts as loaded, failed full-sized image keeps thumbnail.
+     * Callbacks may come on image loader thread, images of cancelled batch are dropped.
      */
     private static class GFXImageLoadingListener implements ImageLoadingListener {
         private GFXSurfaceView mSurfaceView;
+        private Slot mSlot;
         private AtomicInteger mPending;
+        private final boolean mFullSized;
+        private final ImageAware mAware;
 
-        public GFXImageLoadingListener(GFXSurfaceView surfaceView, AtomicInteger mPending) {
+        public GFXImageLoadingListener(GFXSurfaceView surfaceView, Slot slot, AtomicInteger mPending, boolean fullSized,
+                                       ImageAware aware) {
             this.mSurfaceView = surfaceView;
+            this.mSlot = slot;
             this.mPending = mPending;
+            this.mFullSized = fullSized;
+            this.mAware = aware;
         }
 
         @Override
         public void onLoadingComplete(String imageUri, View view, final Bitmap loadedImage) {
-            mSurfaceView.queueEvent(new NewGFXEntityRunnable(mSurfaceView, loadedImage, mPending));
-            mSurfaceView = null;
-            mPending = null;
+            if (mSlot.batch.cancelled) {
+                if (mFullSized) {
+                    // full-sized images are not memory cached, so nobody else holds it
+                    ImagePipeline.bitmapPool().put(loadedImage);
+                }
+            } else if (mFullSized) {
+                mSurfaceView.mTextureCache.execute(new EncodeTextureTask(mSurfaceView, mSlot, loadedImage));
+            } else {
+                mSurfaceView.queueEvent(new NewGFXEntityRunnable(mSurfaceView, mSlot, loadedImage, mPending));
+            }
+            reset();
         }
 
         @Override
@@ -249,22 +784,22 @@ public final class GFXSurfaceView extends GLSurfaceView {
         @Override
         public void onLoadingFailed(String imageUri, View view, FailReason failReason) {
             Log.w(LOG_TAG, String.format("Failed to load image [%s]", imageUri));
+            onLoadingCancelled(imageUri, view);
+        }
+
+        @Override
+        public void onLoadingCancelled(String imageUri, View view) {
+            if (!mFullSized) {
+                mSurfaceView.queueEvent(new NewGFXEntityRunnable(mSurfaceView, mSlot, (Bitmap) null, mPending));
+            }
             reset();
         }
 
         private void reset() {
-            if (mPending.decrementAndGet() == 0) {
-                mSurfaceView.onLoadingCompleted();
-            } else {
-                mSurfaceView.updateProgress();
-            }
+            mSlot.batch.untrack(mAware);
             mSurfaceView = null;
+            mSlot = null;
             mPending = null;
         }
-
-        @Override
-        public void onLoadingCancelled(String imageUri, View view) {
-            reset();
-        }
     }
 }
@@ -0,0 +1,337 @@
+package org.lastrix.collagemaker.app.gfx;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.opengl.ETC1;
+import android.opengl.ETC1Util;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.nostra13.universalimageloader.cache.disc.naming.FileNameGenerator;
+import com.nostra13.universalimageloader.cache.disc.naming.Md5FileNameGenerator;
+
+import org.lastrix.collagemaker.app.BuildConfig;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static android.opengl.GLES20.*;
+
+/**
+ * Disk cache of GPU-ready textures keyed by image url and decoded height.<br/>
+ * Url is hashed into file name, local photo ids are not used: they are reused after store reset.<br/>
+ * Images are stored ETC1 compressed (4 bits per pixel) where device supports it,
+ * otherwise as raw RGB565. Cached texture is mapped and uploaded as is, so reopened
+ * collage does not decode JPEG at all.<br/>
+ * File format: magic, format, width, height, payload size (big endian ints), payload.<br/>
+ * Disk work must be done on cache thread, see {@link #execute(Runnable)}, tasks are dropped after {@link #close()}.
+ * Upload {@link GFXTextureCache.Texture} only from GL thread.
+ */
+class GFXTextureCache {
+
+    static final int FORMAT_ETC1 = 1;
+    static final int FORMAT_RGB565 = 2;
+
+    private static final String LOG_TAG = GFXTextureCache.class.getSimpleName();
+    private static final String LOG_MESSAGE_FAILED_STORE = "Failed to store texture [%s]";
+    private static final String LOG_MESSAGE_FAILED_LOAD = "Failed to load texture [%s]";
+    private static final String LOG_MESSAGE_TRIMMED = "Texture cache trimmed, %d files deleted, %d KB left";
+    private static final String LOG_MESSAGE_DROPPED = "Cache is closed, task dropped";
+    private static final boolean LOG_ALL = BuildConfig.LOG_ALL;
+    private static final String DIRECTORY = "textures";
+    private static final String FILE_FORMAT = "%s_%d.tex";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x54455831; // TEX1
+    private static final int HEADER_SIZE = 5 * 4;
+    private static final int RGB565_PIXEL_SIZE = 2;
+    private static final long DEFAULT_MAX_BYTES = 32L * 1024L * 1024L;
+
+    private static volatile boolean sEtc1Supported;
+    private static final FileNameGenerator sNameGenerator = new Md5FileNameGenerator();
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Create cache in application cache directory
+     *
+     * @param context -- context
+     */
+    GFXTextureCache(@NonNull Context context) {
+        this.mDirectory = new File(context.getCacheDir(), DIRECTORY);
+        this.mMaxBytes = DEFAULT_MAX_BYTES;
+    }
+
+    /**
+     * Remember whether current GL context supports ETC1, call it from GL thread
+     * after surface creation. Until then textures are stored as RGB565.
+     */
+    static void checkCompressionSupport() {
+        sEtc1Supported = ETC1Util.isETC1Supported();
+    }
+
+    /**
+     * Run disk task on cache thread, task is dropped if cache is closed
+     *
+     * @param task -- the task
+     */
+    void execute(@NonNull Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // late image loader callbacks come after view is destroyed
+            if (LOG_ALL) {
+                Log.v(LOG_TAG, LOG_MESSAGE_DROPPED);
+            }
+        }
+    }
+
+    /**
+     * Stop cache thread, pending tasks are completed, new ones are dropped
+     */
+    void close() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Convert bitmap into texture payload
+     *
+     * @param bmp -- image, not changed
+     * @return texture
+     */
+    Texture encode(@NonNull Bitmap bmp) {
+        Bitmap source = bmp;
+        if (bmp.getConfig() != Bitmap.Config.RGB_565) {
+            source = bmp.copy(Bitmap.Config.RGB_565, false);
+        }
+        try {
+            final int width = source.getWidth();
+            final int height = source.getHeight();
+            ByteBuffer pixels = ByteBuffer.allocateDirect(source.getRowBytes() * height).order(ByteOrder.nativeOrder());
+            source.copyPixelsToBuffer(pixels);
+            pixels.position(0);
+            if (!sEtc1Supported) {
+                return new Texture(FORMAT_RGB565, width, height, pixels);
+            }
+            ETC1Util.ETC1Texture etc1 = ETC1Util.compressTexture(pixels, width, height, RGB565_PIXEL_SIZE, source.getRowBytes());
+            return new Texture(FORMAT_ETC1, width, height, etc1.getData());
+        } finally {
+            if (source != bmp) {
+                source.recycle();
+            }
+        }
+    }
+
+    /**
+     * Write texture to disk, failures are logged only
+     *
+     * @param url     -- image url
+     * @param height  -- decoded height, part of key
+     * @param texture -- texture
+     */
+    void store(@NonNull String url, int height, @NonNull Texture texture) {
+        final File file = file(url, height);
+        final File temp = new File(file.getPath() + TEMP_SUFFIX);
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(LOG_TAG, String.format(LOG_MESSAGE_FAILED_STORE, file));
+            return;
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                ByteBuffer data = texture.mData.duplicate();
+                data.position(0);
+                out.writeInt(MAGIC);
+                out.writeInt(texture.mFormat);
+                out.writeInt(texture.mWidth);
+                out.writeInt(texture.mHeight);
+                out.writeInt(data.remaining());
+                WritableByteChannel channel = Channels.newChannel(out);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Rename failed");
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, String.format(LOG_MESSAGE_FAILED_STORE, file), e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        trim();
+    }
+
+    /**
+     * Check whether texture is cached, call it from cache thread
+     *
+     * @param url    -- image url
+     * @param height -- decoded height, part of key
+     * @return true if cache has entry
+     */
+    boolean contains(@NonNull String url, int height) {
+        return file(url, height).isFile();
+    }
+
+    /**
+     * Map cached texture
+     *
+     * @param url    -- image url
+     * @param height -- decoded height, part of key
+     * @return texture backed by mapped file or null if there is no valid entry
+     */
+    Texture load(@NonNull String url, int height) {
+        final File file = file(url, height);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                // mapping stays valid after file is closed
+                MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                if (mapped.remaining() < HEADER_SIZE || mapped.getInt() != MAGIC) {
+                    throw new IOException("Bad header");
+                }
+                final int format = mapped.getInt();
+                final int width = mapped.getInt();
+                final int h = mapped.getInt();
+                final int size = mapped.getInt();
+                if (size != mapped.remaining() || format != FORMAT_ETC1 && format != FORMAT_RGB565) {
+                    throw new IOException("Bad payload");
+                }
+                //noinspection ResultOfMethodCallIgnored
+                file.setLastModified(System.currentTimeMillis());
+                return new Texture(format, width, h, mapped.slice().order(ByteOrder.nativeOrder()));
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, String.format(LOG_MESSAGE_FAILED_LOAD, file), e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    private File file(String url, int height) {
+        return new File(mDirectory, String.format(FILE_FORMAT, sNameGenerator.generate(url), height));
+    }
+
+    /**
+     * Delete least recently used files until cache fits its limit
+     */
+    private void trim() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= mMaxBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        int deleted = 0;
+        for (int i = 0; i < files.length && total > mMaxBytes; i++) {
+            final long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+                deleted++;
+            }
+        }
+        if (LOG_ALL) {
+            Log.v(LOG_TAG, String.format(LOG_MESSAGE_TRIMMED, deleted, total / 1024));
+        }
+    }
+
+    /**
+     * Texture payload ready for upload
+     */
+    static final class Texture {
+        private final int mFormat;
+        private final int mWidth;
+        private final int mHeight;
+        private final ByteBuffer mData;
+
+        private Texture(int format, int width, int height, ByteBuffer data) {
+            this.mFormat = format;
+            this.mWidth = width;
+            this.mHeight = height;
+            this.mData = data;
+        }
+
+        /**
+         * Return GPU memory taken by uploaded texture
+         *
+         * @return bytes
+         */
+        int getByteCount() {
+            if (mFormat == FORMAT_ETC1 && sEtc1Supported) {
+                return mData.capacity();
+            }
+            return mWidth * mHeight * RGB565_PIXEL_SIZE;
+        }
+
+        /**
+         * Get width / height ratio
+         *
+         * @return ratio
+         */
+        float getRatio() {
+            return (float) mWidth / (float) mHeight;
+        }
+
+        /**
+         * Upload to currently bound GL_TEXTURE_2D.<br/>
+         * ETC1 payload is decoded in software if context can not sample it,
+         * this happens when cache was filled with another GPU.
+         */
+        void upload() {
+            ByteBuffer data = mData.duplicate();
+            data.position(0);
+            if (mFormat == FORMAT_ETC1 && sEtc1Supported) {
+                glCompressedTexImage2D(GL_TEXTURE_2D, 0, ETC1.ETC1_RGB8_OES, mWidth, mHeight, 0, data.remaining(), data);
+                return;
+            }
+            if (mFormat == FORMAT_ETC1) {
+                ByteBuffer decoded = ByteBuffer.allocateDirect(mWidth * mHeight * RGB565_PIXEL_SIZE).order(ByteOrder.nativeOrder());
+                ETC1.decodeImage(data, decoded, mWidth, mHeight, RGB565_PIXEL_SIZE, mWidth * RGB565_PIXEL_SIZE);
+                data = decoded;
+            }
+            // bitmap rows may be padded to 4 bytes or tight, tight rows of odd width images are not aligned
+            final boolean tight = data.remaining() == mWidth * mHeight * RGB565_PIXEL_SIZE;
+            glPixelStorei(GL_UNPACK_ALIGNMENT, tight ? RGB565_PIXEL_SIZE : 4);
+            glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, mWidth, mHeight, 0, GL_RGB, GL_UNSIGNED_SHORT_5_6_5, data);
+            glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package org.lastrix.collagemaker.app.gfx;
+
+import android.graphics.Bitmap;
+import android.opengl.GLSurfaceView;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.lastrix.collagemaker.app.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps entity textures within GPU memory budget.<br/>
+ * Every uploaded texture is accounted with its level of detail: {@link #LOD_FULL} (decoded for largest on-screen size),
+ * {@link #LOD_LOW} (quarter height, thumbnails also count as low) or {@link #LOD_NONE} (no texture, placeholder is drawn).<br/>
+ * When budget is exceeded off-screen textures are released first, then visible ones from the bottom of
+ * draw order are degraded to low level. Visible entities are brought back to full level when it fits budget.
+ * Levels are re-uploaded from {@link GFXTextureCache}: full level once full image was cached, low level once
+ * either full image or thumbnail was cached, see {@link #onLowCached(GFXEntity, int)}.<br/>
+ * Thumbnails packed into {@link GFXAtlas} are not evicted one by one, releasing them frees nothing,
+ * atlas pages are accounted as a whole, see {@link #setAtlasBytes(long)}.<br/>
+ * After EGL context loss all texture ids are dead, see {@link #onContextLost()}, visible entities are re-uploaded.<br/>
+ * Export pins visible entities at full level regardless of budget, see {@link #setPinned(boolean)}.<br/>
+ * Use this class only from GL thread, disk loads are done on cache thread.
+ */
+class GFXTextureResidency {
+
+    static final int LOD_FULL = 0;
+    static final int LOD_LOW = 1;
+    static final int LOD_NONE = 2;
+
+    private static final String LOG_TAG = GFXTextureResidency.class.getSimpleName();
+    private static final String LOG_MESSAGE_EVICTED = "Textures evicted, resident %d KB of %d KB";
+    private static final String LOG_MESSAGE_CONTEXT_LOST = "Context lost, %d textures will be re-uploaded";
+    private static final boolean LOG_ALL = BuildConfig.LOG_ALL;
+    private static final int LOD_DIVIDER = 4;
+    // keep cache thread queue short, visible entities are checked every frame anyway
+    private static final int MAX_REQUESTS_PER_FRAME = 2;
+
+    // invisible first, then bottom of draw order, then least recently seen
+    private static final Comparator<Record> EVICTION_ORDER = new Comparator<Record>() {
+        @Override
+        public int compare(Record lhs, Record rhs) {
+            if (lhs.mPriority != rhs.mPriority) {
+                return lhs.mPriority < rhs.mPriority ? -1 : 1;
+            }
+            return lhs.mLastSeen < rhs.mLastSeen ? -1 : (lhs.mLastSeen == rhs.mLastSeen ? 0 : 1);
+        }
+    };
+
+    private final GLSurfaceView mView;
+    private final GFXTextureCache mCache;
+    private final long mBudget;
+    private final GFXFrameStats mStats;
+    private final Map<GFXEntity, Record> mRecords = new HashMap<>();
+    private final List<Record> mCandidates = new ArrayList<>();
+    private long mCommitted;
+    private long mAtlasBytes;
+    private long mFrame;
+    private boolean mPinned;
+
+    /**
+     * Create manager
+     *
+     * @param view        -- view used to post uploads to GL thread
+     * @param cache       -- texture source
+     * @param budgetBytes -- texture memory budget
+     * @param stats       -- upload time is recorded here
+     */
+    GFXTextureResidency(@NonNull GLSurfaceView view, @NonNull GFXTextureCache cache, long budgetBytes,
+                        @NonNull GFXFrameStats stats) {
+        this.mView = view;
+        this.mCache = cache;
+        this.mBudget = budgetBytes;
+        this.mStats = stats;
+    }
+
+    /**
+     * Return texture memory in use, including expected size of loading levels
+     *
+     * @return bytes
+     */
+    long getCommittedBytes() {
+        return mCommitted;
+    }
+
+    /**
+     * Return texture memory budget
+     *
+     * @return bytes
+     */
+    long getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * Return decoded height of low level of detail
+     *
+     * @param height -- full level height
+     * @return height
+     */
+    static int lowHeight(int height) {
+        return Math.max(1, height / LOD_DIVIDER);
+    }
+
+    /**
+     * Return GPU memory taken by bitmap texture
+     *
+     * @param bmp -- uploaded bitmap
+     * @return bytes
+     */
+    static int byteCount(Bitmap bmp) {
+        return bmp.getRowBytes() * bmp.getHeight();
+    }
+
+    /**
+     * Account atlas pages, call it after thumbnails are added to atlas
+     *
+     * @param bytes -- memory taken by all pages, see {@link GFXAtlas#getByteCount()}
+     */
+    void setAtlasBytes(long bytes) {
+        mCommitted += bytes - mAtlasBytes;
+        mAtlasBytes = bytes;
+    }
+
+    /**
+     * Remember that low level of entity is cached, so it can be restored after eviction
+     * even if full image never comes
+     *
+     * @param entity -- entity
+     * @param bytes  -- low level texture size
+     */
+    void onLowCached(@NonNull GFXEntity entity, int bytes) {
+        final Record record = mRecords.get(entity);
+        if (record != null && !record.mCached) {
+            record.mLowCached = true;
+            record.mLowBytes = bytes;
+        }
+    }
+
+    /**
+     * Account uploaded texture, pending loads for entity are dropped.
+     * Texture in atlas page is not accounted, the page is.
+     *
+     * @param entity -- entity
+     * @param url    -- image url, texture cache key
+     * @param height -- full level height, texture cache key
+     * @param lod    -- uploaded level
+     * @param bytes  -- texture size
+     */
+    void onUploaded(@NonNull GFXEntity entity, @NonNull String url, int height, int lod, int bytes) {
+        Record record = mRecords.get(entity);
+        if (record == null) {
+            record = new Record(entity, url, height);
+            mRecords.put(entity, record);
+        }
+        record.mTicket++;
+        record.mLoading = false;
+        record.mLod = lod;
+        if (lod == LOD_FULL) {
+            record.mCached = true;
+            record.mFullBytes = bytes;
+            record.mLowCached = true;
+            record.mLowBytes = bytes / (LOD_DIVIDER * LOD_DIVIDER);
+        }
+        commit(record, entity.isShared() ? 0 : bytes);
+    }
+
+    /**
+     * Pin visible entities at full level: budget is ignored for them and they are never degraded,
+     * off-screen textures are still released. Call it for export, unpin right after.
+     *
+     * @param pinned -- true to pin
+     */
+    void setPinned(boolean pinned) {
+        mPinned = pinned;
+    }
+
+    /**
+     * Check whether every visible entity has its best available level: full one, or the current one
+     * if full image was never cached
+     *
+     * @param drawOrder -- entities
+     * @param left      -- visible world area
+     * @param right     -- visible world area
+     * @param bottom    -- visible world area
+     * @param top       -- visible world area
+     * @return true if nothing is loading or waiting for upgrade
+     */
+    boolean isFullyResident(Collection<GFXEntity> drawOrder, float left, float right, float bottom, float top) {
+        for (GFXEntity entity : drawOrder) {
+            final Record record = mRecords.get(entity);
+            if (record == null || !entity.intersects(left, right, bottom, top)) {
+                continue;
+            }
+            if (record.mLoading || record.mCached && record.mLod != LOD_FULL) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forget all entities, call it when entities are destroyed
+     */
+    void clear() {
+        mPinned = false;
+        mRecords.clear();
+        mCommitted = 0;
+        mAtlasBytes = 0;
+    }
+
+    /**
+     * Handle EGL context loss: texture ids of previous context are invalid,
+     * entities are switched to placeholder and restored by {@link #update(java.util.Collection, float, float, float, float)}.
+     */
+    void onContextLost() {
+        if (LOG_ALL) {
+            Log.v(LOG_TAG, String.format(LOG_MESSAGE_CONTEXT_LOST, mRecords.size()));
+        }
+        for (Record record : mRecords.values()) {
+            record.mTicket++;
+            record.mEntity.invalidateTexture();
+            record.mLod = LOD_NONE;
+            record.mLoading = false;
+            record.mCommitted = 0;
+            record.mEntityBytes = 0;
+        }
+        // atlas pages are gone with context too
+        mCommitted = 0;
+        mAtlasBytes = 0;
+    }
+
+    /**
+     * Update residency for frame: upgrade visible entities, evict over budget.
+     *
+     * @param drawOrder -- entities, bottom first
+     * @param left      -- visible world area
+     * @param right     -- visible world area
+     * @param bottom    -- visible world area
+     * @param top       -- visible world area
+     */
+    void update(Collection<GFXEntity> drawOrder, float left, float right, float bottom, float top) {
+        mFrame++;
+        int requests = 0;
+        int order = 0;
+        for (GFXEntity entity : drawOrder) {
+            order++;
+            Record record = mRecords.get(entity);
+            if (record == null) {
+                continue;
+            }
+            final boolean visible = entity.intersects(left, right, bottom, top);
+            record.mPriority = visible ? order : 0;
+            if (!visible) {
+                continue;
+            }
+            record.mLastSeen = mFrame;
+            if (requests >= MAX_REQUESTS_PER_FRAME || record.mLod == LOD_FULL || record.mLoading) {
+                continue;
+            }
+            final long others = mCommitted - record.mCommitted;
+            if (record.mCached && (mPinned || others + record.mFullBytes <= mBudget)) {
+                request(record, LOD_FULL, record.mFullBytes);
+                requests++;
+            } else if (record.mLod == LOD_NONE && record.mLowCached && others + record.mLowBytes <= mBudget) {
+                // thumbnail-only entities come back from cached thumbnail
+                request(record, LOD_LOW, record.mLowBytes);
+                requests++;
+            }
+        }
+
+        if (mCommitted > mBudget) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        mCandidates.clear();
+        for (Record record : mRecords.values()) {
+            if (record.mCommitted > 0) {
+                mCandidates.add(record);
+            }
+        }
+        Collections.sort(mCandidates, EVICTION_ORDER);
+        // off-screen textures are released, visible ones degrade to low level first
+        for (int pass = 0; pass < 2 && mCommitted > mBudget; pass++) {
+            for (int i = 0; i < mCandidates.size() && mCommitted > mBudget; i++) {
+                final Record record = mCandidates.get(i);
+                // pinned visible entities stay at full level
+                if (record.mPriority == 0) {
+                    release(record);
+                } else if (pass == 1 && !mPinned) {
+                    // degrade in flight gives memory back once low level lands
+                    if (!isDegrading(record)) {
+                        release(record);
+                    }
+                } else if (!mPinned && record.mLod == LOD_FULL && record.mLowCached && !record.mLoading) {
+                    request(record, LOD_LOW, record.mLowBytes);
+                }
+            }
+        }
+        mCandidates.clear();
+        if (LOG_ALL) {
+            Log.v(LOG_TAG, String.format(LOG_MESSAGE_EVICTED, mCommitted / 1024, mBudget / 1024));
+        }
+    }
+
+    private static boolean isDegrading(Record record) {
+        return record.mLoading && record.mLod == LOD_FULL;
+    }
+
+    private void release(Record record) {
+        if (record.mCommitted == 0) {
+            return;
+        }
+        record.mTicket++;
+        record.mLoading = false;
+        record.mLod = LOD_NONE;
+        record.mEntity.releaseTexture();
+        commit(record, 0);
+    }
+
+    /**
+     * Load level from cache on cache thread and upload it on GL thread.
+     * Current texture is kept until then, so larger of current and expected size of new level is committed.
+     */
+    private void request(final Record record, final int lod, int expectedBytes) {
+        final int ticket = ++record.mTicket;
+        final String url = record.mUrl;
+        final int height = lod == LOD_FULL ? record.mHeight : lowHeight(record.mHeight);
+        record.mLoading = true;
+        commit(record, Math.max(expectedBytes, record.mCommitted));
+        mCache.execute(new Runnable() {
+            @Override
+            public void run() {
+                final GFXTextureCache.Texture texture = mCache.load(url, height);
+                mView.queueEvent(new Runnable() {
+                    @Override
+                    public void run() {
+                        onLoaded(record, ticket, lod, texture);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onLoaded(Record record, int ticket, int lod, GFXTextureCache.Texture texture) {
+        if (record.mTicket != ticket || mRecords.get(record.mEntity) != record) {
+            return;
+        }
+        record.mLoading = false;
+        if (texture == null) {
+            if (lod == LOD_FULL) {
+                // cache entry is gone, keep what we have
+                record.mCached = false;
+                commit(record, record.mLod == LOD_NONE ? 0 : record.mEntityBytes);
+            } else {
+                // do not retry missing entry every frame
+                record.mLowCached = false;
+                release(record);
+            }
+            return;
+        }
+        final long started = GFXFrameStats.start();
+        record.mEntity.setTexture(texture);
+        mStats.recordUpload(started);
+        record.mLod = lod;
+        commit(record, texture.getByteCount());
+        mView.requestRender();
+    }
+
+    private void commit(Record record, int bytes) {
+        mCommitted += bytes - record.mCommitted;
+        record.mCommitted = bytes;
+        if (!record.mLoading) {
+            record.mEntityBytes = bytes;
+        }
+    }
+
+    /**
+     * Residency state of single entity
+     */
+    private static final class Record {
+        private final GFXEntity mEntity;
+        private final String mUrl;
+        private final int mHeight;
+        private int mLod = LOD_NONE;
+        private boolean mCached;
+        // low level can be restored from cache, full image or thumbnail
+        private boolean mLowCached;
+        private int mLowBytes;
+        private boolean mLoading;
+        // bumped on every change, late loads are dropped
+        private int mTicket;
+        private int mFullBytes;
+        // actual texture size
+        private int mEntityBytes;
+        // actual or expected size when level is loading
+        private int mCommitted;
+        private int mPriority;
+        private long mLastSeen;
+
+        private Record(GFXEntity entity, String url, int height) {
+            this.mEntity = entity;
+            this.mUrl = url;
+            this.mHeight = height;
+        }
+    }
+}
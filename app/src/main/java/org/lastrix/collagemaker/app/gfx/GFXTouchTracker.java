@@ -0,0 +1,95 @@
+package org.lastrix.collagemaker.app.gfx;
+
+/**
+ * Keeps recent samples of single pointer, historical ones included, and predicts its position.<br/>
+ * Velocity is taken over last {@link #VELOCITY_WINDOW_NANOS}, prediction is linear and never looks further
+ * than {@link #MAX_PREDICTION_NANOS} past the newest sample, so a stopped finger is not overshot for long.<br/>
+ * Times are {@link System#nanoTime()} based, {@link android.view.MotionEvent} time in milliseconds
+ * has the same origin.<br/>
+ * Use this class only from main thread.
+ */
+class GFXTouchTracker {
+
+    private static final int SAMPLES = 16;
+    private static final long VELOCITY_WINDOW_NANOS = 40 * 1000000L;
+    private static final long MAX_PREDICTION_NANOS = 24 * 1000000L;
+
+    private final long[] mTimes = new long[SAMPLES];
+    private final float[] mX = new float[SAMPLES];
+    private final float[] mY = new float[SAMPLES];
+    private int mCount;
+    // index of newest sample
+    private int mHead = -1;
+
+    /**
+     * Drop all samples
+     */
+    void reset() {
+        mCount = 0;
+        mHead = -1;
+    }
+
+    /**
+     * Check whether there are no samples
+     *
+     * @return true if empty
+     */
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Add sample, samples must come in time order
+     *
+     * @param timeNanos -- sample time
+     * @param x         -- x
+     * @param y         -- y
+     */
+    void add(long timeNanos, float x, float y) {
+        mHead = (mHead + 1) % SAMPLES;
+        mTimes[mHead] = timeNanos;
+        mX[mHead] = x;
+        mY[mHead] = y;
+        mCount = Math.min(mCount + 1, SAMPLES);
+    }
+
+    /**
+     * Get newest sample
+     *
+     * @param out -- destination: x, y
+     */
+    void last(float[] out) {
+        out[0] = mX[mHead];
+        out[1] = mY[mHead];
+    }
+
+    /**
+     * Predict position at given time
+     *
+     * @param timeNanos -- time of prediction
+     * @param out       -- destination: x, y
+     */
+    void predict(long timeNanos, float[] out) {
+        last(out);
+        final long horizon = Math.min(timeNanos - mTimes[mHead], MAX_PREDICTION_NANOS);
+        if (horizon <= 0 || mCount < 2) {
+            return;
+        }
+        // oldest sample inside velocity window
+        int oldest = mHead;
+        for (int i = 1; i < mCount; i++) {
+            final int index = (mHead - i + SAMPLES) % SAMPLES;
+            if (mTimes[mHead] - mTimes[index] > VELOCITY_WINDOW_NANOS) {
+                break;
+            }
+            oldest = index;
+        }
+        final long dt = mTimes[mHead] - mTimes[oldest];
+        if (dt <= 0) {
+            return;
+        }
+        final float scale = (float) horizon / dt;
+        out[0] += (mX[mHead] - mX[oldest]) * scale;
+        out[1] += (mY[mHead] - mY[oldest]) * scale;
+    }
+}
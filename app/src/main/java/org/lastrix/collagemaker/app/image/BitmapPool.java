@@ -0,0 +1,149 @@
+package org.lastrix.collagemaker.app.image;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of mutable bitmaps for {@link android.graphics.BitmapFactory.Options#inBitmap} decoding.<br/>
+ * Bitmaps are bucketed by byte size. Before kitkat decoder can reuse only bitmap of exactly the same
+ * dimensions and config, since kitkat any bitmap large enough is fine.<br/>
+ * Put only bitmaps nobody references anymore: pool either reuses or recycles them.
+ * Bitmaps from memory cache must never be put here, they may be displayed right now.<br/>
+ * All methods may be called from any thread.
+ */
+public class BitmapPool {
+
+    // do not waste much larger bitmap for small decode
+    private static final int MAX_OVERSIZE = 2;
+
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets = new TreeMap<>();
+    private final int mMaxBytes;
+    private int mBytes;
+
+    /**
+     * Create pool
+     *
+     * @param maxBytes -- pool size limit
+     */
+    public BitmapPool(int maxBytes) {
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Check whether decoder can reuse bitmaps on this device
+     *
+     * @return true since honeycomb
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Take bitmap suitable for decoding image of given size
+     *
+     * @param width  -- decoded width
+     * @param height -- decoded height
+     * @param config -- decoded config
+     * @return bitmap removed from pool or null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        final int bytes = width * height * bytesPerPixel(config);
+        if (bytes <= 0) {
+            return null;
+        }
+        final boolean anySize = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        final Map<Integer, LinkedList<Bitmap>> candidates = anySize
+                ? mBuckets.subMap(bytes, true, bytes * MAX_OVERSIZE, true)
+                : mBuckets.subMap(bytes, true, bytes, true);
+        for (Map.Entry<Integer, LinkedList<Bitmap>> entry : candidates.entrySet()) {
+            final LinkedList<Bitmap> bucket = entry.getValue();
+            for (Bitmap bitmap : bucket) {
+                if (anySize || bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+                    bucket.remove(bitmap);
+                    if (bucket.isEmpty()) {
+                        mBuckets.remove(entry.getKey());
+                    }
+                    mBytes -= entry.getKey();
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return bitmap to pool, it is recycled if it can not be reused
+     *
+     * @param bitmap -- unreferenced bitmap
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void put(@NonNull Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        final int bytes = byteCount(bitmap);
+        if (!isSupported() || !bitmap.isMutable() || bytes > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this) {
+            LinkedList<Bitmap> bucket = mBuckets.get(bytes);
+            if (bucket == null) {
+                bucket = new LinkedList<>();
+                mBuckets.put(bytes, bucket);
+            }
+            bucket.addLast(bitmap);
+            mBytes += bytes;
+            trim(mMaxBytes);
+        }
+    }
+
+    /**
+     * Recycle all pooled bitmaps
+     */
+    public synchronized void clear() {
+        trim(0);
+    }
+
+    /**
+     * Recycle oldest bitmaps of largest buckets until pool fits limit
+     */
+    private void trim(int maxBytes) {
+        while (mBytes > maxBytes && !mBuckets.isEmpty()) {
+            Map.Entry<Integer, LinkedList<Bitmap>> largest = mBuckets.lastEntry();
+            Bitmap bitmap = largest.getValue().removeFirst();
+            if (largest.getValue().isEmpty()) {
+                mBuckets.remove(largest.getKey());
+            }
+            mBytes -= largest.getKey();
+            bitmap.recycle();
+        }
+    }
+
+    private static int byteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == null) {
+            return 0;
+        }
+        switch (config) {
+            case ARGB_8888:
+                return 4;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case ALPHA_8:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+}
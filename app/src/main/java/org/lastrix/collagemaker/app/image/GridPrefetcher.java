@@ -0,0 +1,217 @@
+package org.lastrix.collagemaker.app.image;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.util.SparseArray;
+import android.view.View;
+import android.widget.AbsListView;
+import android.widget.ImageView;
+
+import com.nostra13.universalimageloader.core.DisplayImageOptions;
+import com.nostra13.universalimageloader.core.ImageLoader;
+import com.nostra13.universalimageloader.core.assist.FailReason;
+import com.nostra13.universalimageloader.core.assist.ImageSize;
+import com.nostra13.universalimageloader.core.assist.ViewScaleType;
+import com.nostra13.universalimageloader.core.imageaware.NonViewAware;
+import com.nostra13.universalimageloader.core.listener.PauseOnScrollListener;
+import com.nostra13.universalimageloader.core.listener.SimpleImageLoadingListener;
+
+/**
+ * Loads images of the next screen in scroll direction into memory and disk caches.<br/>
+ * Install it with {@link #asScrollListener()}: image loading is paused during fling,
+ * prefetch is issued shortly after visible cells are bound, so visible cells win under LIFO order,
+ * see {@link org.lastrix.collagemaker.app.image.ImagePipeline#configure(android.content.Context)}.
+ * For the same reason requests are submitted farthest first, so the nearest cells are decoded first.<br/>
+ * Request is forgotten when it completes, call {@link #onDataSetChanged()} when urls of positions change.<br/>
+ * Prefetched images are decoded to the size of image view in visible cell,
+ * so {@link com.nostra13.universalimageloader.core.ImageLoader#displayImage(String, android.widget.ImageView, DisplayImageOptions)}
+ * finds them in memory cache. Use this class only from main thread.
+ */
+public class GridPrefetcher implements AbsListView.OnScrollListener {
+
+    private static final long PREFETCH_DELAY_MS = 100L;
+
+    private final Source mSource;
+    private final int mImageViewId;
+    private final DisplayImageOptions mOptions;
+    private final SparseArray<NonViewAware> mRequested = new SparseArray<>();
+    private final Runnable mPrefetch = new Runnable() {
+        @Override
+        public void run() {
+            prefetch();
+        }
+    };
+
+    private AbsListView mView;
+    private int mState = SCROLL_STATE_IDLE;
+    private int mFirst;
+    private int mVisible;
+    private boolean mForward = true;
+
+    /**
+     * Create prefetcher
+     *
+     * @param source      -- image urls by adapter position
+     * @param imageViewId -- id of image view inside cell, used to compute decode size
+     * @param options     -- same options as used for displaying
+     */
+    public GridPrefetcher(@NonNull Source source, int imageViewId, @NonNull DisplayImageOptions options) {
+        this.mSource = source;
+        this.mImageViewId = imageViewId;
+        this.mOptions = options;
+    }
+
+    /**
+     * Return scroll listener which pauses loading during fling and drives this prefetcher
+     *
+     * @return listener
+     */
+    public AbsListView.OnScrollListener asScrollListener() {
+        return new PauseOnScrollListener(ImageLoader.getInstance(), false, true, this);
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        mState = scrollState;
+        if (scrollState == SCROLL_STATE_FLING) {
+            cancel();
+        } else {
+            schedule(view);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (visibleItemCount == 0 || firstVisibleItem == mFirst && visibleItemCount == mVisible) {
+            return;
+        }
+        final boolean forward = firstVisibleItem >= mFirst;
+        if (forward != mForward) {
+            //requests behind are useless now
+            cancel();
+            mForward = forward;
+        }
+        mFirst = firstVisibleItem;
+        mVisible = visibleItemCount;
+        if (mState != SCROLL_STATE_FLING) {
+            schedule(view);
+        }
+    }
+
+    /**
+     * Cancel requests made for old data, call it when adapter data is replaced
+     */
+    public void onDataSetChanged() {
+        cancel();
+        if (mView != null) {
+            schedule(mView);
+        }
+    }
+
+    /**
+     * Cancel all prefetch requests, call it when grid is destroyed
+     */
+    public void cancel() {
+        if (mView != null) {
+            mView.removeCallbacks(mPrefetch);
+        }
+        ImageLoader loader = ImageLoader.getInstance();
+        for (int i = 0; i < mRequested.size(); i++) {
+            loader.cancelDisplayTask(mRequested.valueAt(i));
+        }
+        mRequested.clear();
+    }
+
+    private void schedule(AbsListView view) {
+        if (mView != null) {
+            mView.removeCallbacks(mPrefetch);
+        }
+        mView = view;
+        view.postDelayed(mPrefetch, PREFETCH_DELAY_MS);
+    }
+
+    private void prefetch() {
+        if (mView == null || mState == SCROLL_STATE_FLING || mView.getChildCount() == 0) {
+            return;
+        }
+        final View image = mView.getChildAt(0).findViewById(mImageViewId);
+        if (!(image instanceof ImageView) || image.getWidth() == 0 || image.getHeight() == 0) {
+            return;
+        }
+        final ImageSize size = new ImageSize(image.getWidth(), image.getHeight());
+        final ViewScaleType scaleType = ViewScaleType.fromImageView((ImageView) image);
+
+        // one screen ahead in scroll direction
+        final int count = mSource.getCount();
+        final int start = mForward ? mFirst + mVisible : Math.max(0, mFirst - mVisible);
+        final int end = mForward ? Math.min(count, start + mVisible) : mFirst;
+        ImageLoader loader = ImageLoader.getInstance();
+        for (int i = 0; i < end - start; i++) {
+            // farthest first, loader takes the latest request first
+            final int position = mForward ? end - 1 - i : start + i;
+            if (mRequested.get(position) != null) {
+                continue;
+            }
+            final String url = mSource.getUrl(position);
+            NonViewAware aware = new NonViewAware(url, size, scaleType);
+            mRequested.put(position, aware);
+            loader.displayImage(url, aware, mOptions, new RequestListener(position, aware));
+        }
+    }
+
+    /**
+     * Forgets completed request, callbacks come on main thread
+     */
+    private final class RequestListener extends SimpleImageLoadingListener {
+        private final int mPosition;
+        private final NonViewAware mAware;
+
+        private RequestListener(int position, NonViewAware aware) {
+            this.mPosition = position;
+            this.mAware = aware;
+        }
+
+        @Override
+        public void onLoadingComplete(String imageUri, View view, Bitmap loadedImage) {
+            forget();
+        }
+
+        @Override
+        public void onLoadingFailed(String imageUri, View view, FailReason failReason) {
+            forget();
+        }
+
+        @Override
+        public void onLoadingCancelled(String imageUri, View view) {
+            forget();
+        }
+
+        private void forget() {
+            // position may be requested again meanwhile
+            if (mRequested.get(mPosition) == mAware) {
+                mRequested.remove(mPosition);
+            }
+        }
+    }
+
+    /**
+     * Provides image urls
+     */
+    public interface Source {
+
+        /**
+         * Return number of items
+         *
+         * @return count
+         */
+        int getCount();
+
+        /**
+         * Return image url of item
+         *
+         * @param position -- adapter position
+         * @return url
+         */
+        String getUrl(int position);
+    }
+}
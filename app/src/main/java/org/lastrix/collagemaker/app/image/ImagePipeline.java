@@ -0,0 +1,143 @@
+package org.lastrix.collagemaker.app.image;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.StatFs;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.nostra13.universalimageloader.core.DisplayImageOptions;
+import com.nostra13.universalimageloader.core.ImageLoaderConfiguration;
+import com.nostra13.universalimageloader.core.assist.ImageScaleType;
+import com.nostra13.universalimageloader.core.assist.QueueProcessingType;
+import com.nostra13.universalimageloader.utils.StorageUtils;
+
+import java.io.File;
+
+/**
+ * Image loader configuration tuned for current device.<br/>
+ * Memory cache takes {@link #MEMORY_CACHE_DIVIDER}th part of application heap,
+ * disk cache is bounded by free space, decoding threads follow core count.<br/>
+ * Lists must display images with {@link #gridOptions()} or {@link #avatarOptions()}:
+ * default options do not cache and decode full ARGB_8888 bitmaps.<br/>
+ * Decoder reuses bitmaps from {@link #bitmapPool()}, return bitmaps you own there once they are not needed.
+ */
+public final class ImagePipeline {
+
+    private static final String LOG_TAG = ImagePipeline.class.getSimpleName();
+    private static final String LOG_MESSAGE_SETTINGS =
+            "Memory class %d MB, memory cache %d KB, bitmap pool %d KB, disk cache %d KB, cores %d, threads %d";
+    private static final int MEMORY_CACHE_DIVIDER = 8;
+    private static final int MIN_DISK_CACHE_BYTES = 5 * 1024 * 1024;
+    private static final int MAX_DISK_CACHE_BYTES = 50 * 1024 * 1024;
+    private static final int DISK_CACHE_FREE_SPACE_DIVIDER = 10;
+    private static final int MIN_THREADS = 2;
+    private static final int MAX_THREADS = 4;
+    private static final int BITMAP_POOL_DIVIDER = 16;
+
+    private static final DisplayImageOptions GRID_OPTIONS = new DisplayImageOptions.Builder()
+            .cacheInMemory(true)
+            .cacheOnDisk(true)
+            .bitmapConfig(Bitmap.Config.RGB_565)
+            .imageScaleType(ImageScaleType.EXACTLY)
+            .build();
+    // list rows are recycled, old avatar must not be shown for new user
+    private static final DisplayImageOptions AVATAR_OPTIONS = new DisplayImageOptions.Builder()
+            .cloneFrom(GRID_OPTIONS)
+            .resetViewBeforeLoading(true)
+            .build();
+
+    // decoded bitmap is uploaded to texture once, only file is worth caching
+    private static final DisplayImageOptions COLLAGE_OPTIONS = new DisplayImageOptions.Builder()
+            .cacheInMemory(false)
+            .cacheOnDisk(true)
+            .bitmapConfig(Bitmap.Config.RGB_565)
+            .imageScaleType(ImageScaleType.EXACTLY)
+            .build();
+
+    private static BitmapPool sBitmapPool = new BitmapPool(0);
+
+    private ImagePipeline() {
+    }
+
+    /**
+     * Build configuration for current device and log chosen settings
+     *
+     * @param context -- application context
+     * @return configuration
+     */
+    public static ImageLoaderConfiguration configure(@NonNull Context context) {
+        final ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        final int memoryClass = am.getMemoryClass();
+        final int memoryCache = memoryClass * 1024 * 1024 / MEMORY_CACHE_DIVIDER;
+        final int bitmapPool = memoryClass * 1024 * 1024 / BITMAP_POOL_DIVIDER;
+        final int diskCache = diskCacheSize(StorageUtils.getCacheDirectory(context));
+        final int cores = Runtime.getRuntime().availableProcessors();
+        // network and decode share the pool, one extra thread hides download latency
+        final int threads = Math.max(MIN_THREADS, Math.min(MAX_THREADS, cores + 1));
+
+        Log.i(LOG_TAG, String.format(LOG_MESSAGE_SETTINGS, memoryClass, memoryCache / 1024,
+                bitmapPool / 1024, diskCache / 1024, cores, threads));
+
+        sBitmapPool = new BitmapPool(bitmapPool);
+        return new ImageLoaderConfiguration.Builder(context)
+                .imageDecoder(new PooledImageDecoder(sBitmapPool))
+                .memoryCacheSize(memoryCache)
+                .diskCacheSize(diskCache)
+                .threadPoolSize(threads)
+                .threadPriority(Thread.NORM_PRIORITY - 2)
+                // newest requests are for visible views
+                .tasksProcessingOrder(QueueProcessingType.LIFO)
+                .build();
+    }
+
+    /**
+     * Pool used by decoder, empty until {@link #configure(android.content.Context)} is called
+     *
+     * @return pool
+     */
+    public static BitmapPool bitmapPool() {
+        return sBitmapPool;
+    }
+
+    /**
+     * Options for photo grid thumbnails
+     *
+     * @return options
+     */
+    public static DisplayImageOptions gridOptions() {
+        return GRID_OPTIONS;
+    }
+
+    /**
+     * Options for user avatars in lists
+     *
+     * @return options
+     */
+    public static DisplayImageOptions avatarOptions() {
+        return AVATAR_OPTIONS;
+    }
+
+    /**
+     * Options for collage textures, use them with target size, see
+     * {@link com.nostra13.universalimageloader.core.ImageLoader#loadImage(String, com.nostra13.universalimageloader.core.assist.ImageSize, com.nostra13.universalimageloader.core.DisplayImageOptions, com.nostra13.universalimageloader.core.listener.ImageLoadingListener)}
+     *
+     * @return options
+     */
+    public static DisplayImageOptions collageOptions() {
+        return COLLAGE_OPTIONS;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static int diskCacheSize(File directory) {
+        long free;
+        try {
+            StatFs stat = new StatFs(directory.getPath());
+            free = (long) stat.getAvailableBlocks() * stat.getBlockSize();
+        } catch (IllegalArgumentException e) {
+            free = 0;
+        }
+        return (int) Math.max(MIN_DISK_CACHE_BYTES, Math.min(MAX_DISK_CACHE_BYTES, free / DISK_CACHE_FREE_SPACE_DIVIDER));
+    }
+}
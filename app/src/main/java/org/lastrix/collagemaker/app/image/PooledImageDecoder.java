@@ -0,0 +1,115 @@
+package org.lastrix.collagemaker.app.image;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import com.nostra13.universalimageloader.core.assist.ImageSize;
+import com.nostra13.universalimageloader.core.decode.BaseImageDecoder;
+import com.nostra13.universalimageloader.core.decode.ImageDecodingInfo;
+
+import java.io.IOException;
+
+/**
+ * Image decoder which decodes into bitmaps borrowed from {@link org.lastrix.collagemaker.app.image.BitmapPool}.<br/>
+ * Pooled decodes are scaled by {@link android.graphics.BitmapFactory.Options#inSampleSize} only and returned as decoded:
+ * base decoder copies mutable bitmap even for identity matrix and recycles the source, which would destroy pooled bitmap.
+ * So decoded image may be up to twice as large as target size. Decodes which need exif rotation or flip are not pooled.<br/>
+ * Borrowed bitmap goes back to pool if decode fails. If decoder rejects borrowed bitmap image is decoded again into new one.
+ */
+class PooledImageDecoder extends BaseImageDecoder {
+
+    private static final String LOG_TAG = PooledImageDecoder.class.getSimpleName();
+    private static final String LOG_MESSAGE_REUSE_FAILED = "Bitmap reuse failed for [%s], decoding without pool";
+
+    private final BitmapPool mPool;
+    private final ThreadLocal<Boolean> mBypass = new ThreadLocal<>();
+    // decode of this thread is pooled: result is mutable and returned as is
+    private final ThreadLocal<Boolean> mPooled = new ThreadLocal<>();
+    private final ThreadLocal<Bitmap> mBorrowed = new ThreadLocal<>();
+
+    /**
+     * Create decoder
+     *
+     * @param pool -- source of bitmaps
+     */
+    PooledImageDecoder(BitmapPool pool) {
+        super(false);
+        this.mPool = pool;
+    }
+
+    @Override
+    public Bitmap decode(ImageDecodingInfo decodingInfo) throws IOException {
+        try {
+            return attempt(decodingInfo);
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, String.format(LOG_MESSAGE_REUSE_FAILED, decodingInfo.getImageKey()));
+            mBypass.set(Boolean.TRUE);
+            try {
+                return attempt(decodingInfo);
+            } finally {
+                mBypass.remove();
+            }
+        }
+    }
+
+    /**
+     * Decode once, borrowed bitmap is returned to pool unless image was decoded into it
+     */
+    private Bitmap attempt(ImageDecodingInfo decodingInfo) throws IOException {
+        Bitmap result = null;
+        try {
+            result = super.decode(decodingInfo);
+            return result;
+        } finally {
+            final Bitmap borrowed = mBorrowed.get();
+            if (borrowed != null && borrowed != result) {
+                mPool.put(borrowed);
+            }
+            mBorrowed.remove();
+            mPooled.remove();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Override
+    protected BitmapFactory.Options prepareDecodingOptions(ImageSize imageSize, ImageDecodingInfo decodingInfo) {
+        final BitmapFactory.Options options = super.prepareDecodingOptions(imageSize, decodingInfo);
+        // options are kept by decoding info between attempts
+        options.inBitmap = null;
+        options.inMutable = false;
+        // exif transform copies bitmap anyway
+        if (!BitmapPool.isSupported() || decodingInfo.shouldConsiderExifParams()) {
+            return options;
+        }
+        // before kitkat only not subsampled decodes may reuse bitmaps
+        if (options.inSampleSize > 1 && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return options;
+        }
+        // mutable result can be put into pool once its owner is done with it
+        options.inMutable = true;
+        mPooled.set(Boolean.TRUE);
+        if (mBypass.get() != null) {
+            return options;
+        }
+        final int sample = Math.max(1, options.inSampleSize);
+        final Bitmap bitmap = mPool.get((imageSize.getWidth() + sample - 1) / sample, (imageSize.getHeight() + sample - 1) / sample,
+                options.inPreferredConfig);
+        if (bitmap != null) {
+            options.inBitmap = bitmap;
+            mBorrowed.set(bitmap);
+        }
+        return options;
+    }
+
+    @Override
+    protected Bitmap considerExactScaleAndOrientatiton(Bitmap subsampledBitmap, ImageDecodingInfo decodingInfo,
+                                                       int rotation, boolean flipHorizontal) {
+        if (mPooled.get() != null && rotation == 0 && !flipHorizontal) {
+            return subsampledBitmap;
+        }
+        return super.considerExactScaleAndOrientatiton(subsampledBitmap, decodingInfo, rotation, flipHorizontal);
+    }
+}
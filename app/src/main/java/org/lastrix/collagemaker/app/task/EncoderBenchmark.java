@@ -0,0 +1,170 @@
+package org.lastrix.collagemaker.app.task;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Measures {@link org.lastrix.collagemaker.app.task.SaveImageTask} formats on current device:
+ * encode time and output size of screenshot-sized collage for PNG, JPEG and WebP.<br/>
+ * Collage is drawn synthetically: photo-like gradients with noise, so results do not depend on cached photos.
+ * Output is counted, not stored, so storage speed is not measured.<br/>
+ * Use {@link org.lastrix.collagemaker.app.content.ContentProvider#CALL_ENCODER_BENCHMARK} to run it,
+ * never run it on main thread.
+ */
+public class EncoderBenchmark {
+
+    public static final String RESULT_WIDTH = "width";
+    public static final String RESULT_HEIGHT = "height";
+    public static final String RESULT_QUALITY = "quality";
+    /**
+     * Suffixes of format name, e.g. png_ms and png_bytes
+     */
+    public static final String RESULT_MS_SUFFIX = "_ms";
+    public static final String RESULT_BYTES_SUFFIX = "_bytes";
+
+    private static final String LOG_TAG = EncoderBenchmark.class.getSimpleName();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int ROUNDS = 3;
+    private static final int TILES = 9;
+    private static final long SEED = 42;
+
+    private final Context mContext;
+
+    public EncoderBenchmark(@NonNull Context context) {
+        this.mContext = context;
+    }
+
+    /**
+     * Run benchmark for every format
+     *
+     * @param quality -- quality of lossy formats
+     * @return bundle with average encode time and size for every format, keys are
+     * {@link org.lastrix.collagemaker.app.task.SaveImageTask#getExtension(android.graphics.Bitmap.CompressFormat)}
+     * with {@link #RESULT_MS_SUFFIX} and {@link #RESULT_BYTES_SUFFIX}
+     */
+    public Bundle run(int quality) {
+        Bundle bundle = new Bundle();
+        DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+        final int width = metrics.widthPixels;
+        final int height = metrics.heightPixels;
+        bundle.putInt(RESULT_WIDTH, width);
+        bundle.putInt(RESULT_HEIGHT, height);
+        bundle.putInt(RESULT_QUALITY, quality);
+
+        Bitmap bmp = createCollage(width, height);
+        try {
+            measure(bmp, Bitmap.CompressFormat.PNG, 100, bundle);
+            measure(bmp, Bitmap.CompressFormat.JPEG, quality, bundle);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                measureWebp(bmp, quality, bundle);
+            }
+        } finally {
+            bmp.recycle();
+        }
+        Log.i(LOG_TAG, bundle.toString());
+        return bundle;
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static void measureWebp(Bitmap bmp, int quality, Bundle bundle) {
+        measure(bmp, Bitmap.CompressFormat.WEBP, quality, bundle);
+    }
+
+    /**
+     * Encode bitmap several times through the same buffered stream as {@link SaveImageTask} does
+     */
+    private static void measure(Bitmap bmp, Bitmap.CompressFormat format, int quality, Bundle bundle) {
+        long total = 0;
+        long bytes = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            CountingOutputStream counter = new CountingOutputStream();
+            OutputStream os = new BufferedOutputStream(counter, BUFFER_SIZE);
+            final long started = SystemClock.elapsedRealtime();
+            try {
+                bmp.compress(format, quality, os);
+                os.close();
+            } catch (IOException e) {
+                // counting stream does not throw
+                throw new IllegalStateException(e);
+            }
+            total += SystemClock.elapsedRealtime() - started;
+            bytes = counter.mCount;
+        }
+        final String name = SaveImageTask.getExtension(format);
+        bundle.putLong(name + RESULT_MS_SUFFIX, total / ROUNDS);
+        bundle.putLong(name + RESULT_BYTES_SUFFIX, bytes);
+    }
+
+    /**
+     * Draw grid of gradient tiles with noise, flat color compresses far better than photos
+     */
+    private static Bitmap createCollage(int width, int height) {
+        Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bmp);
+        Paint paint = new Paint();
+        Random random = new Random(SEED);
+        final float tileWidth = (float) width / TILES;
+        final float tileHeight = (float) height / TILES;
+        for (int y = 0; y < TILES; y++) {
+            for (int x = 0; x < TILES; x++) {
+                final float left = x * tileWidth;
+                final float top = y * tileHeight;
+                paint.setShader(new LinearGradient(left, top, left + tileWidth, top + tileHeight,
+                        0xff000000 | random.nextInt(), 0xff000000 | random.nextInt(), Shader.TileMode.CLAMP));
+                canvas.drawRect(left, top, left + tileWidth, top + tileHeight, paint);
+            }
+        }
+
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            bmp.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                final int noise = random.nextInt(16) - 8;
+                final int p = row[x];
+                row[x] = 0xff000000
+                        | clamp(((p >> 16) & 0xff) + noise) << 16
+                        | clamp(((p >> 8) & 0xff) + noise) << 8
+                        | clamp((p & 0xff) + noise);
+            }
+            bmp.setPixels(row, 0, width, 0, y, width, 1);
+        }
+        return bmp;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    /**
+     * Stream that only counts written bytes
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long mCount;
+
+        @Override
+        public void write(int oneByte) {
+            mCount++;
+        }
+
+        @Override
+        public void write(@NonNull byte[] buffer, int offset, int count) {
+            mCount += count;
+        }
+    }
+}
@@ -1,22 +1,36 @@
 package org.lastrix.collagemaker.app.task;
 
 import android.app.ProgressDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.graphics.Bitmap;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Environment;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Task for saving bitmaps to storage folder.<br/>
  * Use {@link org.lastrix.collagemaker.app.task.SaveImageTask.Listener} to handle result after completion.<br/>
- * If saving of any bitmap would fail - all already saved files would be removed, unless you called.
+ * Output format and quality are chosen by caller: PNG is lossless but slow to deflate, JPEG and WebP
+ * are several times faster for photos, see {@link org.lastrix.collagemaker.app.task.EncoderBenchmark}.
+ * Files are written through buffered stream, several bitmaps are encoded in parallel.<br/>
+ * If saving of any bitmap would fail - all already saved files would be removed, unless you called {@link #preserve()}.
  * Created by lastrix on 8/26/14.
  */
 public class SaveImageTask extends AsyncTask<Bitmap, Void, List<File>> implements DialogInterface.OnCancelListener {
@@ -24,16 +38,47 @@ public class SaveImageTask extends AsyncTask<Bitmap, Void, List<File>> implement
     public static final String LOG_TAG = SaveImageTask.class.getSimpleName();
     public static final String LOG_MESSAGE_FAILED_DELETE = "Failed to delete file after exception [%s]";
     public static final String LOG_MESSAGE_FAILED_SAVE = "Save failed";
+    public static final String LOG_MESSAGE_FAILED_ENCODE = "Failed to encode [%s]";
+    public static final String LOG_MESSAGE_FAILED_CREATE = "Failed to create storage.";
+    private static final String FOLDER = "Pictures/CollageMaker";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Quality for lossy formats, photos look the same as original
+     */
+    public static final int QUALITY_DEFAULT = 90;
     private Listener mListener;
     private File mStorageDirectory;
     private ProgressDialog mProgressDialog;
     private String mFilenameTemplate;
+    private final Bitmap.CompressFormat mFormat;
+    private final int mQuality;
 
     private Throwable mError;
     private volatile boolean mCanceled;
     private boolean mPreserve;
 
+    /**
+     * Create task saving lossless PNG files
+     */
     public SaveImageTask(Listener mListener, File mStorageDirectory, ProgressDialog mProgressDialog, String filenameTemplate) {
+        this(mListener, mStorageDirectory, mProgressDialog, filenameTemplate, Bitmap.CompressFormat.PNG, 100);
+    }
+
+    /**
+     * Create task
+     *
+     * @param mListener         -- result listener
+     * @param mStorageDirectory -- where files are saved
+     * @param mProgressDialog   -- dialog shown while saving
+     * @param filenameTemplate  -- file name format, random part is passed as argument,
+     *                          extension should match format, see {@link #getExtension(android.graphics.Bitmap.CompressFormat)}
+     * @param format            -- output format
+     * @param quality           -- 0..100, ignored by PNG
+     */
+    public SaveImageTask(Listener mListener, File mStorageDirectory, ProgressDialog mProgressDialog, String filenameTemplate,
+                         Bitmap.CompressFormat format, int quality) {
+        this.mFormat = format;
+        this.mQuality = quality;
         this.mListener = mListener;
         this.mStorageDirectory = mStorageDirectory;
         this.mProgressDialog = mProgressDialog;
@@ -44,39 +89,141 @@ public class SaveImageTask extends AsyncTask<Bitmap, Void, List<File>> implement
         this.mPreserve = false;
     }
 
+    /**
+     * Return lossy format with best size and speed available on device: WebP since ice cream sandwich, JPEG before
+     *
+     * @return format
+     */
+    public static Bitmap.CompressFormat getLossyFormat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
+                ? Bitmap.CompressFormat.WEBP : Bitmap.CompressFormat.JPEG;
+    }
+
+    /**
+     * Return file extension for format
+     *
+     * @param format -- the format
+     * @return extension without dot
+     */
+    public static String getExtension(Bitmap.CompressFormat format) {
+        switch (format) {
+            case JPEG:
+                return "jpg";
+            case PNG:
+                return "png";
+            default:
+                return "webp";
+        }
+    }
+
+    /**
+     * Return mime type for format
+     *
+     * @param format -- the format
+     * @return mime type
+     */
+    public static String getMimeType(Bitmap.CompressFormat format) {
+        return "image/" + (format == Bitmap.CompressFormat.JPEG ? "jpeg" : getExtension(format));
+    }
+
     @Override
     protected List<File> doInBackground(Bitmap... params) {
         List<File> files = new LinkedList<>();
+        Random random = new Random();
+        final File[] targets = new File[params.length];
+        for (int i = 0; i < params.length; i++) {
+            //generate file
+            targets[i] = new File(mStorageDirectory,
+                    String.format(mFilenameTemplate, Integer.toHexString(random.nextInt())));
+        }
+
+        if (params.length == 1) {
+            try {
+                save(targets[0], params[0]);
+                files.add(targets[0]);
+            } catch (Exception e) {
+                onFailed(e, files);
+                return null;
+            }
+            return files;
+        }
+
+        // deflate and lossy encoders are single threaded, use every core
+        final int threads = Math.min(params.length, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
         try {
-            Random random = new Random();
-            String filename;
-            File file;
-            for (Bitmap bitmap : params) {
-                if (mCanceled) return files;
-                //generate file
-                filename = String.format(mFilenameTemplate, Integer.toHexString(random.nextInt()));
-                file = new File(mStorageDirectory, filename);
-
-                //protected save
-                save(file, bitmap);
-
-                files.add(file);
+            List<Future<File>> futures = new ArrayList<>(params.length);
+            for (int i = 0; i < params.length; i++) {
+                final File file = targets[i];
+                final Bitmap bitmap = params[i];
+                futures.add(executor.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws IOException {
+                        if (mCanceled) return null;
+                        save(file, bitmap);
+                        return file;
+                    }
+                }));
             }
-        } catch (Exception e) {
-            mError = e;
-            Log.e(LOG_TAG, LOG_MESSAGE_FAILED_SAVE, e);
-            if (!mPreserve && files.size() > 0) {
-                for (File f : files) {
-                    if (!f.delete()) {
-                        Log.w(LOG_TAG, String.format(LOG_MESSAGE_FAILED_DELETE, f.getAbsoluteFile()));
+            // wait for all, so failed batch is removed completely
+            Exception error = null;
+            for (Future<File> future : futures) {
+                try {
+                    File file = future.get();
+                    if (file != null) {
+                        files.add(file);
+                    }
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
                     }
+                } catch (InterruptedException e) {
+                    error = error == null ? e : error;
                 }
             }
-            return null;
+            if (error != null) {
+                onFailed(error, files);
+                return null;
+            }
+        } finally {
+            executor.shutdownNow();
         }
         return files;
     }
 
+    private void onFailed(Exception e, List<File> files) {
+        mError = e;
+        Log.e(LOG_TAG, LOG_MESSAGE_FAILED_SAVE, e);
+        if (!mPreserve && files.size() > 0) {
+            for (File f : files) {
+                if (!f.delete()) {
+                    Log.w(LOG_TAG, String.format(LOG_MESSAGE_FAILED_DELETE, f.getAbsoluteFile()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns file pointing to storage directory. If it does not exist, it would be created.
+     *
+     * @param context -- context, its cache directory is used when external storage is not mounted
+     * @return storage
+     */
+    public static File getStorage(Context context) {
+        File storage;
+        if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+            storage = new File(Environment.getExternalStorageDirectory(), FOLDER);
+        } else {
+            storage = context.getCacheDir();
+        }
+        if (!storage.exists()) {
+            if (!storage.mkdirs()) {
+                throw new IllegalStateException(LOG_MESSAGE_FAILED_CREATE);
+            }
+        }
+        return storage;
+    }
+
     /**
      * Tell task to keep already saved bitmaps if exception thrown.
      */
@@ -85,13 +232,16 @@ public class SaveImageTask extends AsyncTask<Bitmap, Void, List<File>> implement
     }
 
     private void save(File file, Bitmap bitmap) throws IOException {
-        FileOutputStream fos = null;
+        OutputStream os = null;
         try {
-            fos = new FileOutputStream(file);
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, fos);
+            // encoder writes in small chunks
+            os = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+            if (!bitmap.compress(mFormat, mQuality, os)) {
+                throw new IOException(String.format(LOG_MESSAGE_FAILED_ENCODE, file.getAbsolutePath()));
+            }
         } finally {
-            if (fos != null) {
-                fos.close();
+            if (os != null) {
+                os.close();
             }
         }
     }